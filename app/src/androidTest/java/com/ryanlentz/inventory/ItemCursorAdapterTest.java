@@ -0,0 +1,154 @@
+package com.ryanlentz.inventory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for {@link ItemCursorAdapter}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemCursorAdapterTest {
+    /** Number of rows in the test cursor */
+    private static final int ROWS = 100;
+
+    /** Number of binds measured */
+    private static final int BINDS = 10000;
+
+    private Context mContext;
+    private ItemCursorAdapter mAdapter;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+        mAdapter = new ItemCursorAdapter(mContext, null);
+        mAdapter.swapCursor(createCursor());
+    }
+
+    @Test
+    @UiThreadTest
+    public void bind_doesNotAllocate() throws Exception {
+        ItemCursorAdapter.ViewHolder holder = mAdapter.onCreateViewHolder(new FrameLayout(mContext), 0);
+
+        // Binds every row once so all buffers have reached their final size
+        for (int position = 0; position < ROWS; position++) {
+            mAdapter.onBindViewHolder(holder, position);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < BINDS; i++) {
+            mAdapter.onBindViewHolder(holder, i % ROWS);
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        // A few allocations inside the framework are tolerated, but nothing per bind
+        assertTrue("Allocated " + allocations + " objects in " + BINDS + " binds",
+                allocations < ROWS);
+        assertEquals("Item 99", holder.mNameTextView.getText().toString());
+        assertEquals("$0.99", holder.mPriceTextView.getText().toString());
+    }
+
+    @Test
+    public void swapPages_updatesOnlyTheRowsThatChanged() throws Exception {
+        ItemCursorAdapter.Page first = ItemCursorAdapter.Page.read(createCursor(0, 50, -1),
+                Long.MAX_VALUE, null);
+        ItemCursorAdapter.Page second = ItemCursorAdapter.Page.read(createCursor(50, 50, -1),
+                Long.MAX_VALUE, null);
+        mAdapter.swapPages(new MergeCursor(new Cursor[] { createCursor(0, 50, -1),
+                createCursor(50, 50, -1) }), Arrays.asList(first, second));
+        assertEquals(ROWS, mAdapter.getItemCount());
+
+        final List<String> updates = new ArrayList<>();
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updates.add("all");
+            }
+
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+                updates.add("changed " + positionStart + "+" + itemCount);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updates.add("inserted " + positionStart + "+" + itemCount);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updates.add("removed " + positionStart + "+" + itemCount);
+            }
+        });
+
+        // The second page is reloaded with one item sold; the first is left as it was
+        ItemCursorAdapter.Page reloaded = ItemCursorAdapter.Page.read(createCursor(50, 50, 59),
+                Long.MAX_VALUE, second);
+        mAdapter.swapPages(new MergeCursor(new Cursor[] { createCursor(0, 50, -1),
+                createCursor(50, 50, 59) }), Arrays.asList(first, reloaded));
+
+        assertEquals(Collections.singletonList("changed 59+1"), updates);
+        assertEquals(ROWS, mAdapter.getItemCount());
+        assertEquals(60, mAdapter.getItemId(59));
+    }
+
+    @Test
+    public void format_writesPricesAndQuantities() throws Exception {
+        char[] buffer = new char[24];
+        assertEquals("$0.05", new String(buffer, 0, ItemCursorAdapter.formatPrice(buffer, 5)));
+        assertEquals("$12.30", new String(buffer, 0, ItemCursorAdapter.formatPrice(buffer, 1230)));
+        assertEquals("0", new String(buffer, 0, ItemCursorAdapter.formatLong(buffer, 0, 0)));
+        assertEquals("9223372036854775807",
+                new String(buffer, 0, ItemCursorAdapter.formatLong(buffer, 0, Long.MAX_VALUE)));
+    }
+
+    /**
+     * Creates a cursor of items named "Item n", priced at n cents with a quantity of n and no
+     * photo.
+     */
+    private static MatrixCursor createCursor() {
+        return createCursor(0, ROWS, -1);
+    }
+
+    /**
+     * Creates a cursor of the given number of the items {@link #createCursor()} has, starting
+     * at the given one, with one unit fewer of the item at the given index, or -1 for none.
+     */
+    private static MatrixCursor createCursor(int first, int rows, int sold) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                ItemEntry._ID,
+                ItemEntry.COLUMN_ITEM_NAME,
+                ItemEntry.COLUMN_ITEM_PRICE,
+                ItemEntry.COLUMN_ITEM_QUANTITY,
+                ItemEntry.COLUMN_ITEM_PHOTO});
+        for (int i = first; i < first + rows; i++) {
+            cursor.addRow(new Object[] { (long) i + 1, "Item " + i, (long) i,
+                    i == sold ? i - 1 : i, null });
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,87 @@
+package com.ryanlentz.inventory;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for {@link ThumbnailDiskCache}, run in a separate directory.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailDiskCacheTest {
+    /** Width and height of the test thumbnails */
+    private static final int SIZE = 64;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "test_thumbnails");
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteDirectory();
+    }
+
+    @Test
+    public void put_trimsTheLeastRecentlyUsedThumbnails() throws Exception {
+        // Measures one thumbnail, then allows a little more than two
+        ThumbnailDiskCache cache = new ThumbnailDiskCache(mDirectory, Long.MAX_VALUE);
+        cache.put("a", createThumbnail(0xFF112233));
+        long thumbnailBytes = cache.size();
+        assertTrue(thumbnailBytes > 0);
+        deleteDirectory();
+
+        cache = new ThumbnailDiskCache(mDirectory, thumbnailBytes * 5 / 2);
+        cache.put("a", createThumbnail(0xFF112233));
+        cache.put("b", createThumbnail(0xFF112233));
+
+        // File times may only have a resolution of seconds, so they are set here
+        assertTrue(new File(mDirectory, "a").setLastModified(2000000000L));
+        assertTrue(new File(mDirectory, "b").setLastModified(1000000000L));
+
+        cache.put("c", createThumbnail(0xFF112233));
+        assertNull(cache.get("b"));
+        Bitmap thumbnail = cache.get("a");
+        assertNotNull(thumbnail);
+        assertEquals(SIZE, thumbnail.getWidth());
+        assertNotNull(cache.get("c"));
+        assertTrue(cache.size() <= thumbnailBytes * 5 / 2);
+
+        // A new cache over the same directory counts what is already there
+        cache = new ThumbnailDiskCache(mDirectory, thumbnailBytes * 5 / 2);
+        cache.put("d", createThumbnail(0xFF112233));
+        assertEquals(2, mDirectory.list().length);
+    }
+
+    private static Bitmap createThumbnail(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,153 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for {@link AsyncItemWriter}, run against a separate test database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AsyncItemWriterTest {
+    private Context mContext;
+    private ItemProvider mProvider;
+    private MockContentResolver mResolver;
+    private AsyncItemWriter mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mProvider = new ItemProvider();
+        mProvider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ItemContract.CONTENT_AUTHORITY, mProvider);
+        mWriter = new AsyncItemWriter(mResolver);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProvider.shutdown();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void writes_deliverResultsOnTheMainThread() throws Exception {
+        Uri itemUri = insert(mWriter);
+        assertNotNull(itemUri);
+
+        final CountDownLatch deleted = new CountDownLatch(1);
+        final AtomicReference<Integer> rows = new AtomicReference<>();
+        final AtomicReference<Looper> looper = new AtomicReference<>();
+        mWriter.delete(itemUri, new AsyncItemWriter.Callback<Integer>() {
+            @Override
+            public void onWriteComplete(Integer rowsDeleted) {
+                looper.set(Looper.myLooper());
+                rows.set(rowsDeleted);
+                deleted.countDown();
+            }
+        });
+        assertTrue(deleted.await(5, TimeUnit.SECONDS));
+        assertEquals(Looper.getMainLooper(), looper.get());
+        assertEquals(1, (int) rows.get());
+    }
+
+    @Test
+    public void update_reportsRejectedWriteAsFailed() throws Exception {
+        Uri itemUri = insert(mWriter);
+
+        // The provider rejects an item without a name
+        ContentValues values = new ContentValues();
+        values.putNull(ItemEntry.COLUMN_ITEM_NAME);
+        final CountDownLatch updated = new CountDownLatch(1);
+        final AtomicReference<Integer> rows = new AtomicReference<>();
+        mWriter.update(itemUri, values, new AsyncItemWriter.Callback<Integer>() {
+            @Override
+            public void onWriteComplete(Integer rowsUpdated) {
+                rows.set(rowsUpdated);
+                updated.countDown();
+            }
+        });
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+        assertEquals(0, (int) rows.get());
+    }
+
+    @Test
+    public void release_dropsCallbacksButCompletesWrites() throws Exception {
+        final Uri itemUri = insert(mWriter);
+        final AtomicBoolean called = new AtomicBoolean();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mWriter.release();
+            }
+        });
+        mWriter.delete(itemUri, new AsyncItemWriter.Callback<Integer>() {
+            @Override
+            public void onWriteComplete(Integer rowsDeleted) {
+                called.set(true);
+            }
+        });
+
+        // Writes run in order, so once a later write is reported the delete has been made
+        insert(new AsyncItemWriter(mResolver));
+        assertFalse(called.get());
+        Cursor cursor = mProvider.query(itemUri, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Inserts an item with the given writer and waits for its URI.
+     */
+    private Uri insert(AsyncItemWriter writer) throws InterruptedException {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Widget");
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 5);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+
+        final CountDownLatch inserted = new CountDownLatch(1);
+        final AtomicReference<Uri> uri = new AtomicReference<>();
+        writer.insert(ItemEntry.CONTENT_URI, values, new AsyncItemWriter.Callback<Uri>() {
+            @Override
+            public void onWriteComplete(Uri newUri) {
+                uri.set(newUri);
+                inserted.countDown();
+            }
+        });
+        assertTrue(inserted.await(5, TimeUnit.SECONDS));
+        assertNotNull(uri.get());
+        assertTrue(ContentUris.parseId(uri.get()) > 0);
+        return uri.get();
+    }
+}
@@ -0,0 +1,146 @@
+package com.ryanlentz.inventory.data;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process stand-in for the central store {@link ItemSyncEngine} syncs with. It keeps the
+ * latest change of each item in memory, numbered in the order they were pushed, and the
+ * number of the last change serves as the checkpoint.
+ */
+class FakeSyncServer implements ItemSyncEngine.Server {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A stored change and the device that pushed it
+     */
+    private static class Entry {
+        final String device;
+        final JSONObject change;
+
+        Entry(String device, JSONObject change) {
+            this.device = device;
+            this.change = change;
+        }
+    }
+
+    /** The latest change of each item, by the number it was stored with */
+    private final TreeMap<Long, Entry> mEntries = new TreeMap<>();
+
+    /** The number of the latest change of each item, by sync ID */
+    private final Map<String, Long> mNumbers = new HashMap<>();
+
+    /** Number of the last change stored */
+    private long mLastNumber;
+
+    /** Number of pushes and pulls served */
+    private int mRequests;
+
+    @Override
+    public synchronized byte[] push(byte[] request) throws IOException {
+        mRequests++;
+        try {
+            JSONObject body = decode(request);
+            String device = body.getString(ItemSyncEngine.FIELD_DEVICE);
+            JSONArray changes = body.getJSONArray(ItemSyncEngine.FIELD_CHANGES);
+            for (int i = 0; i < changes.length(); i++) {
+                JSONObject change = changes.getJSONObject(i);
+                String syncId = change.getString(ItemEntry.COLUMN_ITEM_SYNC_ID);
+                Long previous = mNumbers.put(syncId, ++mLastNumber);
+                if (previous != null) {
+                    mEntries.remove(previous);
+                }
+                mEntries.put(mLastNumber, new Entry(device, change));
+            }
+            return encode(new JSONObject().put(ItemSyncEngine.FIELD_ACCEPTED, changes.length()));
+        } catch (JSONException e) {
+            throw new IOException("Malformed push", e);
+        }
+    }
+
+    @Override
+    public synchronized byte[] pull(byte[] request) throws IOException {
+        mRequests++;
+        try {
+            JSONObject body = decode(request);
+            String device = body.getString(ItemSyncEngine.FIELD_DEVICE);
+            long checkpoint = body.getLong(ItemSyncEngine.FIELD_AFTER);
+            int limit = body.getInt(ItemSyncEngine.FIELD_LIMIT);
+
+            JSONArray changes = new JSONArray();
+            boolean more = false;
+            for (Map.Entry<Long, Entry> entry : mEntries.tailMap(checkpoint, false).entrySet()) {
+                if (changes.length() == limit) {
+                    more = true;
+                    break;
+                }
+                // The device's own changes are passed over but still move its checkpoint
+                checkpoint = entry.getKey();
+                if (!device.equals(entry.getValue().device)) {
+                    changes.put(entry.getValue().change);
+                }
+            }
+            return encode(new JSONObject()
+                    .put(ItemSyncEngine.FIELD_CHECKPOINT, checkpoint)
+                    .put(ItemSyncEngine.FIELD_MORE, more)
+                    .put(ItemSyncEngine.FIELD_CHANGES, changes));
+        } catch (JSONException e) {
+            throw new IOException("Malformed pull", e);
+        }
+    }
+
+    /**
+     * Returns the number of items stored, deleted ones included.
+     */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the number of pushes and pulls served.
+     */
+    synchronized int getRequests() {
+        return mRequests;
+    }
+
+    private static JSONObject decode(byte[] bytes) throws IOException, JSONException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                text.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return new JSONObject(new String(text.toByteArray(), UTF_8));
+    }
+
+    private static byte[] encode(JSONObject body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(body.toString().getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,236 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for the schema and migrations of {@link ItemDbHelper}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemDbHelperTest {
+    /** Queries the indexes of version 3 should serve, each with the index it should use */
+    private static final String[][] INDEXED_QUERIES = {
+            { "SELECT _id, name FROM items ORDER BY name LIMIT 50", "items_name_index" },
+            { "SELECT _id, name FROM items ORDER BY price DESC LIMIT 50", "items_price_index" },
+            { "SELECT COUNT(*) FROM items WHERE quantity = 0", "items_quantity_index" },
+            { "SELECT _id, name FROM items WHERE price BETWEEN 10 AND 10.5", "items_price_index" },
+    };
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void migrations_areOrderedAndEndAtDatabaseVersion() throws Exception {
+        int version = 1;
+        for (ItemDbHelper.Migration migration : ItemDbHelper.MIGRATIONS) {
+            assertEquals(version + 1, migration.version);
+            version = migration.version;
+        }
+        assertEquals(ItemDbHelper.DATABASE_VERSION, version);
+    }
+
+    @Test
+    public void upgradeFromVersion1_matchesNewSchemaAndKeepsData() throws Exception {
+        // Schema of a database created from scratch
+        ItemDbHelper helper = new ItemDbHelper(mContext);
+        List<String> createdSchema = readSchema(helper.getReadableDatabase());
+        helper.close();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        // Schema of a version 1 database holding items, after upgrading
+        SQLiteDatabase db = createVersion1Database();
+        fillItems(db, 100);
+        db.close();
+        helper = new ItemDbHelper(mContext);
+        SQLiteDatabase upgraded = helper.getReadableDatabase();
+
+        assertEquals(createdSchema, readSchema(upgraded));
+        assertEquals(100, DatabaseUtils.queryNumEntries(upgraded, ItemEntry.TABLE_NAME));
+
+        // The first item's price was converted to exact cents by migration 4
+        Random random = new Random(42);
+        random.nextInt();
+        random.nextInt(100);
+        assertEquals(random.nextInt(100000), DatabaseUtils.longForQuery(upgraded,
+                "SELECT price FROM items WHERE _id = 1", null));
+        helper.close();
+    }
+
+    @Test
+    public void upgradeToVersion3_servesSortedAndFilteredQueriesFromIndexes() throws Exception {
+        SQLiteDatabase db = createVersion1Database();
+        fillItems(db, 100);
+        for (String[] query : INDEXED_QUERIES) {
+            String plan = explain(db, query[0]);
+            assertFalse(query[0] + " uses an index before version 3: " + plan,
+                    plan.contains("INDEX"));
+        }
+
+        // Upgrade just this database to version 3, as onUpgrade would
+        db.beginTransaction();
+        try {
+            ItemDbHelper.migrate(db, 1, 3);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Each query now searches or walks its index instead of scanning and sorting the table
+        for (String[] query : INDEXED_QUERIES) {
+            String plan = explain(db, query[0]);
+            assertTrue(query[0] + " does not use " + query[1] + ": " + plan,
+                    plan.matches("(?s).*USING (COVERING )?INDEX " + query[1] + "\\b.*"));
+            assertFalse(query[0] + " sorts in a temporary table: " + plan,
+                    plan.contains("TEMP B-TREE"));
+        }
+        db.close();
+    }
+
+    @Test
+    public void writeAheadLogging_readersAreNotBlockedByWriter() throws Exception {
+        ItemDbHelper helper = new ItemDbHelper(mContext);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        assertTrue(db.isWriteAheadLoggingEnabled());
+        fillItems(db, 10);
+
+        final CountDownLatch writerInTransaction = new CountDownLatch(1);
+        final CountDownLatch readerDone = new CountDownLatch(1);
+        final boolean[] readerFinishedFirst = new boolean[1];
+
+        // Holds a write transaction open until the reader is done, or for at most 5 seconds
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.beginTransactionNonExclusive();
+                try {
+                    fillItems(db, 1);
+                    writerInTransaction.countDown();
+                    readerFinishedFirst[0] = readerDone.await(5, TimeUnit.SECONDS);
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+        writer.start();
+        writerInTransaction.await();
+
+        // Reads while the write is still in progress
+        long count = DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME);
+        readerDone.countDown();
+        writer.join();
+
+        // The reader finished without waiting and saw the last committed state
+        assertTrue(readerFinishedFirst[0]);
+        assertEquals(10, count);
+        assertEquals(11, DatabaseUtils.queryNumEntries(db, ItemEntry.TABLE_NAME));
+        assertTrue(helper.checkpoint());
+        helper.close();
+    }
+
+    /**
+     * Creates the test database at version 1, as the first release of the app did.
+     */
+    private SQLiteDatabase createVersion1Database() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(ItemDbHelper.DATABASE_NAME, 0, null);
+        ItemDbHelper.createVersion1Schema(db);
+        db.setVersion(1);
+        return db;
+    }
+
+    /**
+     * Inserts the given number of synthetic items in one transaction.
+     */
+    private static void fillItems(SQLiteDatabase db, int rows) {
+        Random random = new Random(42);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + ItemEntry.TABLE_NAME + " ("
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                + ItemEntry.COLUMN_ITEM_PRICE + ", " + ItemEntry.COLUMN_ITEM_DESCRIPTION
+                + ") VALUES (?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                insert.bindString(1, "Item " + Integer.toHexString(random.nextInt()));
+                insert.bindLong(2, random.nextInt(100));
+                insert.bindDouble(3, random.nextInt(100000) / 100.0);
+                insert.bindString(4, "Synthetic item " + i);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Returns the query plan of the given query, one step per line.
+     */
+    private static String explain(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the definition of every table, index and trigger in the database.
+     */
+    private static List<String> readSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%' AND name NOT LIKE 'android_%'"
+                + " ORDER BY type, name", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1) + " " + cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+}
@@ -0,0 +1,156 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for {@link ItemExporter} and the export URI, run against a separate
+ * test database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemExporterTest {
+    /** Enough items to span several pages, with a partly filled last page */
+    private static final int ITEMS = ItemExporter.PAGE_SIZE * 2 + 5;
+
+    /** Name that needs quoting in CSV and escaping in JSON */
+    private static final String AWKWARD_NAME = "Bolt, \"hex\"\nM8";
+
+    private Context mContext;
+    private ItemProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mProvider = new ItemProvider();
+        mProvider.attachInfo(mContext, null);
+
+        ContentValues[] values = new ContentValues[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(ItemEntry.COLUMN_ITEM_NAME, i == 0 ? AWKWARD_NAME : "Item " + i);
+            values[i].put(ItemEntry.COLUMN_ITEM_QUANTITY, i);
+            values[i].put(ItemEntry.COLUMN_ITEM_PRICE, 1250L);
+        }
+        mProvider.bulkInsert(ItemEntry.CONTENT_URI, values);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProvider.shutdown();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void openFile_exportsEveryItemAsCsv() throws Exception {
+        String csv = readExport(ItemEntry.FORMAT_CSV);
+
+        CsvReader reader = new CsvReader(new StringReader(csv));
+        List<String> fields = new ArrayList<>();
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("name", "quantity", "price", "description"), fields);
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList(AWKWARD_NAME, "0", "12.50", ""), fields);
+
+        int records = 1;
+        while (reader.readRecord(fields)) {
+            records++;
+        }
+        assertEquals(ITEMS, records);
+        assertEquals("Item " + (ITEMS - 1), fields.get(0));
+    }
+
+    @Test
+    public void openFile_exportsEveryItemAsJson() throws Exception {
+        JSONArray items = new JSONArray(readExport(ItemEntry.FORMAT_JSON));
+
+        assertEquals(ITEMS, items.length());
+        JSONObject first = items.getJSONObject(0);
+        assertEquals(AWKWARD_NAME, first.getString(ItemEntry.COLUMN_ITEM_NAME));
+        assertEquals(1250, first.getLong(ItemEntry.COLUMN_ITEM_PRICE));
+        assertTrue(first.isNull(ItemEntry.COLUMN_ITEM_DESCRIPTION));
+
+        // Items are in ID order
+        for (int i = 1; i < ITEMS; i++) {
+            assertTrue(items.getJSONObject(i).getLong(ItemEntry._ID)
+                    > items.getJSONObject(i - 1).getLong(ItemEntry._ID));
+        }
+    }
+
+    @Test
+    public void export_csvCanBeImportedAgain() throws Exception {
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        assertEquals(ITEMS, new ItemExporter(mProvider).export(original, ItemEntry.FORMAT_CSV));
+
+        // Imports the file into a second, empty database and exports that again
+        Context copyContext = new RenamingDelegatingContext(
+                InstrumentationRegistry.getTargetContext(), "test_copy_");
+        copyContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+        ItemProvider copyProvider = new ItemProvider();
+        copyProvider.attachInfo(copyContext, null);
+        MockContentResolver copyResolver = new MockContentResolver();
+        copyResolver.addProvider(ItemContract.CONTENT_AUTHORITY, copyProvider);
+        try {
+            ItemImporter.Result result = new ItemImporter(copyResolver).importItems(
+                    new ByteArrayInputStream(original.toByteArray()), null);
+            assertEquals(ITEMS, result.imported);
+            assertEquals(0, result.rejected);
+
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            new ItemExporter(copyProvider).export(copy, ItemEntry.FORMAT_CSV);
+            assertEquals(original.toString("UTF-8"), copy.toString("UTF-8"));
+        } finally {
+            copyProvider.shutdown();
+            copyContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Opens the export URI in the given format and reads it to the end.
+     */
+    private String readExport(String format) throws Exception {
+        ParcelFileDescriptor pipe = mProvider.openFile(ItemEntry.buildExportUri(format), "r");
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe);
+        InputStreamReader reader = new InputStreamReader(in, Charset.forName("UTF-8"));
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
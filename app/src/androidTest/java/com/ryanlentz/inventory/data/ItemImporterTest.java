@@ -0,0 +1,253 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumentation tests for {@link ItemImporter}, run against a separate test database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemImporterTest {
+    private static final String LOG_TAG = ItemImporterTest.class.getSimpleName();
+
+    /** Number of rows imported by the benchmark */
+    private static final int BENCHMARK_ROWS = 1000000;
+
+    private Context mContext;
+    private ItemProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mProvider = new ItemProvider();
+        mProvider.attachInfo(mContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ItemContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProvider.shutdown();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void importItems_insertsValidRowsAndReportsTheOthers() throws Exception {
+        String csv = "Name,Price,Quantity,Description\n"
+                + "Widget,1.50,3,\"Small, blue\"\n"
+                + "\n"
+                + ",2.00,1,No name\n"
+                + "Gadget,abc,1,Bad price\n"
+                + "Gizmo,2,-1,Negative quantity\n"
+                + "Doohickey,0.99,7\n";
+
+        ItemImporter.Result result = new ItemImporter(mResolver).importItems(toStream(csv), null);
+
+        assertEquals(2, result.imported);
+        assertEquals(3, result.rejected);
+        assertEquals(3, result.errors.size());
+        assertEquals(4, result.errors.get(0).line);
+        assertEquals(5, result.errors.get(1).line);
+        assertEquals(6, result.errors.get(2).line);
+
+        Cursor cursor = mProvider.query(ItemEntry.CONTENT_URI,
+                new String[] { ItemEntry.COLUMN_ITEM_NAME, ItemEntry.COLUMN_ITEM_PRICE,
+                        ItemEntry.COLUMN_ITEM_QUANTITY, ItemEntry.COLUMN_ITEM_DESCRIPTION },
+                null, null, ItemEntry._ID);
+        assertNotNull(cursor);
+        try {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Widget", cursor.getString(0));
+            assertEquals(150, cursor.getLong(1));
+            assertEquals(3, cursor.getInt(2));
+            assertEquals("Small, blue", cursor.getString(3));
+            cursor.moveToNext();
+            assertEquals("Doohickey", cursor.getString(0));
+            assertEquals(99, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void importItems_rejectsRowsWhoseSkuIsTaken() throws Exception {
+        ContentValues existing = new ContentValues();
+        existing.put(ItemEntry.COLUMN_ITEM_NAME, "Gizmo");
+        existing.put(ItemEntry.COLUMN_ITEM_QUANTITY, 1);
+        existing.put(ItemEntry.COLUMN_ITEM_PRICE, 99L);
+        existing.put(ItemEntry.COLUMN_ITEM_SKU, "5901234123457");
+        assertNotNull(mResolver.insert(ItemEntry.CONTENT_URI, existing));
+
+        String csv = "name,quantity,price,sku\n"
+                + "Widget,3,1.50,4006381333931\n"
+                + "Gadget,1,2.75,4006381333931\n"
+                + "Bad price,1,abc,\n"
+                + "Gizmo copy,2,0.99,5901234123457\n"
+                + "Doohickey,7,0.99,\n";
+
+        // The repeated and the taken SKU are rejected like any bad row, and the rest is written
+        ItemImporter.Result result = new ItemImporter(mResolver).importItems(toStream(csv), null);
+        assertEquals(2, result.imported);
+        assertEquals(3, result.rejected);
+        assertEquals(3, result.errors.size());
+        assertEquals(3, result.errors.get(0).line);
+        assertEquals(4, result.errors.get(1).line);
+        assertEquals(5, result.errors.get(2).line);
+        assertEquals(3, countItems());
+
+        Cursor cursor = mProvider.query(ItemEntry.buildSkuUri("4006381333931"),
+                new String[] { ItemEntry.COLUMN_ITEM_NAME }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Widget", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void importItems_rejectsFileWithoutRequiredColumn() throws Exception {
+        new ItemImporter(mResolver).importItems(toStream("name,quantity\nWidget,1\n"), null);
+    }
+
+    @Test
+    public void importItems_stopsWhenCancelled() throws Exception {
+        final ItemImporter importer = new ItemImporter(mResolver);
+        ItemImporter.Result result = importer.importItems(
+                new GeneratedCsvStream(ItemImporter.BATCH_SIZE * 10),
+                new ItemImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int imported, int rejected) {
+                        importer.cancel();
+                    }
+                });
+
+        // Only the batch written before the cancellation is kept
+        assertTrue(result.cancelled);
+        assertEquals(ItemImporter.BATCH_SIZE, result.imported);
+        assertEquals(ItemImporter.BATCH_SIZE, countItems());
+    }
+
+    @Test
+    public void importItems_benchmarkOneMillionRows() throws Exception {
+        // Only runs with the "benchmark" instrumentation argument, which -Pbenchmark sets
+        assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString(
+                "benchmark")));
+
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        final long baseHeap = runtime.totalMemory() - runtime.freeMemory();
+        final long[] peakHeap = { baseHeap };
+
+        long start = System.nanoTime();
+        ItemImporter.Result result = new ItemImporter(mResolver).importItems(
+                new GeneratedCsvStream(BENCHMARK_ROWS), new ItemImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int imported, int rejected) {
+                        long heap = runtime.totalMemory() - runtime.freeMemory();
+                        peakHeap[0] = Math.max(peakHeap[0], heap);
+                    }
+                });
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(BENCHMARK_ROWS, result.imported);
+        assertEquals(0, result.rejected);
+        assertEquals(BENCHMARK_ROWS, countItems());
+        Log.i(LOG_TAG, String.format("Imported %d rows in %.1f s: %.0f rows/s, peak heap %d KB"
+                        + " (%d KB above the start)",
+                BENCHMARK_ROWS, elapsed / 1e9, BENCHMARK_ROWS / (elapsed / 1e9),
+                peakHeap[0] / 1024, (peakHeap[0] - baseHeap) / 1024));
+    }
+
+    private int countItems() {
+        Cursor cursor = mProvider.query(StatsEntry.CONTENT_URI,
+                new String[] { StatsEntry.COLUMN_ITEM_COUNT }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static InputStream toStream(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(Charset.forName("UTF-8")));
+    }
+
+    /**
+     * A CSV file of generated items that is produced one row at a time as it is read, so even
+     * the benchmark file never exists in memory or on disk.
+     */
+    private static class GeneratedCsvStream extends InputStream {
+        private final int mRows;
+        private int mNextRow = -1;
+        private byte[] mLine = new byte[0];
+        private int mPosition;
+
+        GeneratedCsvStream(int rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition == mLine.length) {
+                if (mNextRow >= mRows) {
+                    return -1;
+                }
+                String line = mNextRow < 0 ? "name,quantity,price,description\n"
+                        : "Item " + mNextRow + "," + mNextRow % 100 + ","
+                                + mNextRow % 1000 + "." + mNextRow % 10 + "5,"
+                                + "\"Generated item, number " + mNextRow + "\"\n";
+                mLine = line.getBytes(Charset.forName("UTF-8"));
+                mPosition = 0;
+                mNextRow++;
+            }
+            return mLine[mPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            // Fills as much as is asked for, so the reader is not called once per byte
+            int count = 0;
+            while (count < length) {
+                int b = read();
+                if (b == -1) {
+                    return count == 0 ? -1 : count;
+                }
+                buffer[offset + count++] = (byte) b;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for {@link ItemPhotos}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemPhotosTest {
+    private Context mContext;
+    private File mPicture;
+    private String mPhoto;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mPicture = new File(mContext.getCacheDir(), "test_picture.jpg");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPicture.delete();
+        if (mPhoto != null) {
+            ItemPhotos.deletePhoto(mContext, mPhoto);
+        }
+    }
+
+    @Test
+    public void savePhoto_scalesDownLargePictures() throws Exception {
+        writePicture(4000, 3000);
+
+        mPhoto = ItemPhotos.savePhoto(mContext, Uri.fromFile(mPicture));
+        assertTrue(ItemPhotos.isValidName(mPhoto));
+
+        BitmapFactory.Options options = readBounds(ItemPhotos.getPhotoFile(mContext, mPhoto));
+        assertEquals(ItemPhotos.MAX_PHOTO_SIZE, options.outWidth);
+        assertEquals(ItemPhotos.MAX_PHOTO_SIZE * 3 / 4, options.outHeight);
+
+        ItemPhotos.deletePhoto(mContext, mPhoto);
+        assertFalse(ItemPhotos.getPhotoFile(mContext, mPhoto).exists());
+    }
+
+    @Test
+    public void decodeSampled_neverDecodesSmallerThanRequested() throws Exception {
+        writePicture(1000, 500);
+
+        Bitmap bitmap = ItemPhotos.decodeSampled(mPicture, 120, 120);
+        assertNotNull(bitmap);
+        assertEquals(250, bitmap.getWidth());
+        assertEquals(125, bitmap.getHeight());
+        bitmap.recycle();
+    }
+
+    @Test
+    public void calculateInSampleSize_keepsBothSidesAtLeastRequested() throws Exception {
+        assertEquals(1, ItemPhotos.calculateInSampleSize(100, 100, 100, 100));
+        assertEquals(1, ItemPhotos.calculateInSampleSize(199, 400, 100, 100));
+        assertEquals(2, ItemPhotos.calculateInSampleSize(200, 400, 100, 100));
+        assertEquals(16, ItemPhotos.calculateInSampleSize(4000, 3000, 160, 160));
+    }
+
+    @Test
+    public void names_neverLeaveThePhotoDirectory() throws Exception {
+        assertTrue(ItemPhotos.isValidName("0f1e2d3c-4b5a-6978-8796-a5b4c3d2e1f0.jpg"));
+        assertFalse(ItemPhotos.isValidName(null));
+        assertFalse(ItemPhotos.isValidName("../databases/inventory.db"));
+        assertFalse(ItemPhotos.isValidName("photos/abc.jpg"));
+        assertFalse(ItemPhotos.isValidName(".jpg"));
+    }
+
+    /**
+     * Writes a JPEG picture of the given size to the test picture file.
+     */
+    private void writePicture(int width, int height) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        OutputStream out = new FileOutputStream(mPicture);
+        try {
+            assertTrue(bitmap.compress(Bitmap.CompressFormat.JPEG, 80, out));
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    private static BitmapFactory.Options readBounds(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        return options;
+    }
+}
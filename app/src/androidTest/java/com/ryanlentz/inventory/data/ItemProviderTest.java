@@ -0,0 +1,1238 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.MovementEntry;
+import com.ryanlentz.inventory.data.ItemContract.StatsEntry;
+import com.ryanlentz.inventory.data.ItemContract.StockEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Instrumentation tests for {@link ItemProvider}, run against a separate test database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemProviderTest {
+    /** Number of threads selling at the same time */
+    private static final int THREADS = 8;
+
+    /** Number of sales each thread attempts */
+    private static final int SALES_PER_THREAD = 50;
+
+    /** Time to wait for change notifications to be delivered */
+    private static final long NOTIFICATION_WAIT_MILLIS = 500;
+
+    private Context mContext;
+    private ItemProvider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mProvider = new ItemProvider();
+        mProvider.attachInfo(mContext, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProvider.shutdown();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void sell_decrementsAndReturnsQuantity() throws Exception {
+        long id = insertItem(2);
+
+        Bundle result = sell(id);
+        assertEquals(true, result.getBoolean(ItemContract.EXTRA_SOLD));
+        assertEquals(1, result.getInt(ItemContract.EXTRA_QUANTITY));
+
+        result = sell(id);
+        assertEquals(true, result.getBoolean(ItemContract.EXTRA_SOLD));
+        assertEquals(0, result.getInt(ItemContract.EXTRA_QUANTITY));
+
+        // Out of stock, so the quantity stays at zero
+        result = sell(id);
+        assertFalse(result.getBoolean(ItemContract.EXTRA_SOLD));
+        assertEquals(0, result.getInt(ItemContract.EXTRA_QUANTITY));
+    }
+
+    @Test
+    public void sell_concurrentSalesAreNeverLost() throws Exception {
+        // Enough stock for every attempt, so every sale must be counted exactly once
+        int initialQuantity = THREADS * SALES_PER_THREAD + 10;
+        long id = insertItem(initialQuantity);
+
+        int sold = sellConcurrently(id);
+
+        assertEquals(THREADS * SALES_PER_THREAD, sold);
+        assertEquals(10, queryQuantity(id));
+    }
+
+    @Test
+    public void sell_concurrentSalesNeverOversell() throws Exception {
+        // Less stock than attempts, so exactly the stock on hand may be sold
+        int initialQuantity = THREADS * SALES_PER_THREAD / 4;
+        long id = insertItem(initialQuantity);
+
+        int sold = sellConcurrently(id);
+
+        assertEquals(initialQuantity, sold);
+        assertEquals(0, queryQuantity(id));
+    }
+
+    @Test
+    public void search_followsInsertsUpdatesAndDeletes() throws Exception {
+        long id = insertItem("Blue widget", 1);
+        insertItem("Red gadget", 1);
+
+        assertEquals(1, countSearchResults("wid"));
+        assertEquals(0, countSearchResults("kazoo"));
+
+        // Renaming the item re-indexes it
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Blue kazoo");
+        mProvider.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), values, null, null);
+        assertEquals(0, countSearchResults("wid"));
+        assertEquals(1, countSearchResults("kazoo"));
+
+        // Deleting the item removes it from the index
+        mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), null, null);
+        assertEquals(0, countSearchResults("kazoo"));
+
+        // Search operators typed by the user are ignored rather than breaking the query
+        assertEquals(1, countSearchResults("\"red\" -"));
+    }
+
+    @Test
+    public void search_ranksByTheNumberOfHits() throws Exception {
+        insertItem("Blue widget", 1);
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            description.append("plain ");
+        }
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Gadget");
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 1);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+        values.put(ItemEntry.COLUMN_ITEM_DESCRIPTION, description.append("bluish").toString());
+        mProvider.insert(ItemEntry.CONTENT_URI, values);
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Blue lamp");
+        values.put(ItemEntry.COLUMN_ITEM_DESCRIPTION, "Blue shade");
+        mProvider.insert(ItemEntry.CONTENT_URI, values);
+
+        // Two hits beat one, and a hit far into the text counts the same as one at the start
+        Cursor cursor = mProvider.query(ItemEntry.buildSearchUri("bl"),
+                new String[] { ItemEntry.COLUMN_ITEM_NAME }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            StringBuilder names = new StringBuilder();
+            while (cursor.moveToNext()) {
+                names.append(names.length() == 0 ? "" : ",").append(cursor.getString(0));
+            }
+            assertEquals("Blue lamp,Blue widget,Gadget", names.toString());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void stats_followInsertsSalesUpdatesAndDeletes() throws Exception {
+        long id = insertItem(2);
+        insertItem(0);
+        assertStats(2, 2, 300, 1);
+
+        sell(id);
+        sell(id);
+        assertStats(2, 0, 0, 2);
+
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 4);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 25L);
+        mProvider.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), values, null, null);
+        assertStats(2, 4, 100, 1);
+
+        mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), null, null);
+        assertStats(1, 0, 0, 1);
+    }
+
+    @Test
+    public void ledger_recordsSalesReceiptsAndAdjustments() throws Exception {
+        long start = System.currentTimeMillis();
+        long id = insertItem(2);
+
+        sell(id);
+        Bundle extras = new Bundle();
+        extras.putInt(ItemContract.EXTRA_COUNT, 5);
+        Bundle result = mProvider.call(ItemContract.METHOD_RECEIVE, String.valueOf(id), extras);
+        assertEquals(6, result.getInt(ItemContract.EXTRA_QUANTITY));
+
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 3);
+        mProvider.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), values, null, null);
+        assertEquals(3, queryQuantity(id));
+
+        // Every change is in the ledger, in order, and none is outside the window
+        Cursor cursor = mProvider.query(
+                MovementEntry.buildWindowUri(start, System.currentTimeMillis() + 1),
+                new String[] { MovementEntry.COLUMN_DELTA, MovementEntry.COLUMN_KIND },
+                MovementEntry.COLUMN_ITEM_ID + "=?", new String[] { String.valueOf(id) }, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToNext();
+            assertEquals(-1, cursor.getInt(0));
+            assertEquals(MovementEntry.KIND_SALE, cursor.getInt(1));
+            cursor.moveToNext();
+            assertEquals(5, cursor.getInt(0));
+            assertEquals(MovementEntry.KIND_RECEIPT, cursor.getInt(1));
+            cursor.moveToNext();
+            assertEquals(-3, cursor.getInt(0));
+            assertEquals(MovementEntry.KIND_ADJUSTMENT, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mProvider.query(MovementEntry.buildWindowUri(0, start), null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void compact_keepsQuantitiesAndStats() throws Exception {
+        long id = insertItem(5);
+        long otherId = insertItem(1);
+        sell(id);
+        sell(otherId);
+        assertStats(2, 4, 600, 1);
+
+        Bundle result = mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        assertEquals(2, result.getInt(ItemContract.EXTRA_FOLDED));
+        assertEquals(4, queryQuantity(id));
+        assertEquals(0, queryQuantity(otherId));
+        assertStats(2, 4, 600, 1);
+
+        // Nothing left to fold, and later movements still count
+        result = mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        assertEquals(0, result.getInt(ItemContract.EXTRA_FOLDED));
+        sell(id);
+        assertEquals(3, queryQuantity(id));
+
+        mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), null, null);
+        assertStats(1, 0, 0, 1);
+    }
+
+    @Test
+    public void delete_notifiesOnceWithTheItemUri() throws Exception {
+        final long id = insertItem(1);
+        Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+
+        List<Uri> changes = recordChanges(new Runnable() {
+            @Override
+            public void run() {
+                mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), null, null);
+            }
+        });
+
+        assertEquals(Collections.singletonList(itemUri), changes);
+        assertEquals(id, ItemEntry.getChangedItemId(changes.get(0)));
+    }
+
+    @Test
+    public void statsAndSearch_followSalesOfSingleItems() throws Exception {
+        long id = insertItem("Widget", 2);
+        Cursor stats = mProvider.query(StatsEntry.CONTENT_URI, null, null, null, null);
+        Cursor search = mProvider.query(ItemEntry.buildSearchUri("widget"), null, null, null,
+                null);
+        assertNotNull(stats);
+        assertNotNull(search);
+        try {
+            // A sale is notified on the item's URI, which must still reach both cursors
+            final CountDownLatch changed = new CountDownLatch(2);
+            ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    changed.countDown();
+                }
+            };
+            stats.registerContentObserver(observer);
+            search.registerContentObserver(observer);
+            sell(id);
+            assertTrue(changed.await(NOTIFICATION_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            stats.close();
+            search.close();
+        }
+    }
+
+    @Test
+    public void bulkInsert_notifiesTheListOnce() throws Exception {
+        final ContentValues[] values = new ContentValues[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+            values[i].put(ItemEntry.COLUMN_ITEM_QUANTITY, i);
+            values[i].put(ItemEntry.COLUMN_ITEM_PRICE, 100L);
+        }
+
+        List<Uri> changes = recordChanges(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(values.length, mProvider.bulkInsert(ItemEntry.CONTENT_URI, values));
+            }
+        });
+
+        assertEquals(Collections.singletonList(ItemEntry.CONTENT_URI), changes);
+        assertEquals(-1, ItemEntry.getChangedItemId(changes.get(0)));
+    }
+
+    @Test
+    public void bulkInsert_rollsBackEveryRowWhenOneIsInvalid() throws Exception {
+        final ContentValues[] values = new ContentValues[5];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+            values[i].put(ItemEntry.COLUMN_ITEM_QUANTITY, 1);
+            values[i].put(ItemEntry.COLUMN_ITEM_PRICE, 100L);
+        }
+        values[3].remove(ItemEntry.COLUMN_ITEM_PRICE);
+
+        List<Uri> changes = recordChanges(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mProvider.bulkInsert(ItemEntry.CONTENT_URI, values);
+                    fail("Row without a price was accepted in a bulk insert");
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        });
+
+        // The rows before the invalid one are gone too, and nobody was told of them
+        assertEquals(Collections.<Uri>emptyList(), changes);
+        assertStats(0, 0, 0, 0);
+        assertEquals(0, countSearchResults("item"));
+    }
+
+    @Test
+    public void applyBatch_rollsBackEveryOperationWhenOneFails() throws Exception {
+        long id = insertItem("Widget", 5);
+        final Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+
+        List<Uri> changes = recordChanges(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                operations.add(ContentProviderOperation.newUpdate(itemUri)
+                        .withValue(ItemEntry.COLUMN_ITEM_NAME, "Renamed")
+                        .withValue(ItemEntry.COLUMN_ITEM_QUANTITY, 9).build());
+                operations.add(ContentProviderOperation.newInsert(ItemEntry.CONTENT_URI)
+                        .withValue(ItemEntry.COLUMN_ITEM_NAME, "Gadget")
+                        .withValue(ItemEntry.COLUMN_ITEM_QUANTITY, 2)
+                        .withValue(ItemEntry.COLUMN_ITEM_PRICE, 100L).build());
+                // Fails in the middle of the batch: the update matches one row, not two
+                operations.add(ContentProviderOperation.newUpdate(itemUri)
+                        .withValue(ItemEntry.COLUMN_ITEM_PRICE, 275L)
+                        .withExpectedCount(2).build());
+                operations.add(ContentProviderOperation.newDelete(itemUri).build());
+                try {
+                    mProvider.applyBatch(operations);
+                    fail("Batch with a failing operation was applied");
+                } catch (OperationApplicationException expected) {
+                }
+            }
+        });
+
+        // Neither the item's row, nor the ledger, nor the new item was written
+        assertEquals(Collections.<Uri>emptyList(), changes);
+        assertEquals("Widget|5|150", readItem(id));
+        assertEquals(readItemUncached(id), readItem(id));
+        assertStats(1, 5, 750, 0);
+        assertEquals(0, countSearchResults("gadget"));
+        Cursor cursor = mProvider.query(MovementEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void applyBatch_notifiesEachItemOnceOrTheListForLargeBatches() throws Exception {
+        final long[] ids = new long[11];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = insertItem("Item " + i, 1);
+        }
+
+        // Up to ten items, each changed item is notified once, however often it was written
+        List<Uri> changes = recordChanges(new Runnable() {
+            @Override
+            public void run() {
+                applyRenames(ids, 10, 2);
+            }
+        });
+        List<Uri> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, ids[i]));
+        }
+        assertEquals(expected, changes);
+
+        // One more item and the whole list is notified once instead
+        changes = recordChanges(new Runnable() {
+            @Override
+            public void run() {
+                applyRenames(ids, 11, 1);
+            }
+        });
+        assertEquals(Collections.singletonList(ItemEntry.CONTENT_URI), changes);
+    }
+
+    @Test
+    public void rowCache_neverServesStaleRowsAfterWrites() throws Exception {
+        long id = insertItem(5);
+        long otherId = insertItem("Gadget", 3);
+        Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+
+        // The second read of the item is served from the cache
+        assertEquals(readItemUncached(id), readItem(id));
+        assertEquals(readItemUncached(id), readItem(id));
+        Bundle stats = mProvider.call(ItemContract.METHOD_CACHE_STATS, null, null);
+        assertNotNull(stats);
+        assertEquals(1, stats.getInt(ItemContract.EXTRA_CACHE_HITS));
+        assertEquals(1, stats.getInt(ItemContract.EXTRA_CACHE_MISSES));
+        assertTrue(stats.getInt(ItemContract.EXTRA_CACHE_SIZE) > 0);
+
+        // Every kind of write is seen by the next read
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Renamed");
+        mProvider.update(itemUri, values, null, null);
+        assertEquals("Renamed|5|150", readItem(id));
+
+        values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 275L);
+        mProvider.update(ItemEntry.CONTENT_URI, values, ItemEntry.COLUMN_ITEM_PRICE + "=?",
+                new String[] { "150" });
+        assertEquals("Renamed|5|275", readItem(id));
+
+        values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 9);
+        mProvider.update(itemUri, values, null, null);
+        assertEquals("Renamed|9|275", readItem(id));
+
+        sell(id);
+        assertEquals("Renamed|8|275", readItem(id));
+
+        Bundle extras = new Bundle();
+        extras.putInt(ItemContract.EXTRA_COUNT, 4);
+        mProvider.call(ItemContract.METHOD_RECEIVE, String.valueOf(id), extras);
+        assertEquals("Renamed|12|275", readItem(id));
+
+        extras = new Bundle();
+        extras.putLongArray(ItemContract.EXTRA_ITEM_IDS, new long[] { otherId, id });
+        extras.putIntArray(ItemContract.EXTRA_COUNTS, new int[] { 1, 2 });
+        mProvider.call(ItemContract.METHOD_SELL_BATCH, null, extras);
+        assertEquals("Renamed|10|275", readItem(id));
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(itemUri)
+                .withValue(ItemEntry.COLUMN_ITEM_NAME, "Batched").build());
+        mProvider.applyBatch(operations);
+        assertEquals("Batched|10|275", readItem(id));
+
+        // Compacting the ledger changes no current quantity
+        mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        assertEquals("Batched|10|275", readItem(id));
+        assertEquals(readItemUncached(otherId), readItem(otherId));
+
+        mProvider.delete(itemUri, null, null);
+        assertNull(readItem(id));
+    }
+
+    @Test
+    public void metrics_recordCallsByOperationAndUri() throws Exception {
+        long id = insertItem(5);
+        queryQuantity(id);
+        queryQuantity(id);
+        mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), null, null);
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(ItemContract.EXTRA_RESET, true);
+        Bundle metrics = mProvider.call(ItemContract.METHOD_METRICS, null, extras);
+        assertNotNull(metrics);
+        assertEquals(3, metrics.size());
+
+        Bundle queries = metrics.getBundle("query/item");
+        assertNotNull(queries);
+        assertEquals(2, queries.getLong(ItemContract.METRIC_COUNT));
+        // Query rows are not counted, so recording does not run the cursors
+        assertEquals(0, queries.getLong(ItemContract.METRIC_ROWS));
+        assertTrue(queries.getLong(ItemContract.METRIC_TOTAL_NANOS) > 0);
+        long histogramCount = 0;
+        for (long calls : queries.getLongArray(ItemContract.METRIC_LATENCY_HISTOGRAM)) {
+            histogramCount += calls;
+        }
+        assertEquals(2, histogramCount);
+
+        assertEquals(1, metrics.getBundle("insert/items").getLong(ItemContract.METRIC_ROWS));
+        assertEquals(1, metrics.getBundle("delete/item").getLong(ItemContract.METRIC_ROWS));
+
+        // The metrics were reset after they were read
+        metrics = mProvider.call(ItemContract.METHOD_METRICS, null, null);
+        assertNotNull(metrics);
+        assertTrue(metrics.isEmpty());
+    }
+
+    @Test
+    public void metrics_recordBatchesAndProviderMethods() throws Exception {
+        long id = insertItem(5);
+        long otherId = insertItem("Gadget", 3);
+        Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+        sell(id);
+        Bundle extras = new Bundle();
+        extras.putLongArray(ItemContract.EXTRA_ITEM_IDS, new long[] { id, otherId });
+        extras.putIntArray(ItemContract.EXTRA_COUNTS, new int[] { 1, 1 });
+        mProvider.call(ItemContract.METHOD_SELL_BATCH, null, extras);
+        mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(itemUri)
+                .withValue(ItemEntry.COLUMN_ITEM_NAME, "Renamed").build());
+        operations.add(ContentProviderOperation.newUpdate(itemUri)
+                .withValue(ItemEntry.COLUMN_ITEM_PRICE, 275L).build());
+        mProvider.applyBatch(operations);
+
+        // Reading the metrics is not recorded itself
+        Bundle metrics = mProvider.call(ItemContract.METHOD_METRICS, null, null);
+        assertNotNull(metrics);
+        assertEquals(6, metrics.size());
+        assertEquals(1, metrics.getBundle("sell/item").getLong(ItemContract.METRIC_COUNT));
+        assertEquals(2, metrics.getBundle("sell_batch/items").getLong(ItemContract.METRIC_ROWS));
+        assertEquals(3, metrics.getBundle("compact/movements").getLong(ItemContract.METRIC_ROWS));
+        Bundle batches = metrics.getBundle("apply_batch/items");
+        assertEquals(1, batches.getLong(ItemContract.METRIC_COUNT));
+        assertEquals(2, batches.getLong(ItemContract.METRIC_ROWS));
+        assertTrue(batches.getLong(ItemContract.METRIC_TOTAL_NANOS) > 0);
+        // The operations of the batch are recorded one by one as well
+        assertEquals(2, metrics.getBundle("update/item").getLong(ItemContract.METRIC_COUNT));
+    }
+
+    @Test
+    public void sortedPages_walkTheWholeListInOrder() throws Exception {
+        insertItem("banana", 3, 200L);
+        insertItem("Apple", 1, 300L);
+        insertItem("cherry", 2, 100L);
+        insertItem("apple", 5, 100L);
+
+        // Names sort without regard to case, ties in ID order
+        assertEquals("Apple,apple,banana,cherry",
+                readSortedPages(ItemEntry.SORT_NAME, false, ItemEntry.COLUMN_ITEM_NAME));
+        assertEquals("cherry,banana,apple,Apple",
+                readSortedPages(ItemEntry.SORT_NAME, true, ItemEntry.COLUMN_ITEM_NAME));
+        assertEquals("cherry,apple,banana,Apple",
+                readSortedPages(ItemEntry.SORT_PRICE, false, ItemEntry.COLUMN_ITEM_PRICE));
+
+        // Sorting by quantity follows sales not yet folded into the stored quantity
+        long date = insertItem("date", 4, 100L);
+        sell(date);
+        sell(date);
+        assertEquals("Apple,cherry,date,banana,apple",
+                readSortedPages(ItemEntry.SORT_QUANTITY, false, ItemEntry.COLUMN_ITEM_QUANTITY));
+        assertEquals("apple,banana,date,cherry,Apple",
+                readSortedPages(ItemEntry.SORT_QUANTITY, true, ItemEntry.COLUMN_ITEM_QUANTITY));
+
+        // Reading never folded the ledger, so both sales are still there to fold
+        Bundle result = mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        assertEquals(2, result.getInt(ItemContract.EXTRA_FOLDED));
+    }
+
+    @Test
+    public void ranges_filterByPriceAndCurrentQuantity() throws Exception {
+        insertItem("banana", 3, 200L);
+        long apple = insertItem("apple", 1, 300L);
+        insertItem("cherry", 2, 100L);
+
+        Uri uri = ItemEntry.withPriceRange(ItemEntry.CONTENT_URI, 150L, null);
+        assertEquals("banana,apple", readNames(uri));
+        uri = ItemEntry.withPriceRange(ItemEntry.CONTENT_URI, 100L, 250L);
+        assertEquals("banana,cherry", readNames(uri));
+
+        Bundle extras = new Bundle();
+        extras.putInt(ItemContract.EXTRA_COUNT, 4);
+        mProvider.call(ItemContract.METHOD_RECEIVE, String.valueOf(apple), extras);
+        uri = ItemEntry.withQuantityRange(ItemEntry.CONTENT_URI, 3, 4);
+        assertEquals("banana", readNames(uri));
+        uri = ItemEntry.withQuantityRange(
+                ItemEntry.withPriceRange(ItemEntry.CONTENT_URI, 250L, null), 5, null);
+        assertEquals("apple", readNames(uri));
+    }
+
+    @Test
+    public void sortsAndRanges_areServedByIndexes() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            insertItem("Item " + i, i % 10, 100L + i);
+        }
+        List<Uri> uris = new ArrayList<>();
+        for (String sort : new String[] {
+                ItemEntry.SORT_NAME, ItemEntry.SORT_PRICE, ItemEntry.SORT_QUANTITY }) {
+            for (boolean descending : new boolean[] { false, true }) {
+                uris.add(ItemEntry.buildSortedPageUri(sort, descending, null, 0, 20));
+                uris.add(ItemEntry.buildSortedPageUri(sort, descending, "5", 50, 20));
+            }
+        }
+        uris.add(ItemEntry.withPriceRange(ItemEntry.CONTENT_URI, 120L, 140L));
+        uris.add(ItemEntry.withPriceRange(ItemEntry.buildPageUri(30, 20), 120L, null));
+        uris.add(ItemEntry.withQuantityRange(ItemEntry.CONTENT_URI, 2, 4));
+        uris.add(ItemEntry.withQuantityRange(
+                ItemEntry.buildSortedPageUri(ItemEntry.SORT_PRICE, false, null, 0, 20), null, 3));
+
+        ItemDbHelper dbHelper = new ItemDbHelper(mContext);
+        try {
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+            for (Uri uri : uris) {
+                ItemListQuery list = new ItemListQuery(uri, null, null, null);
+                String plan = explain(database,
+                        list.toSql(ItemProvider.itemColumns(null)), list.selectionArgs);
+                // A full-table scan is "SCAN items" or "SCAN TABLE items", without an index
+                assertFalse(uri + " scans the table: " + plan,
+                        plan.matches("(?s).*SCAN (TABLE )?items\\b(?! USING).*"));
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void photos_areDeletedWhenReplacedOrTheirItemIsDeleted() throws Exception {
+        File first = createPhoto();
+        File second = createPhoto();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(ItemEntry.COLUMN_ITEM_NAME, "Widget");
+            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 1);
+            values.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+            values.put(ItemEntry.COLUMN_ITEM_PHOTO, first.getName());
+            Uri uri = mProvider.insert(ItemEntry.CONTENT_URI, values);
+            assertNotNull(uri);
+
+            // A new photo replaces the old one
+            values = new ContentValues();
+            values.put(ItemEntry.COLUMN_ITEM_PHOTO, second.getName());
+            assertEquals(1, mProvider.update(uri, values, null, null));
+            assertFalse(first.exists());
+            assertTrue(second.exists());
+
+            // Saving the same photo again keeps it
+            assertEquals(1, mProvider.update(uri, values, null, null));
+            assertTrue(second.exists());
+
+            // Names outside the photo directory are rejected
+            values.put(ItemEntry.COLUMN_ITEM_PHOTO, "../databases/" + ItemDbHelper.DATABASE_NAME);
+            try {
+                mProvider.update(uri, values, null, null);
+                fail("Photo outside the photo directory was accepted");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            assertEquals(1, mProvider.delete(uri, null, null));
+            assertFalse(second.exists());
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void sku_findsItemsThroughTheUniqueIndex() throws Exception {
+        long widget = insertItemWithSku("Widget", "4006381333931");
+        insertItemWithSku("Gadget", "0012345678905");
+        insertItem("No SKU", 1);
+        insertItem("No SKU either", 1);
+
+        assertEquals("Widget|1|150", readItem(mProvider.query(
+                ItemEntry.buildSkuUri("4006381333931"), null, null, null, null)));
+        assertNull(readItem(mProvider.query(
+                ItemEntry.buildSkuUri("9999999999999"), null, null, null, null)));
+
+        // A SKU belongs to one item at most
+        assertEquals(-1, insertItemWithSku("Copy", "4006381333931"));
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_SKU, "0012345678905");
+        try {
+            mProvider.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, widget), values,
+                    null, null);
+            fail("Duplicate SKU was accepted");
+        } catch (SQLiteConstraintException expected) {
+        }
+
+        // A duplicate in a bulk insert rolls back the whole batch
+        ContentValues[] bulk = new ContentValues[] { new ContentValues(), new ContentValues() };
+        bulk[0].put(ItemEntry.COLUMN_ITEM_SKU, "0012345678905");
+        bulk[1].put(ItemEntry.COLUMN_ITEM_SKU, "5901234123457");
+        for (ContentValues row : bulk) {
+            row.put(ItemEntry.COLUMN_ITEM_NAME, "Bulk");
+            row.put(ItemEntry.COLUMN_ITEM_QUANTITY, 1);
+            row.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+        }
+        try {
+            mProvider.bulkInsert(ItemEntry.CONTENT_URI, bulk);
+            fail("Duplicate SKU was accepted in a bulk insert");
+        } catch (SQLiteConstraintException expected) {
+        }
+        assertNull(readItem(mProvider.query(
+                ItemEntry.buildSkuUri("5901234123457"), null, null, null, null)));
+        assertEquals(1, mProvider.bulkInsert(ItemEntry.CONTENT_URI,
+                new ContentValues[] { bulk[1] }));
+        assertEquals("Bulk|1|150", readItem(mProvider.query(
+                ItemEntry.buildSkuUri("5901234123457"), null, null, null, null)));
+
+        // Many SKUs are looked up at once, unknown and repeated ones included
+        List<String> skus = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            skus.add("unknown" + i);
+        }
+        skus.add("4006381333931");
+        skus.add("5901234123457");
+        skus.add("4006381333931");
+        Cursor cursor = mProvider.query(ItemEntry.buildSkuLookupUri(skus),
+                new String[] { ItemEntry.COLUMN_ITEM_SKU }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            List<String> found = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                found.add(cursor.getString(0));
+            }
+            Collections.sort(found);
+            assertEquals("[4006381333931, 5901234123457]", found.toString());
+        } finally {
+            cursor.close();
+        }
+
+        // Both lookups search the index instead of scanning the table
+        ItemDbHelper dbHelper = new ItemDbHelper(mContext);
+        try {
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+            String plan = explain(database, "SELECT * FROM items WHERE sku=?",
+                    new String[] { "4006381333931" });
+            assertTrue(plan, plan.contains("USING INDEX items_sku_index"));
+            plan = explain(database, "SELECT * FROM items WHERE sku IN (?,?)",
+                    new String[] { "4006381333931", "5901234123457" });
+            assertTrue(plan, plan.contains("USING INDEX items_sku_index"));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void stock_isKeptPerLocationWithTheTotalOnTheItem() throws Exception {
+        long id = insertItem(3);
+        long otherId = insertItem(1);
+
+        // Stock arrives at two stockrooms besides the default location
+        Bundle result = receiveAt(id, 1, 4);
+        assertEquals(4, result.getInt(ItemContract.EXTRA_QUANTITY));
+        receiveAt(id, 2, 2);
+        assertEquals(9, queryQuantity(id));
+        assertStats(2, 10, 1500, 0);
+
+        // A sale only draws on its own location's stock
+        result = sellAt(id, 2, 3);
+        assertFalse(result.getBoolean(ItemContract.EXTRA_SOLD));
+        assertEquals(2, result.getInt(ItemContract.EXTRA_QUANTITY));
+        result = sellAt(id, 2, 2);
+        assertTrue(result.getBoolean(ItemContract.EXTRA_SOLD));
+        assertEquals(0, result.getInt(ItemContract.EXTRA_QUANTITY));
+        sell(id);
+        assertEquals("0:2 1:4 2:0", readStock(StockEntry.buildItemUri(id)));
+        assertEquals(6, queryQuantity(id));
+
+        // Counting one location leaves the others alone
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_LOCATION, 1);
+        extras.putInt(ItemContract.EXTRA_QUANTITY, 7);
+        result = mProvider.call(ItemContract.METHOD_ADJUST, String.valueOf(id), extras);
+        assertEquals(7, result.getInt(ItemContract.EXTRA_QUANTITY));
+        assertEquals("0:2 1:7 2:0", readStock(StockEntry.buildItemUri(id)));
+        assertEquals(9, queryQuantity(id));
+
+        // A batch sells at one location, and an item never stocked there has nothing to sell
+        extras = new Bundle();
+        extras.putLongArray(ItemContract.EXTRA_ITEM_IDS, new long[] { id, otherId });
+        extras.putIntArray(ItemContract.EXTRA_COUNTS, new int[] { 1, 1 });
+        extras.putLong(ItemContract.EXTRA_LOCATION, 1);
+        result = mProvider.call(ItemContract.METHOD_SELL_BATCH, null, extras);
+        assertEquals(1, result.getIntArray(ItemContract.EXTRA_SOLD_COUNTS)[0]);
+        assertEquals(0, result.getIntArray(ItemContract.EXTRA_SOLD_COUNTS)[1]);
+
+        // Folding the ledger keeps every level and the total
+        mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        assertEquals("0:2 1:6 2:0", readStock(StockEntry.buildItemUri(id)));
+        assertEquals(8, queryQuantity(id));
+        assertEquals(id + ":2 " + otherId + ":1",
+                readLocationStock(StockEntry.buildLocationUri(StockEntry.DEFAULT_LOCATION)));
+        assertStats(2, 9, 1350, 0);
+
+        // A deleted item takes its levels with it
+        mProvider.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), null, null);
+        assertEquals("", readStock(StockEntry.buildItemUri(id)));
+
+        // Both lookups search the composite indexes instead of scanning the levels
+        ItemDbHelper dbHelper = new ItemDbHelper(mContext);
+        try {
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+            String plan = explain(database, "SELECT " + ItemDbHelper.CURRENT_LEVEL_QUANTITY
+                    + " FROM stock_levels WHERE item_id=? AND location_id=?",
+                    new String[] { "1", "1" });
+            assertTrue(plan, plan.contains("USING INDEX stock_levels_item_index"));
+            assertTrue(plan, plan.contains("USING INDEX stock_movements_location_index"));
+            plan = explain(database, "SELECT * FROM stock_levels WHERE location_id=?"
+                    + " ORDER BY item_id", new String[] { "1" });
+            assertTrue(plan, plan.contains("USING INDEX stock_levels_location_index"));
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    @Test
+    public void quantityEdits_neverTakeALevelBelowZero() throws Exception {
+        long id = insertItem("Widget", 3, 150L);
+        receiveAt(id, 1, 5);
+        Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+
+        // The total is set through the default location
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 6);
+        assertEquals(1, mProvider.update(itemUri, values, null, null));
+        assertEquals("0:1 1:5", readStock(StockEntry.buildItemUri(id)));
+        assertEquals(6, queryQuantity(id));
+
+        // Less than the stock held elsewhere is rejected, one item or many
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 4);
+        try {
+            mProvider.update(itemUri, values, null, null);
+            fail("Quantity below the other locations' stock was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mProvider.update(ItemEntry.CONTENT_URI, values, null, null);
+            fail("Quantity below the other locations' stock was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals("0:1 1:5", readStock(StockEntry.buildItemUri(id)));
+        assertEquals(6, queryQuantity(id));
+
+        // The editor's conditional save takes the same path
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 5);
+        Bundle result = updateIfVersion(id, values, readVersion(id));
+        assertFalse(result.getBoolean(ItemContract.EXTRA_CONFLICT));
+        assertEquals("0:0 1:5", readStock(StockEntry.buildItemUri(id)));
+    }
+
+    @Test
+    public void updateIfVersion_neverOverwritesAConcurrentSale() throws Exception {
+        long id = insertItem("Widget", 5, 150L);
+        assertEquals(0, readVersion(id));
+
+        // Every write moves the version on, sales and receipts included
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 175L);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                values, null, null));
+        assertEquals(1, readVersion(id));
+        sell(id);
+        receiveAt(id, StockEntry.DEFAULT_LOCATION, 2);
+        assertEquals(3, readVersion(id));
+
+        // Folding the ledger keeps the version
+        mProvider.call(ItemContract.METHOD_COMPACT, null, null);
+        assertEquals(3, readVersion(id));
+
+        // An editor loads the item, and a sale is made before it saves
+        long loaded = readVersion(id);
+        sell(id);
+        values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Blue widget");
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 6);
+        Bundle result = updateIfVersion(id, values, loaded);
+        assertTrue(result.getBoolean(ItemContract.EXTRA_CONFLICT));
+        assertEquals(4, result.getLong(ItemContract.EXTRA_VERSION));
+        assertEquals("Widget|5|175", readItem(id));
+
+        // Saving again from the latest version succeeds
+        result = updateIfVersion(id, values, result.getLong(ItemContract.EXTRA_VERSION));
+        assertFalse(result.getBoolean(ItemContract.EXTRA_CONFLICT));
+        assertEquals(6, result.getLong(ItemContract.EXTRA_VERSION));
+        assertEquals("Blue widget|6|175", readItem(id));
+        assertEquals(6, readVersion(id));
+
+        // A missing item is no conflict, and the version cannot be written
+        result = updateIfVersion(id + 1, values, 0);
+        assertFalse(result.getBoolean(ItemContract.EXTRA_CONFLICT));
+        assertEquals(-1, result.getLong(ItemContract.EXTRA_VERSION));
+        values.put(ItemEntry.COLUMN_ITEM_VERSION, 0L);
+        try {
+            updateIfVersion(id, values, 6);
+            fail("Version update was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Renames the first given number of items in one batch, writing each the given number of
+     * times.
+     */
+    private void applyRenames(long[] ids, int count, int times) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int time = 0; time < times; time++) {
+            for (int i = 0; i < count; i++) {
+                operations.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(ItemEntry.CONTENT_URI, ids[i]))
+                        .withValue(ItemEntry.COLUMN_ITEM_NAME, "Renamed " + time).build());
+            }
+        }
+        try {
+            mProvider.applyBatch(operations);
+        } catch (OperationApplicationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Runs the given writes and returns the URIs of the change notifications they caused.
+     */
+    private List<Uri> recordChanges(Runnable writes) throws InterruptedException {
+        final List<Uri> changes = Collections.synchronizedList(new ArrayList<Uri>());
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                changes.add(uri);
+            }
+        };
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(ItemEntry.CONTENT_URI, true, observer);
+        try {
+            writes.run();
+            // Notifications are delivered asynchronously, so give them time to arrive
+            Thread.sleep(NOTIFICATION_WAIT_MILLIS);
+        } finally {
+            resolver.unregisterContentObserver(observer);
+        }
+        return new ArrayList<>(changes);
+    }
+
+    private void assertStats(long itemCount, long totalQuantity, long totalValue, long outOfStock) {
+        Cursor cursor = mProvider.query(StatsEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            assertEquals(itemCount, cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_ITEM_COUNT)));
+            assertEquals(totalQuantity, cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_TOTAL_QUANTITY)));
+            assertEquals(totalValue, cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_TOTAL_VALUE)));
+            assertEquals(outOfStock, cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_OUT_OF_STOCK_COUNT)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countSearchResults(String query) {
+        Cursor cursor = mProvider.query(ItemEntry.buildSearchUri(query),
+                new String[] { ItemEntry._ID }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Starts all selling threads at once and returns how many sales succeeded.
+     */
+    private int sellConcurrently(final long id) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger sold = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < SALES_PER_THREAD; j++) {
+                        if (sell(id).getBoolean(ItemContract.EXTRA_SOLD)) {
+                            sold.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return sold.get();
+    }
+
+    /**
+     * Reads every page of the items in the given order, three at a time, and returns their
+     * names joined by commas.
+     */
+    private String readSortedPages(String sort, boolean descending, String column) {
+        StringBuilder names = new StringBuilder();
+        Uri uri = ItemEntry.buildSortedPageUri(sort, descending, null, 0, 3);
+        while (true) {
+            Cursor cursor = mProvider.query(uri, null, null, null, null);
+            assertNotNull(cursor);
+            try {
+                if (!cursor.moveToLast()) {
+                    return names.toString();
+                }
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    names.append(names.length() == 0 ? "" : ",").append(
+                            cursor.getString(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_NAME)));
+                }
+                cursor.moveToLast();
+                uri = ItemEntry.buildSortedPageUri(sort, descending,
+                        cursor.getString(cursor.getColumnIndexOrThrow(column)),
+                        cursor.getLong(cursor.getColumnIndexOrThrow(ItemEntry._ID)), 3);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the items at the given list URI in ID order, joined by commas.
+     */
+    private String readNames(Uri uri) {
+        Cursor cursor = mProvider.query(uri, new String[] { ItemEntry.COLUMN_ITEM_NAME },
+                null, null, ItemEntry._ID);
+        assertNotNull(cursor);
+        try {
+            StringBuilder names = new StringBuilder();
+            while (cursor.moveToNext()) {
+                names.append(names.length() == 0 ? "" : ",").append(cursor.getString(0));
+            }
+            return names.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the query plan of the given query, one step per line.
+     */
+    private static String explain(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates an empty photo file with a new name in the photo directory.
+     */
+    private File createPhoto() throws IOException {
+        File photo = ItemPhotos.getPhotoFile(mContext, UUID.randomUUID() + ".jpg");
+        assertTrue(photo.getParentFile().isDirectory() || photo.getParentFile().mkdirs());
+        assertTrue(photo.createNewFile());
+        return photo;
+    }
+
+    private Bundle sell(long id) {
+        return mProvider.call(ItemContract.METHOD_SELL, String.valueOf(id), null);
+    }
+
+    private Bundle updateIfVersion(long id, ContentValues values, long version) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(ItemContract.EXTRA_VALUES, values);
+        extras.putLong(ItemContract.EXTRA_VERSION, version);
+        return mProvider.call(ItemContract.METHOD_UPDATE_IF_VERSION, String.valueOf(id), extras);
+    }
+
+    private long readVersion(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                new String[] { ItemEntry.COLUMN_ITEM_VERSION }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle sellAt(long id, long location, int count) {
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_LOCATION, location);
+        extras.putInt(ItemContract.EXTRA_COUNT, count);
+        return mProvider.call(ItemContract.METHOD_SELL, String.valueOf(id), extras);
+    }
+
+    private Bundle receiveAt(long id, long location, int count) {
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_LOCATION, location);
+        extras.putInt(ItemContract.EXTRA_COUNT, count);
+        return mProvider.call(ItemContract.METHOD_RECEIVE, String.valueOf(id), extras);
+    }
+
+    /**
+     * Reads the stock levels at the given URI as "location:quantity" pairs, in the order
+     * returned.
+     */
+    private String readStock(Uri uri) {
+        return readStock(uri, StockEntry.COLUMN_LOCATION_ID);
+    }
+
+    /**
+     * Reads the stock levels at the given URI as "item:quantity" pairs, in the order returned.
+     */
+    private String readLocationStock(Uri uri) {
+        return readStock(uri, StockEntry.COLUMN_ITEM_ID);
+    }
+
+    private String readStock(Uri uri, String keyColumn) {
+        Cursor cursor = mProvider.query(uri, new String[] { keyColumn, StockEntry.COLUMN_QUANTITY },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            StringBuilder levels = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (levels.length() > 0) {
+                    levels.append(' ');
+                }
+                levels.append(cursor.getLong(0)).append(':').append(cursor.getInt(1));
+            }
+            return levels.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long insertItem(int quantity) {
+        return insertItem("Widget", quantity);
+    }
+
+    private long insertItem(String name, int quantity) {
+        return insertItem(name, quantity, 150L);
+    }
+
+    private long insertItem(String name, int quantity, long price) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, price);
+        Uri uri = mProvider.insert(ItemEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    /**
+     * Inserts an item with the given SKU and returns its ID, or -1 if the insert failed.
+     */
+    private long insertItemWithSku(String name, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 1);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+        values.put(ItemEntry.COLUMN_ITEM_SKU, sku);
+        Uri uri = mProvider.insert(ItemEntry.CONTENT_URI, values);
+        return uri == null ? -1 : ContentUris.parseId(uri);
+    }
+
+    /**
+     * Reads an item through its URI, which may be served from the row cache, as
+     * "name|quantity|price", or null if there is no such item.
+     */
+    private String readItem(long id) {
+        return readItem(mProvider.query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                null, null, null, null));
+    }
+
+    /**
+     * Reads an item through the list URI, which always queries the database.
+     */
+    private String readItemUncached(long id) {
+        return readItem(mProvider.query(ItemEntry.CONTENT_URI, null, ItemEntry._ID + "=?",
+                new String[] { String.valueOf(id) }, null));
+    }
+
+    private static String readItem(Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return cursor.getString(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_NAME))
+                    + "|" + cursor.getInt(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_QUANTITY))
+                    + "|" + cursor.getLong(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_PRICE));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int queryQuantity(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                new String[] { ItemEntry.COLUMN_ITEM_QUANTITY }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.MovementEntry;
+import com.ryanlentz.inventory.data.ItemContract.StockEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumentation tests for {@link ItemStatements}, run against a separate test database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemStatementsTest {
+    private static final String LOG_TAG = ItemStatementsTest.class.getSimpleName();
+
+    /** Number of times each operation runs in the benchmark */
+    private static final int BENCHMARK_OPERATIONS = 2000;
+
+    private Context mContext;
+    private ItemDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private ItemStatements mStatements;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mDbHelper = new ItemDbHelper(mContext);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mStatements = new ItemStatements(mDatabase);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStatements.close();
+        mDbHelper.close();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void statements_insertAdjustAndDeleteItems() {
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            long id = mStatements.insertItem("Widget", 5, 150, null, null, "widget");
+            assertTrue(id > 0);
+            assertEquals(5, mStatements.readQuantity(id));
+            assertEquals(5, mStatements.readLevelQuantity(id, StockEntry.DEFAULT_LOCATION));
+            assertEquals(0, mStatements.readVersion(id));
+            try {
+                mStatements.insertItem("Gadget", 1, 275, "Taken sync ID", null, "widget");
+                fail("Inserted an item with a sync ID already taken");
+            } catch (SQLiteConstraintException e) {
+                // Expected
+            }
+
+            // Each movement changes the quantity at its own location and bumps the version
+            mStatements.insertMovement(id, StockEntry.DEFAULT_LOCATION, -2,
+                    MovementEntry.KIND_SALE);
+            mStatements.insertMovement(id, 1, 4, MovementEntry.KIND_ADJUSTMENT);
+            assertEquals(7, mStatements.readQuantity(id));
+            assertEquals(3, mStatements.readLevelQuantity(id, StockEntry.DEFAULT_LOCATION));
+            assertEquals(4, mStatements.readLevelQuantity(id, 1));
+            assertEquals(0, mStatements.readLevelQuantity(id, 2));
+            assertEquals(2, mStatements.readVersion(id));
+
+            // The statements are reused, so the next item's bindings start clean
+            long other = mStatements.insertItem("Gizmo", 1, 99, null, "4006381333931", "gizmo");
+            assertEquals(1, mStatements.readQuantity(other));
+            assertEquals(0, mStatements.readVersion(other));
+
+            assertEquals(1, mStatements.deleteItem(id));
+            assertEquals(0, mStatements.deleteItem(id));
+            assertEquals(-1, mStatements.readQuantity(id));
+            assertEquals(-1, mStatements.readLevelQuantity(id, StockEntry.DEFAULT_LOCATION));
+            assertEquals(-1, mStatements.readVersion(id));
+            assertEquals(1, mStatements.readQuantity(other));
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Test
+    public void statements_benchmarkAgainstConvenienceMethods() {
+        // Only runs with the "benchmark" instrumentation argument, which -Pbenchmark sets
+        assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString(
+                "benchmark")));
+
+        // Warms up both paths so neither pays for the first compilation
+        runConvenienceMethods(100);
+        runStatements(100);
+
+        long[] before = runConvenienceMethods(BENCHMARK_OPERATIONS);
+        long[] after = runStatements(BENCHMARK_OPERATIONS);
+
+        String[] operations = { "insert", "read quantity", "movement", "delete" };
+        for (int i = 0; i < operations.length; i++) {
+            Log.i(LOG_TAG, String.format("%s: %.1f us before, %.1f us after", operations[i],
+                    before[i] / 1e3 / BENCHMARK_OPERATIONS, after[i] / 1e3 / BENCHMARK_OPERATIONS));
+        }
+    }
+
+    /**
+     * Runs each operation the given number of times the way the provider did before the
+     * statements were cached, and returns the nanoseconds spent in each.
+     */
+    private long[] runConvenienceMethods(int operations) {
+        long[] ids = new long[operations];
+        long[] elapsed = new long[4];
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                ContentValues values = new ContentValues();
+                values.put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+                values.put(ItemEntry.COLUMN_ITEM_QUANTITY, 10);
+                values.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+                ids[i] = mDatabase.insert(ItemEntry.TABLE_NAME, null, values);
+            }
+            elapsed[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                Cursor cursor = mDatabase.rawQuery("SELECT " + ItemDbHelper.CURRENT_QUANTITY
+                        + " FROM " + ItemEntry.TABLE_NAME + " WHERE " + ItemEntry._ID + " = ?",
+                        new String[] { String.valueOf(id) });
+                try {
+                    assertTrue(cursor.moveToFirst());
+                } finally {
+                    cursor.close();
+                }
+            }
+            elapsed[1] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                SQLiteStatement statement = mDatabase.compileStatement("INSERT INTO "
+                        + MovementEntry.TABLE_NAME + " ("
+                        + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry.COLUMN_DELTA + ", "
+                        + MovementEntry.COLUMN_KIND + ", " + MovementEntry.COLUMN_TIMESTAMP + ")"
+                        + " VALUES (?, ?, ?, ?)");
+                try {
+                    statement.bindLong(1, id);
+                    statement.bindLong(2, -1);
+                    statement.bindLong(3, MovementEntry.KIND_SALE);
+                    statement.bindLong(4, System.currentTimeMillis());
+                    statement.executeInsert();
+                } finally {
+                    statement.close();
+                }
+            }
+            elapsed[2] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                mDatabase.delete(ItemEntry.TABLE_NAME, ItemEntry._ID + "=?",
+                        new String[] { String.valueOf(id) });
+            }
+            elapsed[3] = System.nanoTime() - start;
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return elapsed;
+    }
+
+    /**
+     * Runs each operation the given number of times with the cached statements, and returns
+     * the nanoseconds spent in each.
+     */
+    private long[] runStatements(int operations) {
+        long[] ids = new long[operations];
+        long[] elapsed = new long[4];
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                ids[i] = mStatements.insertItem("Item " + i, 10, 150, null, null, "item-" + i);
+            }
+            elapsed[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                assertEquals(10, mStatements.readQuantity(id));
+            }
+            elapsed[1] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                mStatements.insertMovement(id, StockEntry.DEFAULT_LOCATION, -1,
+                        MovementEntry.KIND_SALE);
+            }
+            elapsed[2] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                mStatements.deleteItem(id);
+            }
+            elapsed[3] = System.nanoTime() - start;
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return elapsed;
+    }
+}
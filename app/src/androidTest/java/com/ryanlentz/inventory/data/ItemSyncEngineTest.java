@@ -0,0 +1,342 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import com.ryanlentz.inventory.data.ItemContract.ChangeEntry;
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.StockEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instrumentation tests for {@link ItemSyncEngine}, syncing two devices, each with its own test
+ * database, through a {@link FakeSyncServer}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemSyncEngineTest {
+    private Context mContextA;
+    private Context mContextB;
+    private ItemProvider mProviderA;
+    private ItemProvider mProviderB;
+    private ItemSyncEngine mEngineA;
+    private ItemSyncEngine mEngineB;
+    private FakeSyncServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database names so the app's real inventory is never touched
+        Context target = InstrumentationRegistry.getTargetContext();
+        mContextA = new RenamingDelegatingContext(target, "test_a_");
+        mContextB = new RenamingDelegatingContext(target, "test_b_");
+        mContextA.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+        mContextB.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mServer = new FakeSyncServer();
+        mProviderA = createProvider(mContextA);
+        mProviderB = createProvider(mContextB);
+        mEngineA = new ItemSyncEngine(createResolver(mProviderA), mServer);
+        mEngineB = new ItemSyncEngine(createResolver(mProviderB), mServer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProviderA.shutdown();
+        mProviderB.shutdown();
+        mContextA.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+        mContextB.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void sync_copiesNewItemsToTheOtherDevice() throws Exception {
+        insertItem(mProviderA, "Widget", 3, 150L);
+        insertItem(mProviderA, "Gadget", 5, 275L);
+
+        ItemSyncEngine.Result pushed = mEngineA.sync();
+        assertEquals(2, pushed.pushed);
+        assertEquals(0, pushed.pulled);
+        assertTrue(pushed.bytesSent > 0);
+        assertTrue(pushed.bytesReceived > 0);
+
+        ItemSyncEngine.Result pulled = mEngineB.sync();
+        assertEquals(0, pulled.pushed);
+        assertEquals(2, pulled.pulled);
+        assertEquals("Gadget|5|275 Widget|3|150", readItems(mProviderB));
+
+        // Applying pulled changes logs nothing, so they are not echoed back
+        assertEquals(0, countChanges(mProviderB));
+        assertEquals(0, mEngineB.sync().pushed);
+    }
+
+    @Test
+    public void sync_sendsOnlyWhatChangedSinceTheLastSync() throws Exception {
+        long widget = insertItem(mProviderA, "Widget", 3, 150L);
+        long gadget = insertItem(mProviderA, "Gadget", 5, 275L);
+        insertItem(mProviderA, "Gizmo", 1, 99L);
+        mEngineA.sync();
+        mEngineB.sync();
+
+        // Acknowledged changes leave the log
+        assertEquals(0, countChanges(mProviderA));
+
+        mProviderA.call(ItemContract.METHOD_SELL, String.valueOf(widget), null);
+        ContentValues price = new ContentValues();
+        price.put(ItemEntry.COLUMN_ITEM_PRICE, 300L);
+        mProviderA.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, gadget), price,
+                null, null);
+        mProviderA.delete(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, gadget), null, null);
+        assertEquals(2, countChanges(mProviderA));
+
+        assertEquals(2, mEngineA.sync().pushed);
+        assertEquals(2, mEngineB.sync().pulled);
+        assertEquals("Gizmo|1|99 Widget|2|150", readItems(mProviderB));
+
+        // Nothing changed, so nothing is exchanged
+        ItemSyncEngine.Result idle = mEngineA.sync();
+        assertEquals(0, idle.pushed);
+        assertEquals(0, idle.pulled);
+    }
+
+    @Test
+    public void sync_changesFlowBothWays() throws Exception {
+        long widget = insertItem(mProviderA, "Widget", 3, 150L);
+        mEngineA.sync();
+        mEngineB.sync();
+
+        insertItem(mProviderB, "Gadget", 5, 275L);
+        long copy = findItem(mProviderB, "Widget");
+        ContentValues name = new ContentValues();
+        name.put(ItemEntry.COLUMN_ITEM_NAME, "Blue widget");
+        mProviderB.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, copy), name,
+                null, null);
+        assertEquals(2, mEngineB.sync().pushed);
+
+        assertEquals(2, mEngineA.sync().pulled);
+        assertEquals("Blue widget|3|150 Gadget|5|275", readItems(mProviderA));
+        assertEquals(widget, findItem(mProviderA, "Blue widget"));
+    }
+
+    @Test
+    public void sync_resolvesAPulledSkuTakenLocally() throws Exception {
+        insertItem(mProviderA, "Widget", 3, 150L, "4006381333931");
+        insertItem(mProviderB, "Gadget", 5, 275L, "4006381333931");
+        mEngineA.sync();
+
+        // The local item keeps the SKU, and the pulled one is kept without it
+        ItemSyncEngine.Result pulled = mEngineB.sync();
+        assertEquals(1, pulled.pushed);
+        assertEquals(1, pulled.pulled);
+        assertEquals(1, pulled.conflicts);
+        assertEquals("Gadget|4006381333931 Widget|null", readSkus(mProviderB));
+
+        // The resolution is sent back, so the checkpoint moved on and both devices agree
+        assertEquals(1, countChanges(mProviderB));
+        assertEquals(1, mEngineB.sync().pushed);
+        ItemSyncEngine.Result resolved = mEngineA.sync();
+        assertEquals(2, resolved.pulled);
+        assertEquals(0, resolved.conflicts);
+        assertEquals("Gadget|4006381333931 Widget|null", readSkus(mProviderA));
+        assertEquals(0, mEngineB.sync().pulled);
+    }
+
+    @Test
+    public void sync_resolvesAPulledQuantityBelowStockHeldElsewhere() throws Exception {
+        long widget = insertItem(mProviderA, "Widget", 3, 150L);
+        mEngineA.sync();
+        mEngineB.sync();
+        long copy = findItem(mProviderB, "Widget");
+        Bundle extras = new Bundle();
+        extras.putLong(ItemContract.EXTRA_LOCATION, 1);
+        extras.putInt(ItemContract.EXTRA_COUNT, 5);
+        mProviderB.call(ItemContract.METHOD_RECEIVE, String.valueOf(copy), extras);
+        mEngineB.sync();
+        mEngineA.sync();
+
+        // Another device sets a quantity below the 5 units this one holds at location 1
+        ContentValues quantity = new ContentValues();
+        quantity.put(ItemEntry.COLUMN_ITEM_QUANTITY, 4);
+        mProviderA.update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, widget), quantity,
+                null, null);
+        mEngineA.sync();
+
+        // The quantity is raised to the stock held elsewhere instead of failing every sync
+        ItemSyncEngine.Result pulled = mEngineB.sync();
+        assertEquals(1, pulled.pulled);
+        assertEquals(1, pulled.conflicts);
+        assertEquals("Widget|5|150", readItems(mProviderB));
+        assertEquals("0:0 1:5", readStock(mProviderB, StockEntry.buildItemUri(copy)));
+
+        assertEquals(1, mEngineB.sync().pushed);
+        assertEquals(1, mEngineA.sync().pulled);
+        assertEquals("Widget|5|150", readItems(mProviderA));
+    }
+
+    @Test
+    public void sync_sendsLargeChangeSetsInBatches() throws Exception {
+        int items = ItemSyncEngine.BATCH_SIZE * 2 + 1;
+        ContentValues[] values = new ContentValues[items];
+        for (int i = 0; i < items; i++) {
+            values[i] = new ContentValues();
+            values[i].put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+            values[i].put(ItemEntry.COLUMN_ITEM_QUANTITY, i);
+            values[i].put(ItemEntry.COLUMN_ITEM_PRICE, 100L);
+        }
+        assertEquals(items, mProviderA.bulkInsert(ItemEntry.CONTENT_URI, values));
+
+        // Three pushes, then a single pull that finds only the device's own changes
+        ItemSyncEngine.Result pushed = mEngineA.sync();
+        assertEquals(items, pushed.pushed);
+        assertEquals(0, pushed.pulled);
+        assertEquals(4, pushed.requests);
+        assertEquals(items, mServer.size());
+
+        ItemSyncEngine.Result pulled = mEngineB.sync();
+        assertEquals(items, pulled.pulled);
+        assertEquals(3, pulled.requests);
+        assertEquals(items, countItems(mProviderB));
+        assertEquals(7, mServer.getRequests());
+    }
+
+    private static ItemProvider createProvider(Context context) {
+        ItemProvider provider = new ItemProvider();
+        provider.attachInfo(context, null);
+        return provider;
+    }
+
+    private static MockContentResolver createResolver(ItemProvider provider) {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ItemContract.CONTENT_AUTHORITY, provider);
+        return resolver;
+    }
+
+    private static long insertItem(ItemProvider provider, String name, int quantity, long price) {
+        return insertItem(provider, name, quantity, price, null);
+    }
+
+    private static long insertItem(ItemProvider provider, String name, int quantity, long price,
+            String sku) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_SKU, sku);
+        values.put(ItemEntry.COLUMN_ITEM_NAME, name);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, price);
+        Uri uri = provider.insert(ItemEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private static long findItem(ItemProvider provider, String name) {
+        Cursor cursor = provider.query(ItemEntry.CONTENT_URI, new String[] { ItemEntry._ID },
+                ItemEntry.COLUMN_ITEM_NAME + "=?", new String[] { name }, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads all items ordered by name as "name|quantity|price", separated by spaces.
+     */
+    private static String readItems(ItemProvider provider) {
+        Cursor cursor = provider.query(ItemEntry.CONTENT_URI, new String[] {
+                ItemEntry.COLUMN_ITEM_NAME, ItemEntry.COLUMN_ITEM_QUANTITY,
+                ItemEntry.COLUMN_ITEM_PRICE }, null, null, ItemEntry.COLUMN_ITEM_NAME);
+        assertNotNull(cursor);
+        try {
+            StringBuilder items = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (items.length() > 0) {
+                    items.append(' ');
+                }
+                items.append(cursor.getString(0)).append('|').append(cursor.getInt(1))
+                        .append('|').append(cursor.getLong(2));
+            }
+            return items.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads all items ordered by name as "name|SKU", separated by spaces.
+     */
+    private static String readSkus(ItemProvider provider) {
+        Cursor cursor = provider.query(ItemEntry.CONTENT_URI, new String[] {
+                ItemEntry.COLUMN_ITEM_NAME, ItemEntry.COLUMN_ITEM_SKU }, null, null,
+                ItemEntry.COLUMN_ITEM_NAME);
+        assertNotNull(cursor);
+        try {
+            StringBuilder items = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (items.length() > 0) {
+                    items.append(' ');
+                }
+                items.append(cursor.getString(0)).append('|').append(cursor.getString(1));
+            }
+            return items.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the stock levels at the given URI as "location:quantity" pairs.
+     */
+    private static String readStock(ItemProvider provider, Uri uri) {
+        Cursor cursor = provider.query(uri, new String[] { StockEntry.COLUMN_LOCATION_ID,
+                StockEntry.COLUMN_QUANTITY }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            StringBuilder levels = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (levels.length() > 0) {
+                    levels.append(' ');
+                }
+                levels.append(cursor.getLong(0)).append(':').append(cursor.getInt(1));
+            }
+            return levels.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int countItems(ItemProvider provider) {
+        Cursor cursor = provider.query(ItemEntry.CONTENT_URI, new String[] { ItemEntry._ID },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int countChanges(ItemProvider provider) {
+        Cursor cursor = provider.query(ChangeEntry.CONTENT_URI,
+                new String[] { ChangeEntry._ID }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
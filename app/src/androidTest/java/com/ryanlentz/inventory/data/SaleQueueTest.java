@@ -0,0 +1,180 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteFullException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.MovementEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Instrumentation tests for {@link SaleQueue}, run against a separate test database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleQueueTest {
+    /** Number of taps on each item's sell button */
+    private static final int TAPS = 40;
+
+    private Context mContext;
+    private ItemProvider mProvider;
+    private HandlerThread mThread;
+    private SaleQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        // Prefixes the database name so the app's real inventory is never touched
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+
+        mProvider = new ItemProvider();
+        mProvider.attachInfo(mContext, null);
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ItemContract.CONTENT_AUTHORITY, mProvider);
+
+        mThread = new HandlerThread("SaleQueueTest");
+        mThread.start();
+        mQueue = new SaleQueue(resolver, mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mThread.quit();
+        mProvider.shutdown();
+        mContext.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void flush_mergesTapsIntoOneMovementPerItem() throws Exception {
+        long[] ids = { insertItem(100), insertItem(100), insertItem(100) };
+        for (int tap = 0; tap < TAPS; tap++) {
+            for (long id : ids) {
+                mQueue.sell(id);
+            }
+        }
+        assertEquals(TAPS, mQueue.getPendingSales(ids[0]));
+
+        mQueue.flushNow();
+
+        // One ledger row per item instead of one per tap, all written in one transaction
+        for (long id : ids) {
+            assertEquals(0, mQueue.getPendingSales(id));
+            assertEquals(100 - TAPS, queryQuantity(id));
+        }
+        assertEquals(ids.length, countMovements());
+    }
+
+    @Test
+    public void flush_neverSellsMoreThanTheStock() throws Exception {
+        long id = insertItem(3);
+        for (int tap = 0; tap < 5; tap++) {
+            mQueue.sell(id);
+        }
+
+        mQueue.flushNow();
+
+        assertEquals(0, queryQuantity(id));
+    }
+
+    @Test
+    public void flush_keepsSalesTheDatabaseRejected() throws Exception {
+        // A provider that rejects the first batch of sales. It has its own row cache, so the
+        // item is read back through it.
+        final boolean[] full = { true };
+        ItemProvider failingProvider = new ItemProvider() {
+            @Override
+            public Bundle call(@NonNull String method, String arg, Bundle extras) {
+                if (full[0] && ItemContract.METHOD_SELL_BATCH.equals(method)) {
+                    full[0] = false;
+                    throw new SQLiteFullException("database or disk is full");
+                }
+                return super.call(method, arg, extras);
+            }
+        };
+        failingProvider.attachInfo(mContext, null);
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ItemContract.CONTENT_AUTHORITY, failingProvider);
+        SaleQueue queue = new SaleQueue(resolver, mThread.getLooper());
+        try {
+            long id = insertItem(10);
+            queue.sell(id);
+            queue.sell(id);
+
+            // The rejected sales are still pending, together with one made since
+            queue.flushNow();
+            assertEquals(2, queue.getPendingSales(id));
+            assertEquals(10, queryQuantity(failingProvider, id));
+            queue.sell(id);
+
+            queue.flushNow();
+            assertEquals(0, queue.getPendingSales(id));
+            assertEquals(7, queryQuantity(failingProvider, id));
+        } finally {
+            failingProvider.shutdown();
+        }
+    }
+
+    @Test
+    public void sell_isWrittenAfterTheDelay() throws Exception {
+        long id = insertItem(2);
+        mQueue.sell(id);
+
+        Thread.sleep(SaleQueue.FLUSH_DELAY_MILLIS * 4);
+
+        assertEquals(0, mQueue.getPendingSales(id));
+        assertEquals(1, queryQuantity(id));
+    }
+
+    private long insertItem(int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Widget");
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 150L);
+        Uri uri = mProvider.insert(ItemEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private int queryQuantity(long id) {
+        return queryQuantity(mProvider, id);
+    }
+
+    private static int queryQuantity(ItemProvider provider, long id) {
+        Cursor cursor = provider.query(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id),
+                new String[] { ItemEntry.COLUMN_ITEM_QUANTITY }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countMovements() {
+        Cursor cursor = mProvider.query(MovementEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
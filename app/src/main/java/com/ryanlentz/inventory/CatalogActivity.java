@@ -1,30 +1,100 @@
 package com.ryanlentz.inventory;
 
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ContentUris;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.ContentObserver;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.app.LoaderManager;
 import android.content.CursorLoader;
 import android.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import com.ryanlentz.inventory.data.ItemContract;
 import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.StatsEntry;
+import com.ryanlentz.inventory.data.ItemImporter;
+import com.ryanlentz.inventory.data.PriceUtils;
+import com.ryanlentz.inventory.data.SaleQueue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
  * Displays a list of items that have been added to the app
  */
 public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>{
-    /** Id for the loader */
-    private static final int ITEM_LOADER = 0;
-    /** Adapter for the ListView */
+    /** Tag for log messages */
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+    /** Request code for picking a CSV file to import */
+    private static final int REQUEST_IMPORT = 1;
+    /** Id for the loader of the inventory totals */
+    private static final int STATS_LOADER = 0;
+    /** Id for the loader of the first page; page n uses ITEM_LOADER + n */
+    private static final int ITEM_LOADER = 1;
+    /** Number of items loaded per page */
+    private static final int PAGE_SIZE = 50;
+    /** Loader argument with the ID of the last item before the page */
+    private static final String ARG_AFTER_ID = "after_id";
+    /** Adapter for the RecyclerView */
     ItemCursorAdapter mCursorAdapter;
+    /** TextView showing the inventory totals */
+    private TextView mStatsTextView;
+    /** Loaded pages in order; an entry is null until its loader delivers */
+    private final List<Cursor> mPages = new ArrayList<>();
+    /** For each page, the ID of the last item before it */
+    private final List<Long> mPageAfterIds = new ArrayList<>();
+    /** The running import, or null */
+    private ImportTask mImportTask;
+
+    /**
+     * Reloads only the page holding an item that changed, or every page when the change may
+     * touch many items. The page loaders themselves ignore change notifications.
+     */
+    private final ContentObserver mItemObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long id = ItemEntry.getChangedItemId(uri);
+            for (int page = mPages.size() - 1; page >= 0; page--) {
+                // Pages are in ID order, so the item belongs to the last page starting before it
+                if (id < 0 || mPageAfterIds.get(page) < id) {
+                    reloadPage(page);
+                    if (id >= 0) {
+                        return;
+                    }
+                }
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,21 +111,20 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Finds the ListView to display items
-        ListView itemListView = (ListView) findViewById(R.id.list);
+        // Finds the RecyclerView to display items
+        RecyclerView itemRecyclerView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        itemRecyclerView.setLayoutManager(layoutManager);
+        itemRecyclerView.setHasFixedSize(true);
 
-        // Finds the ListView to display when there are no items
-        View emptyView = findViewById(R.id.empty_view);
-        itemListView.setEmptyView(emptyView);
+        // Finds the View to display when there are no items
+        final View emptyView = findViewById(R.id.empty_view);
 
-        // Sets up an Adapter to create a list item for each row of item date in the Cursor
-        mCursorAdapter = new ItemCursorAdapter(this, null);
-        itemListView.setAdapter(mCursorAdapter);
-
-        // Sets up the item click listener
-        itemListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Sets up an Adapter to create a list item for each row of item data in the Cursor,
+        // with a click listener that opens the item in the EditorActivity
+        mCursorAdapter = new ItemCursorAdapter(this, new ItemCursorAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onItemClick(long id) {
                 // Creates a new intent to launch the EditorActivity
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
@@ -70,40 +139,485 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 startActivity(intent);
             }
         });
+        itemRecyclerView.setAdapter(mCursorAdapter);
+
+        // Shows the empty view whenever the adapter has no items
+        mCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
 
-        // Starts the loader
-        getLoaderManager().initLoader(ITEM_LOADER, null, this);
+            private void updateEmptyView() {
+                emptyView.setVisibility(mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+        });
+
+        // Loads the next page when the user scrolls close to the end of the loaded items. This is
+        // also called after each layout, so a page that does not fill the screen loads the next.
+        itemRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                if (lastVisibleItem >= mCursorAdapter.getItemCount() - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        // Finds the TextView for the inventory totals and starts loading them
+        mStatsTextView = (TextView) findViewById(R.id.stats_text);
+        getLoaderManager().initLoader(STATS_LOADER, null, this);
+
+        // Starts the loader for the first page and watches for changes to items
+        loadPage(0L);
+        getContentResolver().registerContentObserver(ItemEntry.CONTENT_URI, true, mItemObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mItemObserver);
+
+        // The import reports to this activity, so it does not outlive it
+        if (mImportTask != null) {
+            mImportTask.cancelImport();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // Inflates the menu options from the res/menu/menu_catalog.xml file
+        getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            // Respond to a click on the "Import items" menu option
+            case R.id.action_import:
+                // Lets the user pick a CSV file from any app that provides files
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("text/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_IMPORT);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null
+                    && mImportTask == null) {
+                mImportTask = new ImportTask();
+                mImportTask.execute(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // Writes the queued sales before returning, so they are in the database before anything
+        // else reads it and before the process can be killed
+        SaleQueue.getInstance(this).flushNow();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        // The app is going idle, so in the background fold the stock movements into the stored
+        // quantities, then the write-ahead log back into the database file; the next start then
+        // reads a short log and few unfolded movements
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                getContentResolver().call(ItemEntry.CONTENT_URI, ItemContract.METHOD_COMPACT,
+                        null, null);
+                getContentResolver().call(ItemEntry.CONTENT_URI, ItemContract.METHOD_CHECKPOINT,
+                        null, null);
+            }
+        });
+    }
+
+    /**
+     * Starts loading the page after the last loaded one, unless it is already loading or the
+     * last page was not full (so there is nothing more to load).
+     */
+    private void loadNextPage() {
+        int lastPage = mPages.size() - 1;
+        Cursor lastCursor = mPages.get(lastPage);
+        if (lastCursor == null || lastCursor.getCount() < PAGE_SIZE) {
+            return;
+        }
+
+        // The next page starts after the last item of this one, which from now on ends there
+        lastCursor.moveToLast();
+        long lastId = lastCursor.getLong(lastCursor.getColumnIndexOrThrow(ItemEntry._ID));
+        Loader<Cursor> loader = getLoaderManager().getLoader(ITEM_LOADER + lastPage);
+        if (loader instanceof PageLoader) {
+            ((PageLoader) loader).setLastId(lastId);
+        }
+        loadPage(lastId);
+    }
+
+    /**
+     * Starts the loader for a new page of items after the given ID.
+     */
+    private void loadPage(long afterId) {
+        int page = mPages.size();
+        mPages.add(null);
+        mPageAfterIds.add(afterId);
+
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_ID, afterId);
+        getLoaderManager().initLoader(ITEM_LOADER + page, args, this);
+    }
+
+    /**
+     * Reloads the given page if its loader exists.
+     */
+    private void reloadPage(int page) {
+        Loader<Cursor> loader = getLoaderManager().getLoader(ITEM_LOADER + page);
+        if (loader instanceof PageLoader) {
+            ((PageLoader) loader).reload();
+        }
+    }
+
+    /**
+     * Shows every loaded page, up to the first one still loading, as one Cursor in the list.
+     */
+    private void swapLoadedPages() {
+        List<Cursor> loaded = new ArrayList<>();
+        List<ItemCursorAdapter.Page> pages = new ArrayList<>();
+        for (int page = 0; page < mPages.size() && mPages.get(page) != null; page++) {
+            loaded.add(mPages.get(page));
+            pages.add(((PageCursor) mPages.get(page)).getPage());
+        }
+        mCursorAdapter.swapPages(loaded.isEmpty() ? null
+                : new PagesCursor(loaded.toArray(new Cursor[loaded.size()])), pages);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // The totals are a single row kept current by the database, so loading them is cheap
+        if (id == STATS_LOADER) {
+            return new CursorLoader(this, StatsEntry.CONTENT_URI, null, null, null, null);
+        }
+
         // Defines a projection for the table columns that we want
         String[] projection = {
                 ItemEntry._ID,
                 ItemEntry.COLUMN_ITEM_NAME,
                 ItemEntry.COLUMN_ITEM_PRICE,
-                ItemEntry.COLUMN_ITEM_QUANTITY};
+                ItemEntry.COLUMN_ITEM_QUANTITY,
+                ItemEntry.COLUMN_ITEM_PHOTO};
 
         // Returns a loader that will execute the ContentProvider's query method on a background
         // thread
-        return new CursorLoader(this,   // Parent activity context
-                ItemEntry.CONTENT_URI,  // Content URI to query
+        return new PageLoader(this,     // Parent activity context
+                ItemEntry.buildPageUri(args.getLong(ARG_AFTER_ID), PAGE_SIZE), // Page to query
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
-                null);                  // Default sort order
+                null);                  // Pages are sorted by ID
     }
 
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Updates Adapter with this new cursor containing item data
-        mCursorAdapter.swapCursor(data);
+        if (loader.getId() == STATS_LOADER) {
+            showStats(data);
+            return;
+        }
+
+        // Updates Adapter with this new page of item data
+        mPages.set(loader.getId() - ITEM_LOADER, data);
+        swapLoadedPages();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() == STATS_LOADER) {
+            mStatsTextView.setText("");
+            return;
+        }
+
         // Calls callback when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mPages.set(loader.getId() - ITEM_LOADER, null);
+        swapLoadedPages();
+    }
+
+    /**
+     * Shows the inventory totals from the given cursor of the stats URI.
+     */
+    private void showStats(Cursor data) {
+        if (data == null || !data.moveToFirst()) {
+            return;
+        }
+        long totalValue = data.getLong(data.getColumnIndexOrThrow(StatsEntry.COLUMN_TOTAL_VALUE));
+        mStatsTextView.setText(getString(R.string.inventory_stats,
+                data.getLong(data.getColumnIndexOrThrow(StatsEntry.COLUMN_ITEM_COUNT)),
+                data.getLong(data.getColumnIndexOrThrow(StatsEntry.COLUMN_TOTAL_QUANTITY)),
+                PriceUtils.formatPrice(totalValue),
+                data.getLong(data.getColumnIndexOrThrow(StatsEntry.COLUMN_OUT_OF_STOCK_COUNT))));
+    }
+
+    /**
+     * Imports items from a CSV file on a background thread, showing the progress in a dialog
+     * that can cancel the import, and the rows that were skipped once it ends.
+     */
+    private class ImportTask extends AsyncTask<Uri, Integer, ItemImporter.Result> {
+        /** The importer, which can be cancelled from the main thread */
+        private final ItemImporter mImporter = new ItemImporter(getContentResolver());
+
+        /** The progress dialog */
+        private ProgressDialog mDialog;
+
+        /** Why the import failed, or null */
+        private Exception mError;
+
+        @Override
+        protected void onPreExecute() {
+            mDialog = new ProgressDialog(CatalogActivity.this);
+            mDialog.setTitle(R.string.import_items);
+            mDialog.setMessage(getString(R.string.import_progress, 0, 0));
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            mImporter.cancel();
+                        }
+                    });
+            mDialog.show();
+        }
+
+        @Override
+        protected ItemImporter.Result doInBackground(Uri... uris) {
+            try {
+                InputStream in = getContentResolver().openInputStream(uris[0]);
+                if (in == null) {
+                    throw new IOException("Cannot open " + uris[0]);
+                }
+                return mImporter.importItems(in, new ItemImporter.ProgressListener() {
+                    @Override
+                    public void onProgress(int imported, int rejected) {
+                        publishProgress(imported, rejected);
+                    }
+                });
+            } catch (IOException | SQLException e) {
+                // Bad rows are reported in the result, so this is the file or the database
+                Log.e(LOG_TAG, "Import failed", e);
+                mError = e;
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            mDialog.setMessage(getString(R.string.import_progress, progress[0], progress[1]));
+        }
+
+        @Override
+        protected void onPostExecute(ItemImporter.Result result) {
+            mImportTask = null;
+            mDialog.dismiss();
+            if (isFinishing()) {
+                return;
+            }
+            if (result == null) {
+                Toast.makeText(CatalogActivity.this,
+                        getString(R.string.import_failed, mError.getMessage()),
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            // Lists the skipped rows below the totals
+            String message = getString(R.string.import_progress, result.imported, result.rejected);
+            if (!result.errors.isEmpty()) {
+                message += "\n\n" + TextUtils.join("\n", result.errors);
+            }
+            new AlertDialog.Builder(CatalogActivity.this)
+                    .setTitle(result.cancelled ? R.string.import_cancelled : R.string.import_finished)
+                    .setMessage(message)
+                    .setPositiveButton(R.string.ok, null)
+                    .show();
+        }
+
+        /**
+         * Stops the import and closes the dialog without reporting the result.
+         */
+        void cancelImport() {
+            mImporter.cancel();
+            cancel(false);
+            mDialog.dismiss();
+        }
+
+        @Override
+        protected void onCancelled(ItemImporter.Result result) {
+            mImportTask = null;
+        }
+    }
+
+    /**
+     * Loads one page of items. Unlike a plain CursorLoader it does not reload on every change
+     * notification, since a change to one item would then reload every page; the activity
+     * reloads it only when an item on it changes.
+     * <p>
+     * The rows of the page, and what changed since the page it delivered last, are read on the
+     * loader's thread into an {@link ItemCursorAdapter.Page}, so showing a reloaded page does
+     * not touch the other pages or step through a cursor on the main thread.
+     */
+    private static class PageLoader extends CursorLoader {
+        /** Highest ID on the page; items after it belong to the next page */
+        private volatile long mLastId = Long.MAX_VALUE;
+
+        /** The page delivered last; only touched on the main thread */
+        private ItemCursorAdapter.Page mDeliveredPage;
+
+        /** The page the running load is compared with */
+        private volatile ItemCursorAdapter.Page mPreviousPage;
+
+        PageLoader(Context context, Uri uri, String[] projection, String selection,
+                   String[] selectionArgs, String sortOrder) {
+            super(context, uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        /**
+         * Ends the page at the given ID from the next load on, once a page starts after it.
+         * Items pulled forward into the page after a deletion are then not shown twice.
+         */
+        void setLastId(long lastId) {
+            mLastId = lastId;
+        }
+
+        @Override
+        protected void onForceLoad() {
+            // Runs on the main thread before the load starts, so it sees the page delivered last.
+            // Its link to the page before it is dropped; if it has not been shown yet, it will
+            // be shown in full.
+            mPreviousPage = mDeliveredPage;
+            if (mDeliveredPage != null) {
+                mDeliveredPage.releasePrevious();
+            }
+            super.onForceLoad();
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = super.loadInBackground();
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return new PageCursor(cursor,
+                        ItemCursorAdapter.Page.read(cursor, mLastId, mPreviousPage));
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void deliverResult(Cursor cursor) {
+            if (cursor instanceof PageCursor && !isReset()) {
+                mDeliveredPage = ((PageCursor) cursor).getPage();
+            }
+            super.deliverResult(cursor);
+        }
+
+        @Override
+        public void onContentChanged() {
+            // Ignored; the activity calls reload() for the pages that changed
+        }
+
+        /**
+         * Reloads the page now, or when the loader is next started if it is stopped.
+         */
+        void reload() {
+            super.onContentChanged();
+        }
+    }
+
+    /**
+     * Joins the loaded pages into one Cursor. Unlike a plain MergeCursor it passes
+     * copyStringToBuffer through to the page, so the adapter can copy text without allocating.
+     */
+    private static class PagesCursor extends MergeCursor {
+        /** The pages, in order */
+        private final Cursor[] mPageCursors;
+
+        /** The page holding the current row, or null before the first move */
+        private Cursor mCurrentPage;
+
+        PagesCursor(Cursor[] pages) {
+            super(pages);
+            mPageCursors = pages;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            // Finds the page holding the new position; the superclass positions it on the row
+            mCurrentPage = null;
+            int pageStart = 0;
+            for (Cursor page : mPageCursors) {
+                if (newPosition < pageStart + page.getCount()) {
+                    mCurrentPage = page;
+                    break;
+                }
+                pageStart += page.getCount();
+            }
+            return super.onMove(oldPosition, newPosition);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (mCurrentPage == null) {
+                super.copyStringToBuffer(columnIndex, buffer);
+            } else {
+                mCurrentPage.copyStringToBuffer(columnIndex, buffer);
+            }
+        }
+    }
+
+    /**
+     * Wraps the cursor of a page so it only exposes the rows read into its
+     * {@link ItemCursorAdapter.Page}.
+     */
+    private static class PageCursor extends CursorWrapper {
+        /** The rows of the page */
+        private final ItemCursorAdapter.Page mPage;
+
+        PageCursor(Cursor cursor, ItemCursorAdapter.Page page) {
+            super(cursor);
+            mPage = page;
+        }
+
+        ItemCursorAdapter.Page getPage() {
+            return mPage;
+        }
+
+        @Override
+        public int getCount() {
+            return mPage.size();
+        }
     }
 }
@@ -4,33 +4,53 @@ package com.ryanlentz.inventory;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.ryanlentz.inventory.data.AsyncItemWriter;
+import com.ryanlentz.inventory.data.ItemContract;
 import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemPhotos;
+import com.ryanlentz.inventory.data.PriceUtils;
+
+import java.io.IOException;
 
 /**
  * Allows the user to add and edit items in the inventory
  */
 public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+    /** Tag for the log messages */
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
     /** ID for the loader */
     private static final int EXISTING_ITEM_LOADER = 0;
 
+    /** Request code for picking a photo */
+    private static final int PICK_PHOTO_REQUEST = 1;
+
+    /** Keys of the photo state kept across configuration changes */
+    private static final String STATE_PHOTO = "photo";
+    private static final String STATE_NEW_PHOTO = "new_photo";
+
     /** Content URI for an existing item */
     private Uri mCurrentItemUri;
 
@@ -46,9 +66,30 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** EditText field to enter the item's description */
     EditText mDescriptionEditText;
 
+    /** ImageView showing the item's photo */
+    private ImageView mPhotoImageView;
+
+    /** Name of the item's photo, or null if it has none */
+    private String mPhoto;
+
+    /** Name of a photo chosen in this editor and not saved yet, or null */
+    private String mNewPhoto;
+
+    /** Loads the photo's thumbnail */
+    private ThumbnailLoader mThumbnails;
+
+    /** Version of the item the fields were loaded from, or -1 until it is loaded */
+    private long mVersion = -1;
+
     /** Boolean flag that keeps track of whether the item has been edited (true) or not (false) */
     private boolean mItemHasChanged = false;
 
+    /** Writes the item in the background, off the main thread */
+    private AsyncItemWriter mWriter;
+
+    /** Set while a save or delete is being written, so it cannot be started twice */
+    private boolean mWritePending = false;
+
     /**
      * Listens for any user touches on a View, implying that they are modifying
      * the view, and we change the mItemHasChanged boolean to true.
@@ -66,6 +107,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_editor);
 
+        mWriter = new AsyncItemWriter(getContentResolver());
+        mThumbnails = ThumbnailLoader.getInstance(this);
+
         // Checks if the intent that launched this activity has an attached URI
         Intent intent = getIntent();
         mCurrentItemUri = intent.getData();
@@ -75,12 +119,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         Button deleteButton = (Button) findViewById(R.id.delete_button);
         Button increaseQuantityButton = (Button) findViewById(R.id.add_button);
         Button decreaseQuantityButton = (Button) findViewById(R.id.minus_button);
+        Button photoButton = (Button) findViewById(R.id.photo_button);
 
         // Finds EditTexts for item information
         mNameEditText = (EditText) findViewById(R.id.name_edit_text);
         mQuantityEditText = (EditText) findViewById(R.id.quantity_edit_text);
         mPriceEditText = (EditText) findViewById(R.id.price_edit_text);
         mDescriptionEditText = (EditText) findViewById(R.id.description_edit_text);
+        mPhotoImageView = (ImageView) findViewById(R.id.photo_image_view);
+
+        // Restores a photo chosen before the activity was recreated
+        if (savedInstanceState != null) {
+            mPhoto = savedInstanceState.getString(STATE_PHOTO);
+            mNewPhoto = savedInstanceState.getString(STATE_NEW_PHOTO);
+            mThumbnails.load(mPhoto, mPhotoImageView);
+        }
 
         // If there is NOT a URI attached to the intent, we are creating a new item
         if (mCurrentItemUri == null) {
@@ -144,6 +197,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             }
         });
 
+        // Sets on click listener on the photo button, which lets the user pick a picture
+        photoButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("image/*");
+                startActivityForResult(Intent.createChooser(pickIntent,
+                        getString(R.string.choose_photo)), PICK_PHOTO_REQUEST);
+            }
+        });
+
         // Sets on click listener on the save button
         saveButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -160,12 +224,36 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mDescriptionEditText.setOnTouchListener(mTouchListener);
         decreaseQuantityButton.setOnTouchListener(mTouchListener);
         increaseQuantityButton.setOnTouchListener(mTouchListener);
+        photoButton.setOnTouchListener(mTouchListener);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_PHOTO, mPhoto);
+        outState.putString(STATE_NEW_PHOTO, mNewPhoto);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == PICK_PHOTO_REQUEST && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            // Copies the picture into the app's photos in the background
+            new SavePhotoTask().execute(data.getData());
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
     }
 
     /**
      * Gets user input from editor and saves pet in the database
      */
     private void saveItem() {
+        // Ignores the request if the item is already being written
+        if (mWritePending) {
+            return;
+        }
+
         // Reads input fields and uses trim to eliminate white space
         String nameString = mNameEditText.getText().toString().trim();
         String quantityString = mQuantityEditText.getText().toString().trim();
@@ -196,12 +284,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             quantity = Integer.parseInt(quantityString);
         }
 
-        // Default value for price
-        double price = 0;
+        // Default value for price, in cents
+        long price = 0;
 
-        // Checks if the price has a value and, if so, converts it to a double
+        // Checks if the price has a value and, if so, converts it to cents
         if (!TextUtils.isEmpty(priceString)) {
-            price = Double.parseDouble(priceString);
+            try {
+                price = PriceUtils.parsePrice(priceString);
+            } catch (NumberFormatException e) {
+                // Lets user know that the price could not be read
+                Toast.makeText(this, R.string.price_invalid, Toast.LENGTH_SHORT).show();
+                return;
+            }
         }
 
         // Create a ContentValues object where the keys are column names and values are item
@@ -212,29 +306,67 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(ItemEntry.COLUMN_ITEM_PRICE, price);
         values.put(ItemEntry.COLUMN_ITEM_DESCRIPTION, descriptionString);
 
-        // Determines if this is a new or existing item by checking mCurrentItemUri
+        // Only a newly chosen photo is written; the provider deletes the one it replaces
+        if (mNewPhoto != null) {
+            values.put(ItemEntry.COLUMN_ITEM_PHOTO, mNewPhoto);
+        }
+
+        // Determines if this is a new or existing item by checking mCurrentItemUri. The write
+        // runs in the background and the editor closes once it is done.
+        mWritePending = true;
         if (mCurrentItemUri == null) {
-            // Inserts a new item into the provider and saves the new content URI
-            Uri newUri = getContentResolver().insert(ItemEntry.CONTENT_URI, values);
+            // Inserts a new item into the provider
+            mWriter.insert(ItemEntry.CONTENT_URI, values, new AsyncItemWriter.Callback<Uri>() {
+                @Override
+                public void onWriteComplete(Uri newUri) {
+                    // The new photo is now the item's, unless the insertion failed
+                    mWritePending = false;
+                    if (newUri != null) {
+                        mNewPhoto = null;
+                    }
 
-            // Shows a Toast indicating whether or not the insertion was successful
-            if (newUri == null) {
-                // If newUri is null, there was an error with the insertion
-                Toast.makeText(this, R.string.save_failed, Toast.LENGTH_SHORT).show();
-            } else {
-                // The insertion was successful
-                Toast.makeText(this, R.string.save_successful, Toast.LENGTH_SHORT).show();
-            }
+                    // Shows a Toast indicating whether or not the insertion was successful
+                    displayToast(newUri == null ? 0 : 1, R.string.save_failed,
+                            R.string.save_successful);
+
+                    // Returns to CatalogActivity
+                    finish();
+                }
+            });
         } else {
-            // Updates the existing item and saves the number of rows affected
-            int rowsAffected = getContentResolver().update(mCurrentItemUri, values, null, null);
+            // Updates the existing item, unless it was changed elsewhere since it was loaded
+            mWriter.updateIfVersion(mCurrentItemUri, values, mVersion,
+                    new AsyncItemWriter.Callback<Bundle>() {
+                @Override
+                public void onWriteComplete(Bundle result) {
+                    mWritePending = false;
+
+                    // Shows the latest values instead of overwriting them, keeping the chosen
+                    // photo, so the user can make their changes again
+                    if (result != null && result.getBoolean(ItemContract.EXTRA_CONFLICT)) {
+                        Toast.makeText(EditorActivity.this, R.string.update_conflict,
+                                Toast.LENGTH_LONG).show();
+                        mItemHasChanged = false;
+                        getLoaderManager().restartLoader(EXISTING_ITEM_LOADER, null,
+                                EditorActivity.this);
+                        return;
+                    }
 
-            // Shows a Toast indicating whether or not the update was successful
-            displayToast(rowsAffected, R.string.update_failed, R.string.update_successful);
-        }
+                    // The new photo is now the item's, unless the update failed
+                    int rowsAffected = result != null
+                            && result.getLong(ItemContract.EXTRA_VERSION) >= 0 ? 1 : 0;
+                    if (rowsAffected > 0) {
+                        mNewPhoto = null;
+                    }
 
-        // Returns to CatalogActivity
-        finish();
+                    // Shows a Toast indicating whether or not the update was successful
+                    displayToast(rowsAffected, R.string.update_failed, R.string.update_successful);
+
+                    // Returns to CatalogActivity
+                    finish();
+                }
+            });
+        }
     }
 
     @Override
@@ -375,14 +507,58 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      * Deletes the current item in the editor from the database
      */
     private void deleteItem() {
-        // Deletes this item from the database and save the rows deleted
-        int rowsDeleted = getContentResolver().delete(mCurrentItemUri, null, null);
+        // Ignores the request if the item is already being written
+        if (mWritePending) {
+            return;
+        }
+
+        // Deletes this item from the database in the background
+        mWritePending = true;
+        mWriter.delete(mCurrentItemUri, new AsyncItemWriter.Callback<Integer>() {
+            @Override
+            public void onWriteComplete(Integer rowsDeleted) {
+                mWritePending = false;
+
+                // Shows a Toast indicating whether or not the deletion was successful
+                displayToast(rowsDeleted, R.string.deletion_failed, R.string.deletion_successful);
+
+                // Closes EditorActivity
+                finish();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
 
-        // Shows a Toast indicating whether or not the deletion was successful
-        displayToast(rowsDeleted, R.string.deletion_failed, R.string.deletion_successful);
+        // A write still running completes, but this activity is no longer told about it
+        mWriter.release();
+        mThumbnails.cancel(mPhotoImageView);
 
-        // Closes EditorActivity
-        finish();
+        // A photo chosen but never saved is not needed once the editor is closed. While a
+        // save is still being written it may yet become the item's, so it is kept.
+        if (isFinishing() && !mWritePending) {
+            discardNewPhoto();
+        }
+    }
+
+    /**
+     * Deletes the photo chosen in this editor and not saved, if any, in the background.
+     */
+    private void discardNewPhoto() {
+        if (mNewPhoto == null) {
+            return;
+        }
+        final Context context = getApplicationContext();
+        final String photo = mNewPhoto;
+        mNewPhoto = null;
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                ItemPhotos.deletePhoto(context, photo);
+            }
+        });
     }
 
     /**
@@ -411,7 +587,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 ItemEntry.COLUMN_ITEM_NAME,
                 ItemEntry.COLUMN_ITEM_QUANTITY,
                 ItemEntry.COLUMN_ITEM_PRICE,
-                ItemEntry.COLUMN_ITEM_DESCRIPTION};
+                ItemEntry.COLUMN_ITEM_DESCRIPTION,
+                ItemEntry.COLUMN_ITEM_PHOTO,
+                ItemEntry.COLUMN_ITEM_VERSION};
 
         // Executes the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Current context
@@ -429,6 +607,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             return;
         }
 
+        // Keeps the user's edits, and the version they started from, when the item changes
+        // elsewhere; saving them then reports the conflict
+        if (mItemHasChanged && mVersion >= 0) {
+            return;
+        }
+
         // Moves to the first row of the cursor and reads data
         if (data.moveToFirst()) {
             // Finds the columns of the data we want
@@ -440,14 +624,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // Extracts the value from the cursor for the given column
             String name = data.getString(nameColumn);
             int quantity = data.getInt(quantityColumn);
-            double price = data.getDouble(priceColumn);
+            long price = ItemEntry.getPrice(data, priceColumn);
             String description = data.getString(descriptionColumn);
+            mVersion = data.getLong(data.getColumnIndex(ItemEntry.COLUMN_ITEM_VERSION));
 
             // Updates the views with the extracted values
             mNameEditText.setText(name);
             mQuantityEditText.setText(String.valueOf(quantity));
-            mPriceEditText.setText(String.format("%.2f", price));
+            mPriceEditText.setText(PriceUtils.formatPrice(price));
             mDescriptionEditText.setText(description);
+
+            // Shows the saved photo, unless the user has already chosen a new one
+            if (mNewPhoto == null) {
+                mPhoto = data.getString(data.getColumnIndex(ItemEntry.COLUMN_ITEM_PHOTO));
+                mThumbnails.load(mPhoto, mPhotoImageView);
+            }
         }
     }
 
@@ -459,4 +650,39 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mPriceEditText.setText("");
         mDescriptionEditText.setText("");
     }
+
+    /**
+     * Copies a picture the user picked into a new photo on a background thread, then shows it
+     * in place of the item's current photo.
+     */
+    private class SavePhotoTask extends AsyncTask<Uri, Void, String> {
+        @Override
+        protected String doInBackground(Uri... uris) {
+            try {
+                return ItemPhotos.savePhoto(EditorActivity.this, uris[0]);
+            } catch (IOException | RuntimeException e) {
+                Log.e(LOG_TAG, "Cannot save photo " + uris[0], e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String photo) {
+            if (photo == null) {
+                Toast.makeText(EditorActivity.this, R.string.photo_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // Replaces any other photo chosen in this editor, which was never saved
+            discardNewPhoto();
+            mNewPhoto = photo;
+            if (isDestroyed()) {
+                discardNewPhoto();
+                return;
+            }
+            mPhoto = photo;
+            mItemHasChanged = true;
+            mThumbnails.load(mPhoto, mPhotoImageView);
+        }
+    }
 }
@@ -0,0 +1,42 @@
+package com.ryanlentz.inventory;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+/**
+ * The inventory app. Debug builds run with StrictMode, so disk or network access on the main
+ * thread, which makes the UI stutter or stop responding, fails loudly during development.
+ */
+public class InventoryApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        if (BuildConfig.DEBUG) {
+            // Crashes on any disk or network access on the main thread
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .penaltyDeath()
+                    .build());
+
+            // Logs database cursors and other closeable objects that are never closed
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Thumbnails can be loaded again, so they are the first thing to give back
+        ThumbnailLoader.trimMemory(level);
+    }
+}
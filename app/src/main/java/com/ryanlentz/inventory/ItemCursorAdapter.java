@@ -1,110 +1,469 @@
 package com.ryanlentz.inventory;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.net.Uri;
-import android.support.v4.widget.CursorAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.PriceUtils;
+import com.ryanlentz.inventory.data.SaleQueue;
 
-import static android.R.attr.id;
-import static com.ryanlentz.inventory.R.id.price;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * {@link ItemCursorAdapter} is an adapter for a list or grid view
+ * {@link ItemCursorAdapter} is an adapter for a {@link RecyclerView}
  * that uses a {@link Cursor} of item data as its data source. This adapter knows
  * how to create list items for each row of item data in the {@link Cursor}.
+ * <p>
+ * Binding a row does not allocate: views are found once per {@link ViewHolder}, column indices
+ * are resolved once per Cursor, text is copied into buffers owned by the holder and each holder
+ * has a single click listener.
+ * <p>
+ * The list is made of {@link Page pages}. Each page's rows, and what changed since the page it
+ * replaces, are worked out on the thread that loaded it, so swapping in a reloaded page only
+ * rebinds the rows that changed and never steps through a cursor on the main thread.
+ * <p>
+ * Sales go through the {@link SaleQueue}, so rapid taps are written together. Quantities are
+ * shown less the sales still waiting in the queue.
+ * <p>
+ * Photo thumbnails come from the {@link ThumbnailLoader}: a row binds straight from memory if
+ * it can, and otherwise its thumbnail is decoded in the background and shown once ready.
  */
-public class ItemCursorAdapter extends CursorAdapter {
+public class ItemCursorAdapter extends RecyclerView.Adapter<ItemCursorAdapter.ViewHolder> {
+
+    /**
+     * Listener for clicks on a list item
+     */
+    public interface OnItemClickListener {
+        /**
+         * Called when the list item of the item with the given ID is clicked
+         */
+        void onItemClick(long id);
+    }
+
+    /** Initial size of the buffer holding an item's name */
+    private static final int NAME_BUFFER_SIZE = 64;
+
+    /** Large enough for the digits of any long, a sign, a currency symbol and a decimal point */
+    private static final int NUMBER_BUFFER_SIZE = 24;
+
+    /** The context */
+    private final Context mContext;
+
+    /** Listener for clicks on list items */
+    private final OnItemClickListener mListener;
+
+    /** Queue the sales are written through */
+    private final SaleQueue mSaleQueue;
+
+    /** Loader of the photo thumbnails */
+    private final ThumbnailLoader mThumbnails;
+
+    /** The cursor from which to get the data */
+    private Cursor mCursor;
+
+    /** Column indices of the current cursor */
+    private int mNameColumn;
+    private int mPriceColumn;
+    private int mQuantityColumn;
+    private int mPhotoColumn;
+
+    /** The pages shown, in order */
+    private List<Page> mPages = Collections.emptyList();
+
+    /** ID of the item at each position of the current cursor */
+    private long[] mIds = new long[0];
+
+    /** Photo of the item at each position of the current cursor, or null */
+    private String[] mPhotos = new String[0];
+
     /**
      * Constructs a new {@link ItemCursorAdapter}
      * @param context   The context
-     * @param cursor    The cursor from which to get the data
+     * @param listener  Listener for clicks on list items
+     */
+    public ItemCursorAdapter(Context context, OnItemClickListener listener) {
+        mContext = context;
+        mListener = listener;
+        mSaleQueue = SaleQueue.getInstance(context);
+        mThumbnails = ThumbnailLoader.getInstance(context);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Swaps in a new cursor of a single page, read on the calling thread, and returns the old
+     * one without closing it. Every row is rebound.
+     *
+     * @param newCursor The new cursor, or null to clear the list
+     * @return the previous cursor, or null if the cursor did not change
+     */
+    public Cursor swapCursor(Cursor newCursor) {
+        return swapPages(newCursor, newCursor == null ? Collections.<Page>emptyList()
+                : Collections.singletonList(Page.read(newCursor, Long.MAX_VALUE, null)));
+    }
+
+    /**
+     * Swaps in a new cursor holding the rows of the given pages, one after the other, and
+     * returns the old one without closing it. A page that replaces the one shown at its place
+     * dispatches the differences worked out when it was read, so only its rows that changed are
+     * updated; pages that did not change are left alone.
+     *
+     * @param newCursor The new cursor, or null to clear the list
+     * @param pages     The pages the cursor's rows come from, in order
+     * @return the previous cursor, or null if the cursor did not change
      */
-    public ItemCursorAdapter(Context context, Cursor cursor) {
-        super(context, cursor, 0 /* flags */);
+    public Cursor swapPages(Cursor newCursor, List<Page> pages) {
+        if (newCursor == mCursor) {
+            return null;
+        }
+        Cursor oldCursor = mCursor;
+        List<Page> oldPages = mPages;
+
+        // Resolves the columns and joins the pages' rows
+        mCursor = newCursor;
+        mPages = newCursor == null ? Collections.<Page>emptyList() : new ArrayList<>(pages);
+        if (newCursor != null) {
+            mNameColumn = newCursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_NAME);
+            mPriceColumn = newCursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_PRICE);
+            mQuantityColumn = newCursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_QUANTITY);
+            mPhotoColumn = newCursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_PHOTO);
+        }
+        int count = 0;
+        for (Page page : mPages) {
+            count += page.size();
+        }
+        mIds = new long[count];
+        mPhotos = new String[count];
+        int position = 0;
+        for (Page page : mPages) {
+            System.arraycopy(page.mIds, 0, mIds, position, page.size());
+            System.arraycopy(page.mPhotos, 0, mPhotos, position, page.size());
+            position += page.size();
+        }
+
+        // Dispatches the changes page by page. The pages before the one being dispatched are
+        // already updated, so its rows start where the new pages before it end.
+        position = 0;
+        int index = 0;
+        for (; index < mPages.size(); index++) {
+            Page page = mPages.get(index);
+            Page oldPage = index < oldPages.size() ? oldPages.get(index) : null;
+            if (page == oldPage) {
+                // Unchanged
+            } else if (oldPage != null && page.mPrevious == oldPage) {
+                page.mDiff.dispatchUpdatesTo(new OffsetUpdateCallback(position));
+            } else {
+                if (oldPage != null) {
+                    notifyItemRangeRemoved(position, oldPage.size());
+                }
+                notifyItemRangeInserted(position, page.size());
+            }
+            position += page.size();
+        }
+        int removed = 0;
+        for (; index < oldPages.size(); index++) {
+            removed += oldPages.get(index).size();
+        }
+        if (removed > 0) {
+            notifyItemRangeRemoved(position, removed);
+        }
+        return oldCursor;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mIds[position];
     }
 
     /**
-     * Makes a new blank list item view. No data is set (or bound) to the views yet.
+     * Makes a new blank list item view and its holder. No data is set (or bound) to the views yet.
      *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
+     * @param parent   The parent to which the new view is attached to
+     * @param viewType The view type of the new view
+     * @return the holder of the newly created list item view.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(view);
     }
 
     /**
-     * This method binds the item data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current item can be set on the name TextView
+     * This method binds the item data (in the row at the given position) to the views of the
+     * given holder. For example, the name for the current item can be set on the name TextView
      * in the list item layout.
      *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * @param holder   Holder returned earlier by onCreateViewHolder()
+     * @param position Position of the row in the cursor
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-
-        // Finds the views associated with the data to be displayed in the list item layout
-        TextView itemNameTextView = (TextView) view.findViewById(R.id.name);
-        TextView itemPriceTextView = (TextView) view.findViewById(price);
-        TextView itemQuantityTextView = (TextView) view.findViewById(R.id.quantity);
-        Button sellItemButton = (Button) view.findViewById(R.id.sell_button);
-
-        // Extracts the string data to be displayed
-        String itemName = cursor.getString(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_NAME));
-        Double itemPrice = cursor.getDouble(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_PRICE));
-        final String itemQuantity = cursor.getString(cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_QUANTITY));
-        final String itemId = cursor.getString(cursor.getColumnIndexOrThrow(ItemEntry._ID));
-
-        // Initializes each view with the appropriate string
-        itemNameTextView.setText(itemName);
-        itemPriceTextView.setText(String.format("$%.2f", itemPrice));
-        itemQuantityTextView.setText(itemQuantity);
-
-        // Set on click listener on the sellItemButton
-        sellItemButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                sellItem(itemId, itemQuantity);
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        mCursor.moveToPosition(position);
+
+        // Copies the name straight into the holder's buffer
+        mCursor.copyStringToBuffer(mNameColumn, holder.mName);
+        holder.mNameTextView.setText(holder.mName.data, 0, holder.mName.sizeCopied);
+
+        // Formats the price and quantity into the holder's buffers
+        int length = formatPrice(holder.mPrice, ItemEntry.getPrice(mCursor, mPriceColumn));
+        holder.mPriceTextView.setText(holder.mPrice, 0, length);
+
+        length = formatLong(holder.mQuantity, 0, getQuantity(position));
+        holder.mQuantityTextView.setText(holder.mQuantity, 0, length);
+
+        mThumbnails.load(mPhotos[position], holder.mPhotoImageView);
+    }
+
+    /**
+     * Stops loading the thumbnail of a row that has scrolled out of the list.
+     */
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        mThumbnails.cancel(holder.mPhotoImageView);
+    }
+
+    /**
+     * Writes a price in cents as "$d.cc" into the buffer and returns its length.
+     */
+    static int formatPrice(char[] buffer, long cents) {
+        buffer[0] = '$';
+        return PriceUtils.formatPrice(buffer, 1, cents);
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative number into the buffer at the given offset
+     * and returns the offset after the last digit.
+     */
+    static int formatLong(char[] buffer, int offset, long value) {
+        // Counts the digits, then fills them in from the right
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the quantity of the item at the given position less its sales still in the queue.
+     */
+    private int getQuantity(int position) {
+        mCursor.moveToPosition(position);
+        int pending = mSaleQueue.getPendingSales(mIds[position]);
+        return Math.max(0, mCursor.getInt(mQuantityColumn) - pending);
+    }
+
+    /**
+     * Decreases the quantity by one if any is left. The sale is queued and the row shows the
+     * new quantity straight away; the provider writes it later without letting the quantity
+     * drop below zero, so taps made before the list has refreshed are never lost.
+     */
+    private void sellItem(int position) {
+        if (getQuantity(position) == 0) {
+            return;
+        }
+        mSaleQueue.sell(mIds[position]);
+        notifyItemChanged(position);
+    }
+
+    /**
+     * Passes the updates of one page on to the list, moved to where the page starts.
+     */
+    private class OffsetUpdateCallback implements ListUpdateCallback {
+        private final int mOffset;
+
+        OffsetUpdateCallback(int offset) {
+            mOffset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(mOffset + position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(mOffset + position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(mOffset + fromPosition, mOffset + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            notifyItemRangeChanged(mOffset + position, count, payload);
+        }
+    }
+
+    /**
+     * A snapshot of the rows of one page of the list: the ID, photo and a hash of the displayed
+     * contents of each item, and the differences from the page it replaces. Pages are read on
+     * the thread that loads them, so the main thread never has to step through their rows.
+     */
+    public static class Page {
+        /** ID of the item at each position of the page */
+        final long[] mIds;
+
+        /** Photo of the item at each position of the page, or null */
+        final String[] mPhotos;
+
+        /** Hash of the displayed contents of the item at each position of the page */
+        final int[] mContentHashes;
+
+        /** The page this one replaces, or null; only touched on the main thread once read */
+        Page mPrevious;
+
+        /** The differences from {@link #mPrevious}, or null if there is none */
+        DiffUtil.DiffResult mDiff;
+
+        private Page(long[] ids, String[] photos, int[] contentHashes, final Page previous) {
+            mIds = ids;
+            mPhotos = photos;
+            mContentHashes = contentHashes;
+            mPrevious = previous;
+            mDiff = previous == null ? null : DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return previous.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return previous.mIds[oldItemPosition] == mIds[newItemPosition];
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    return previous.mContentHashes[oldItemPosition]
+                            == mContentHashes[newItemPosition];
+                }
+            }, false /* rows are sorted by ID, so they never move */);
+        }
+
+        /**
+         * Reads the rows of a page sorted by ID, up to and including the given ID, and works out
+         * what changed since the previous page. Call it on a background thread.
+         *
+         * @param cursor   The page's rows
+         * @param lastId   The highest ID to read; rows after it are left to the next page
+         * @param previous The page this one replaces, or null
+         */
+        public static Page read(Cursor cursor, long lastId, Page previous) {
+            int idColumn = cursor.getColumnIndexOrThrow(ItemEntry._ID);
+            int nameColumn = cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_NAME);
+            int priceColumn = cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_PRICE);
+            int quantityColumn = cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_QUANTITY);
+            int photoColumn = cursor.getColumnIndexOrThrow(ItemEntry.COLUMN_ITEM_PHOTO);
+
+            // The rows past the last ID form a suffix
+            int count = cursor.getCount();
+            while (count > 0 && cursor.moveToPosition(count - 1)
+                    && cursor.getLong(idColumn) > lastId) {
+                count--;
+            }
+
+            long[] ids = new long[count];
+            String[] photos = new String[count];
+            int[] contentHashes = new int[count];
+            for (int position = 0; position < count; position++) {
+                cursor.moveToPosition(position);
+                ids[position] = cursor.getLong(idColumn);
+                photos[position] = cursor.getString(photoColumn);
+
+                String name = cursor.getString(nameColumn);
+                long price = ItemEntry.getPrice(cursor, priceColumn);
+                int hash = name == null ? 0 : name.hashCode();
+                hash = 31 * hash + (int) (price ^ (price >>> 32));
+                hash = 31 * hash + (photos[position] == null ? 0 : photos[position].hashCode());
+                contentHashes[position] = 31 * hash + cursor.getInt(quantityColumn);
             }
-        });
+            return new Page(ids, photos, contentHashes, previous);
+        }
+
+        /**
+         * Drops the page this one replaces and the differences from it, once they can no longer
+         * be dispatched, so pages read one after another do not keep each other alive.
+         */
+        public void releasePrevious() {
+            mPrevious = null;
+            mDiff = null;
+        }
+
+        /**
+         * Returns the number of rows of the page.
+         */
+        public int size() {
+            return mIds.length;
+        }
     }
 
     /**
-     * Decreases the quantity by one
+     * Holds the views of one list item together with the buffers its text is formatted into.
+     * The holder is its own click listener, so no listener is created when a row is bound.
      */
-    private void sellItem(String id, String quantityString) {
-        // Gets quantity as an integer
-        int quantity = Integer.parseInt(quantityString);
-
-        // Checks if quantity is at least one since it cannot go below zero
-        if (quantity >= 1) {
-            // An item has sold so decrease quantity by one
-            quantity--;
-            // Creates a ContentValues object where the keys are column names and values are item
-            // attributes
-            ContentValues values = new ContentValues();
-            values.put(ItemEntry.COLUMN_ITEM_QUANTITY, quantity);
-
-            // Creates the URI for the current item
-            Uri uri = Uri.withAppendedPath(ItemEntry.CONTENT_URI, id);
-
-            // Updates the database for the current item with the new quantity
-            mContext.getContentResolver().update(uri, values, null, null);
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView mNameTextView;
+        final TextView mPriceTextView;
+        final TextView mQuantityTextView;
+        final ImageView mPhotoImageView;
+        final Button mSellItemButton;
+
+        final CharArrayBuffer mName = new CharArrayBuffer(NAME_BUFFER_SIZE);
+        final char[] mPrice = new char[NUMBER_BUFFER_SIZE];
+        final char[] mQuantity = new char[NUMBER_BUFFER_SIZE];
+
+        ViewHolder(View itemView) {
+            super(itemView);
+
+            // Finds the views associated with the data to be displayed in the list item layout
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mPriceTextView = (TextView) itemView.findViewById(R.id.price);
+            mQuantityTextView = (TextView) itemView.findViewById(R.id.quantity);
+            mPhotoImageView = (ImageView) itemView.findViewById(R.id.photo);
+            mSellItemButton = (Button) itemView.findViewById(R.id.sell_button);
+
+            itemView.setOnClickListener(this);
+            mSellItemButton.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            if (v == mSellItemButton) {
+                sellItem(position);
+            } else {
+                mListener.onItemClick(mIds[position]);
+            }
         }
     }
 }
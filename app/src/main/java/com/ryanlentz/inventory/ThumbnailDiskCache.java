@@ -0,0 +1,143 @@
+package com.ryanlentz.inventory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Thumbnails saved as files in a directory that holds at most a given number of bytes. Reading
+ * a small thumbnail back is much cheaper than decoding it again from the full photo, so
+ * thumbnails evicted from memory, or made before the app was restarted, load quickly.
+ * <p>
+ * When the directory grows past its limit, the least recently used thumbnails are deleted.
+ * Files are only touched on background threads.
+ */
+class ThumbnailDiskCache {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ThumbnailDiskCache.class.getSimpleName();
+
+    /** JPEG quality thumbnails are saved with */
+    private static final int JPEG_QUALITY = 85;
+
+    /** Directory of the thumbnails */
+    private final File mDirectory;
+
+    /** Most bytes of thumbnails kept */
+    private final long mMaxBytes;
+
+    /** Bytes of thumbnails in the directory, or -1 until it has been counted */
+    private long mBytes = -1;
+
+    ThumbnailDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the thumbnail saved under the given key, or null if there is none. The thumbnail
+     * becomes the most recently used.
+     */
+    Bitmap get(String key) {
+        File file = new File(mDirectory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        // The file may be trimmed while it is read, which only makes this a miss
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap != null) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Saves a thumbnail under the given key, then trims the least recently used ones if the
+     * directory has grown past its limit.
+     */
+    synchronized void put(String key, Bitmap bitmap) {
+        if (mBytes < 0) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                Log.w(LOG_TAG, "Cannot create " + mDirectory);
+                return;
+            }
+            mBytes = 0;
+            for (File file : listFiles()) {
+                mBytes += file.length();
+            }
+        }
+
+        // Written under a temporary name, so a reader never sees a partial thumbnail
+        File file = new File(mDirectory, key);
+        File temp = new File(mDirectory, key + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            long replaced = file.length();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            mBytes += file.length() - replaced;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot save thumbnail " + key, e);
+            temp.delete();
+            return;
+        }
+
+        if (mBytes > mMaxBytes) {
+            trim();
+        }
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the directory is within its limit.
+     */
+    private void trim() {
+        File[] files = listFiles();
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        // Sorted on times read once, as they may change while sorting
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long difference = lastModified[a] - lastModified[b];
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < order.length && mBytes > mMaxBytes; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                mBytes -= length;
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of thumbnails saved, or 0 if none has been saved since the cache was
+     * created.
+     */
+    synchronized long size() {
+        return Math.max(0, mBytes);
+    }
+
+    private File[] listFiles() {
+        File[] files = mDirectory.listFiles();
+        return files == null ? new File[0] : files;
+    }
+}
@@ -0,0 +1,267 @@
+package com.ryanlentz.inventory;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.ryanlentz.inventory.data.ItemPhotos;
+
+import java.io.File;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads square thumbnails of item photos into ImageViews without touching the disk on the main
+ * thread. Thumbnails come from a memory cache if they are there, which is checked while the
+ * row is bound; otherwise they are read from a disk cache or decoded from the photo, sampled
+ * down so the full-size picture is never held in memory, on background threads.
+ * <p>
+ * The newest requests run first, so while the list scrolls the rows on screen load before the
+ * ones that already scrolled past, and a request is cancelled when its view is bound to another
+ * photo or recycled. Its methods must be called on the main thread.
+ */
+public class ThumbnailLoader {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ThumbnailLoader.class.getSimpleName();
+
+    /** The memory cache takes at most this fraction of the memory the app may use */
+    private static final int MEMORY_CACHE_DIVISOR = 8;
+
+    /** Most bytes of thumbnails kept on disk */
+    private static final long DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Directory of the disk cache, inside the app's cache directory */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /** Number of threads decoding thumbnails */
+    private static final int THREADS = 2;
+
+    /** The loader shared by the whole app, or null until it is first used */
+    private static ThumbnailLoader sInstance;
+
+    /**
+     * Returns the loader shared by the whole app.
+     */
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Frees thumbnails from memory, more of them the lower memory is. Does nothing if the
+     * loader was never used.
+     *
+     * @param level the level passed to {@link ComponentCallbacks2#onTrimMemory}
+     */
+    public static synchronized void trimMemory(int level) {
+        if (sInstance == null) {
+            return;
+        }
+        LruCache<String, Bitmap> cache = sInstance.mMemoryCache;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    /** The app context */
+    private final Context mContext;
+
+    /** Width and height of a thumbnail, in pixels */
+    private final int mSize;
+
+    /** Thumbnails by photo name, sized by the bytes of their pixels */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Thumbnails saved as files, created on a background thread when first needed */
+    private ThumbnailDiskCache mDiskCache;
+
+    /** Threads the thumbnails are loaded on, taking the newest request first */
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Handler the thumbnails are delivered through */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ThumbnailLoader(Context context) {
+        mContext = context;
+        mSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxBytes = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_DIVISOR;
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String photo, Bitmap thumbnail) {
+                return thumbnail.getByteCount();
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable request) {
+                        return offerFirst(request);
+                    }
+                },
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, LOG_TAG);
+                    }
+                });
+    }
+
+    /**
+     * Shows the thumbnail of the given photo in the view, straight away if it is in memory and
+     * otherwise once it has loaded; the view is empty meanwhile. Any thumbnail still loading
+     * for the view is cancelled. Nothing is allocated when the thumbnail is in memory or there
+     * is no photo.
+     *
+     * @param photo name of the photo, or null to clear the view
+     */
+    public void load(String photo, ImageView view) {
+        cancel(view);
+        Bitmap thumbnail = photo == null ? null : mMemoryCache.get(photo);
+        if (thumbnail != null) {
+            view.setImageBitmap(thumbnail);
+            return;
+        }
+        view.setImageDrawable(null);
+        if (photo == null) {
+            return;
+        }
+        Request request = new Request(photo, view);
+        view.setTag(request);
+        mExecutor.execute(request);
+    }
+
+    /**
+     * Cancels the thumbnail loading for the view, if any, for example once it is recycled.
+     */
+    public void cancel(ImageView view) {
+        Object tag = view.getTag();
+        if (tag instanceof Request) {
+            Request request = (Request) tag;
+            request.mCancelled = true;
+            mExecutor.remove(request);
+            view.setTag(null);
+        }
+    }
+
+    /**
+     * Returns the thumbnail of the given photo from the disk cache, or decodes and saves it
+     * there. Returns null if the photo cannot be decoded. Runs on a background thread.
+     */
+    private Bitmap loadThumbnail(String photo) {
+        ThumbnailDiskCache diskCache;
+        synchronized (this) {
+            if (mDiskCache == null) {
+                mDiskCache = new ThumbnailDiskCache(
+                        new File(mContext.getCacheDir(), DISK_CACHE_DIRECTORY), DISK_CACHE_BYTES);
+            }
+            diskCache = mDiskCache;
+        }
+
+        // The size is part of the key, so thumbnails saved at another screen density are not used
+        String key = mSize + "-" + photo;
+        Bitmap thumbnail = diskCache.get(key);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        Bitmap sampled = ItemPhotos.decodeSampled(ItemPhotos.getPhotoFile(mContext, photo),
+                mSize, mSize);
+        if (sampled == null) {
+            return null;
+        }
+        thumbnail = cropToSquare(sampled, mSize);
+        if (thumbnail != sampled) {
+            sampled.recycle();
+        }
+        diskCache.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Returns the centre square of the bitmap scaled to the given size, which may be the bitmap
+     * itself if it already is that size.
+     */
+    static Bitmap cropToSquare(Bitmap bitmap, int size) {
+        int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (side == size && bitmap.getWidth() == bitmap.getHeight()) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) size / side, (float) size / side);
+        return Bitmap.createBitmap(bitmap, (bitmap.getWidth() - side) / 2,
+                (bitmap.getHeight() - side) / 2, side, side, matrix, true);
+    }
+
+    /**
+     * Loads one thumbnail for one view. The view holds the request as its tag until the
+     * thumbnail is shown or the request is cancelled.
+     */
+    private class Request implements Runnable {
+        final String mPhoto;
+        final ImageView mView;
+
+        /** Set on the main thread once the view no longer wants this thumbnail */
+        volatile boolean mCancelled;
+
+        Request(String photo, ImageView view) {
+            mPhoto = photo;
+            mView = view;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Bitmap thumbnail;
+            try {
+                thumbnail = loadThumbnail(mPhoto);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Cannot load thumbnail of " + mPhoto, e);
+                return;
+            }
+            if (thumbnail == null) {
+                Log.w(LOG_TAG, "Cannot decode photo " + mPhoto);
+                return;
+            }
+
+            final Bitmap loaded = thumbnail;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Cached even if cancelled, as the row will likely be shown again
+                    mMemoryCache.put(mPhoto, loaded);
+                    if (!mCancelled && mView.getTag() == Request.this) {
+                        mView.setTag(null);
+                        mView.setImageBitmap(loaded);
+                    }
+                }
+            });
+        }
+    }
+}
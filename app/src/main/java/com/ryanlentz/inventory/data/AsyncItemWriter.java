@@ -0,0 +1,173 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs item inserts, updates and deletes on a background thread and delivers each result to a
+ * callback on the main thread, so screens never write to the database on the main thread.
+ * <p>
+ * Writes from the whole app run one at a time, in the order they were started, on a single
+ * thread. A write that throws is logged and reported as failed. Once {@link #release} is
+ * called, writes already started still complete but their callbacks are dropped, so a
+ * destroyed activity is not called back.
+ */
+public class AsyncItemWriter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = AsyncItemWriter.class.getSimpleName();
+
+    /**
+     * Receives the result of a write on the main thread
+     */
+    public interface Callback<T> {
+        /**
+         * Called once the write has finished
+         *
+         * @param result the new item's URI for an insert, or null if it failed; the number of
+         *               rows affected for an update or delete, 0 if it failed; the result
+         *               Bundle of a conditional update, or null if it failed
+         */
+        void onWriteComplete(T result);
+    }
+
+    /** The thread every write runs on */
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, LOG_TAG);
+                }
+            });
+
+    /** Resolver the writes go through */
+    private final ContentResolver mResolver;
+
+    /** Handler the callbacks are delivered through */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Set once callbacks should no longer be delivered; only read on the main thread */
+    private boolean mReleased;
+
+    public AsyncItemWriter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Inserts an item in the background
+     */
+    public void insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+        execute(new Write<Uri>(callback, null) {
+            @Override
+            Uri write() {
+                return mResolver.insert(uri, values);
+            }
+        });
+    }
+
+    /**
+     * Updates the items at the URI in the background
+     */
+    public void update(final Uri uri, final ContentValues values, Callback<Integer> callback) {
+        execute(new Write<Integer>(callback, 0) {
+            @Override
+            Integer write() {
+                return mResolver.update(uri, values, null, null);
+            }
+        });
+    }
+
+    /**
+     * Updates a single item in the background if it is still at the given version; see
+     * {@link ItemContract#METHOD_UPDATE_IF_VERSION}
+     */
+    public void updateIfVersion(final Uri itemUri, ContentValues values, long version,
+            Callback<Bundle> callback) {
+        final Bundle extras = new Bundle();
+        extras.putParcelable(ItemContract.EXTRA_VALUES, values);
+        extras.putLong(ItemContract.EXTRA_VERSION, version);
+        execute(new Write<Bundle>(callback, null) {
+            @Override
+            Bundle write() {
+                return mResolver.call(ItemContract.ItemEntry.CONTENT_URI,
+                        ItemContract.METHOD_UPDATE_IF_VERSION,
+                        String.valueOf(ContentUris.parseId(itemUri)), extras);
+            }
+        });
+    }
+
+    /**
+     * Deletes the items at the URI in the background
+     */
+    public void delete(final Uri uri, Callback<Integer> callback) {
+        execute(new Write<Integer>(callback, 0) {
+            @Override
+            Integer write() {
+                return mResolver.delete(uri, null, null);
+            }
+        });
+    }
+
+    /**
+     * Stops delivering callbacks. Call it from the main thread when the caller is destroyed.
+     */
+    public void release() {
+        mReleased = true;
+    }
+
+    private <T> void execute(final Write<T> write) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                try {
+                    result = write.write();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Write failed", e);
+                    result = write.mFailure;
+                }
+                final T delivered = result;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mReleased) {
+                            write.mCallback.onWriteComplete(delivered);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * A write to run in the background, with its callback and the result reported if it throws
+     */
+    private abstract static class Write<T> {
+        final Callback<T> mCallback;
+        final T mFailure;
+
+        Write(Callback<T> callback, T failure) {
+            mCallback = callback;
+            mFailure = failure;
+        }
+
+        abstract T write();
+    }
+}
@@ -0,0 +1,147 @@
+package com.ryanlentz.inventory.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Reads comma-separated values one record at a time, so files of any size are read in constant
+ * memory. Fields may be quoted with double quotes; quoted fields may hold commas, line breaks
+ * and doubled quotes. Lines may end with CRLF or LF, and a leading byte order mark is skipped.
+ */
+public class CsvReader implements Closeable {
+
+    /** Number of characters read from the underlying reader at a time */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The character stream */
+    private final Reader mReader;
+
+    /** Characters read ahead from the stream */
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+
+    /** The field being read; reused for every field */
+    private final StringBuilder mField = new StringBuilder();
+
+    /** Line the last record read started on */
+    private long mRecordLine;
+
+    /** Line the next character is on */
+    private long mLine = 1;
+
+    /** Whether the start of the stream has been checked for a byte order mark */
+    private boolean mStarted;
+
+    public CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Reads the next record into the given list, replacing its contents.
+     *
+     * @return false if the end of the stream was reached before another record
+     * @throws IOException if the stream cannot be read or ends inside a quoted field
+     */
+    public boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        if (!mStarted) {
+            mStarted = true;
+            if (peek() == '\uFEFF') {
+                read();
+            }
+        }
+
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+        mRecordLine = mLine;
+        mField.setLength(0);
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field on line " + mRecordLine);
+                } else if (c == '"') {
+                    // A doubled quote is a quote character, a single one ends the quoted part
+                    if (peek() == '"') {
+                        read();
+                        mField.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    if (c == '\n') {
+                        mLine++;
+                    }
+                    mField.append((char) c);
+                }
+            } else if (c == '"' && mField.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(mField.toString());
+                mField.setLength(0);
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                if (c != -1) {
+                    mLine++;
+                }
+                fields.add(mField.toString());
+                return true;
+            } else {
+                mField.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * Returns the line the last record read started on, counting from 1.
+     */
+    public long getLineNumber() {
+        return mRecordLine;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    /**
+     * Returns the next character without consuming it, or -1 at the end of the stream.
+     */
+    private int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition];
+    }
+
+    /**
+     * Consumes and returns the next character, or -1 at the end of the stream.
+     */
+    private int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    /**
+     * Reads more characters into the buffer. Returns false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        int count = mReader.read(mBuffer, 0, mBuffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        mPosition = 0;
+        mLimit = count;
+        return true;
+    }
+}
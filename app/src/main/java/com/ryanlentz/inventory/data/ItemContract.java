@@ -1,9 +1,13 @@
 package com.ryanlentz.inventory.data;
 
 import android.content.ContentResolver;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * API contract for the Inventory app
  */
@@ -34,9 +38,345 @@ public final class ItemContract {
      */
     public static final String PATH_ITEMS = "items";
 
+    /**
+     * Path (appended to the items path) for full-text search over item names and descriptions.
+     * For instance, content://com.ryanlentz.inventory/items/search?q=blue is a valid search.
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path (appended to the items path) for the inventory totals.
+     * For instance, content://com.ryanlentz.inventory/items/stats is a valid path.
+     */
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path (appended to the items path) for the ledger of stock movements.
+     * For instance, content://com.ryanlentz.inventory/items/movements is a valid path.
+     */
+    public static final String PATH_MOVEMENTS = "movements";
+
+    /**
+     * Path (appended to the items path) for a file export of every item.
+     * For instance, content://com.ryanlentz.inventory/items/export?format=json is a valid path.
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Path (appended to the items path) for looking items up by SKU.
+     * For instance, content://com.ryanlentz.inventory/items/sku/4006381333931 is a valid path.
+     */
+    public static final String PATH_SKU = "sku";
+
+    /**
+     * Path (appended to the items path) for the stock levels of items at each location.
+     * For instance, content://com.ryanlentz.inventory/items/stock?location=2 is a valid path.
+     */
+    public static final String PATH_STOCK = "stock";
+
+    /**
+     * Path (appended to the items path) for the log of local item changes not yet synced.
+     * For instance, content://com.ryanlentz.inventory/items/changes?after=0 is a valid path.
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Provider method that sells units of a single item. Pass the item's ID as the argument to
+     * {@link ContentResolver#call}. The sale is appended to the ledger inside the database and
+     * never takes the location's quantity below zero, so concurrent sales cannot overwrite one
+     * another. Sells from {@link #EXTRA_LOCATION} if given. The result Bundle holds
+     * {@link #EXTRA_SOLD} and {@link #EXTRA_QUANTITY}.
+     */
+    public static final String METHOD_SELL = "sell";
+
+    /**
+     * Provider method that sells units of several items in one transaction. Pass the item IDs in
+     * {@link #EXTRA_ITEM_IDS} and the units of each in {@link #EXTRA_COUNTS}. An item with less
+     * stock than asked for sells what it has. Sells from {@link #EXTRA_LOCATION} if given. The
+     * result Bundle holds {@link #EXTRA_SOLD_COUNTS}.
+     */
+    public static final String METHOD_SELL_BATCH = "sell_batch";
+
+    /**
+     * Provider method that checkpoints the database's write-ahead log into the database file.
+     * Call it when the app goes idle so the log stays short. Takes no argument; the result
+     * Bundle holds {@link #EXTRA_CHECKPOINTED}.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * Provider method that receives units of a single item into stock. Pass the item's ID as the
+     * argument to {@link ContentResolver#call} and the number of units in {@link #EXTRA_COUNT}.
+     * Receives into {@link #EXTRA_LOCATION} if given. The result Bundle holds
+     * {@link #EXTRA_QUANTITY}.
+     */
+    public static final String METHOD_RECEIVE = "receive";
+
+    /**
+     * Provider method that sets the quantity of a single item at one location, for instance
+     * after counting the stock there. Pass the item's ID as the argument to
+     * {@link ContentResolver#call}, the counted units in {@link #EXTRA_QUANTITY} and the location
+     * in {@link #EXTRA_LOCATION}. Only the difference is appended to the ledger, so stock at the
+     * other locations is left alone. The result Bundle holds {@link #EXTRA_QUANTITY}.
+     */
+    public static final String METHOD_ADJUST = "adjust";
+
+    /**
+     * Provider method that folds old stock movements into the stored item quantities, so reading
+     * the current versions and stock levels stays cheap. Movements stay in the ledger. Takes no
+     * argument and an optional {@link #EXTRA_BEFORE}; the result Bundle holds
+     * {@link #EXTRA_FOLDED}.
+     */
+    public static final String METHOD_COMPACT = "compact";
+
+    /**
+     * Provider method that reports how well the provider's cache of single item rows is working.
+     * Takes no argument; the result Bundle holds {@link #EXTRA_CACHE_HITS},
+     * {@link #EXTRA_CACHE_MISSES} and {@link #EXTRA_CACHE_SIZE}.
+     */
+    public static final String METHOD_CACHE_STATS = "cache_stats";
+
+    /**
+     * Provider method that reports how often and how fast the provider's queries, inserts,
+     * updates and deletes ran, per URI pattern. Batches and the provider methods that write are
+     * reported too, under the pattern of what they write: "apply_batch/items",
+     * "sell/item", "sell_batch/items", "receive/item", "adjust/item", "compact/movements",
+     * "apply_changes/items" and "update_if_version/item". The operations of a batch are also
+     * reported one by one. Takes no argument and an optional {@link #EXTRA_RESET}. The result
+     * Bundle holds a Bundle for each operation and pattern called, under keys such as
+     * "query/item" or "update/items", with {@link #METRIC_COUNT}, {@link #METRIC_TOTAL_NANOS},
+     * {@link #METRIC_ROWS} and {@link #METRIC_LATENCY_HISTOGRAM}.
+     */
+    public static final String METHOD_METRICS = "metrics";
+
+    /**
+     * Provider method that reads where sync left off. Takes no argument; the result Bundle holds
+     * {@link #EXTRA_DEVICE_ID}, {@link #EXTRA_CHANGE_ID} with the last local change the central
+     * store acknowledged, and {@link #EXTRA_CHECKPOINT} with the central store's checkpoint the
+     * last changes were pulled up to.
+     */
+    public static final String METHOD_SYNC_STATE = "sync_state";
+
+    /**
+     * Provider method that records that the central store has stored the local changes up to
+     * {@link #EXTRA_CHANGE_ID}. The entries up to it, tombstones included, are dropped from the
+     * change log, so the log only holds what is left to send. Returns no result.
+     */
+    public static final String METHOD_ACKNOWLEDGE_CHANGES = "acknowledge_changes";
+
+    /**
+     * Provider method that applies changes pulled from the central store in one transaction,
+     * together with the store's {@link #EXTRA_CHECKPOINT} they go up to. Pass the changes in
+     * {@link #EXTRA_CHANGES}. The changes are not recorded in the local change log, so they are
+     * never sent back; a change pulled for an item replaces any local change to it not yet
+     * sent. A change that conflicts with local data is resolved instead: a SKU another item
+     * already has here is left off the changed item, and a quantity below the stock held at
+     * other locations is raised to it. Those items are logged, so the resolution is sent back.
+     * The result Bundle holds {@link #EXTRA_CONFLICTS}. If a change cannot be applied at all,
+     * nothing is, and the checkpoint is not saved.
+     */
+    public static final String METHOD_APPLY_CHANGES = "apply_changes";
+
+    /**
+     * Provider method that updates a single item only if it is still at the version the caller
+     * read, so a write based on stale values never overwrites a newer one. Pass the item's ID
+     * as the argument to {@link ContentResolver#call}, the new values in {@link #EXTRA_VALUES}
+     * and the {@link ItemEntry#COLUMN_ITEM_VERSION} read with the old ones in
+     * {@link #EXTRA_VERSION}. The result Bundle holds {@link #EXTRA_CONFLICT} and
+     * {@link #EXTRA_VERSION}.
+     */
+    public static final String METHOD_UPDATE_IF_VERSION = "update_if_version";
+
+    /**
+     * Result extra for {@link #METHOD_CHECKPOINT}; true if the whole log was copied.
+     * Type: boolean
+     */
+    public static final String EXTRA_CHECKPOINTED = "checkpointed";
+
+    /**
+     * Optional extra for {@link #METHOD_COMPACT}; only movements recorded before this time, in
+     * milliseconds since the epoch, are folded. Defaults to the current time.
+     * Type: long
+     */
+    public static final String EXTRA_BEFORE = "before";
+
+    /**
+     * Result extra for {@link #METHOD_COMPACT} with the number of movements folded.
+     * Type: int
+     */
+    public static final String EXTRA_FOLDED = "folded";
+
+    /**
+     * Result extra for {@link #METHOD_CACHE_STATS} with the number of item reads served from
+     * the cache since the provider started.
+     * Type: int
+     */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    /**
+     * Result extra for {@link #METHOD_CACHE_STATS} with the number of cacheable item reads that
+     * had to query the database since the provider started.
+     * Type: int
+     */
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    /**
+     * Result extra for {@link #METHOD_CACHE_STATS} with the estimated memory held by the cached
+     * rows, in bytes.
+     * Type: int
+     */
+    public static final String EXTRA_CACHE_SIZE = "cache_size";
+
+    /**
+     * Optional extra for {@link #METHOD_METRICS}; if true, the metrics start over from zero
+     * after they are read.
+     * Type: boolean
+     */
+    public static final String EXTRA_RESET = "reset";
+
+    /**
+     * Metric of {@link #METHOD_METRICS} with the number of calls.
+     * Type: long
+     */
+    public static final String METRIC_COUNT = "count";
+
+    /**
+     * Metric of {@link #METHOD_METRICS} with the time spent in all calls, in nanoseconds.
+     * Type: long
+     */
+    public static final String METRIC_TOTAL_NANOS = "total_nanos";
+
+    /**
+     * Metric of {@link #METHOD_METRICS} with the rows affected by all calls. Queries leave their
+     * cursors to run as they are read, so their rows are not counted and this is 0 for them.
+     * Batches count their operations, compaction the movements it folded, and the other
+     * provider methods the items they were called for.
+     * Type: long
+     */
+    public static final String METRIC_ROWS = "rows";
+
+    /**
+     * Metric of {@link #METHOD_METRICS} with the number of calls by latency. Element 0 counts
+     * calls that took under a microsecond, and element i calls that took at least 2^(i-1) and
+     * under 2^i microseconds; the last element also counts all slower calls.
+     * Type: long[]
+     */
+    public static final String METRIC_LATENCY_HISTOGRAM = "latency_histogram";
+
+    /**
+     * Optional extra for {@link #METHOD_SELL} and {@link #METHOD_RECEIVE} with the number of
+     * units to sell or receive. Defaults to 1.
+     * Type: int
+     */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Optional extra for {@link #METHOD_SELL}, {@link #METHOD_SELL_BATCH},
+     * {@link #METHOD_RECEIVE} and {@link #METHOD_ADJUST} with the ID of the location the stock
+     * moves at. Defaults to {@link StockEntry#DEFAULT_LOCATION}.
+     * Type: long
+     */
+    public static final String EXTRA_LOCATION = "location";
+
+    /**
+     * Extra for {@link #METHOD_SELL_BATCH} with the IDs of the items to sell.
+     * Type: long[]
+     */
+    public static final String EXTRA_ITEM_IDS = "item_ids";
+
+    /**
+     * Extra for {@link #METHOD_SELL_BATCH} with the units of each item to sell, in the same
+     * order as {@link #EXTRA_ITEM_IDS}.
+     * Type: int[]
+     */
+    public static final String EXTRA_COUNTS = "counts";
+
+    /**
+     * Result extra for {@link #METHOD_SELL_BATCH} with the units of each item actually sold.
+     * Type: int[]
+     */
+    public static final String EXTRA_SOLD_COUNTS = "sold_counts";
+
+    /**
+     * Result extra for {@link #METHOD_SELL}; true if there was enough stock to make the sale.
+     * Type: boolean
+     */
+    public static final String EXTRA_SOLD = "sold";
+
+    /**
+     * Result extra for {@link #METHOD_SELL}, {@link #METHOD_RECEIVE} and {@link #METHOD_ADJUST}
+     * with the item's quantity at the location after the call, or -1 if the item does not
+     * exist. Also the extra for {@link #METHOD_ADJUST} with the quantity to set.
+     * Type: int
+     */
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /**
+     * Result extra for {@link #METHOD_SYNC_STATE} with the ID this database is known by to the
+     * central store.
+     * Type: String
+     */
+    public static final String EXTRA_DEVICE_ID = "device_id";
+
+    /**
+     * Extra for {@link #METHOD_ACKNOWLEDGE_CHANGES}, and result extra for
+     * {@link #METHOD_SYNC_STATE}, with the ID of a change in the {@link ChangeEntry change log}.
+     * Type: long
+     */
+    public static final String EXTRA_CHANGE_ID = "change_id";
+
+    /**
+     * Extra for {@link #METHOD_APPLY_CHANGES}, and result extra for {@link #METHOD_SYNC_STATE},
+     * with a checkpoint of the central store, 0 before anything was pulled.
+     * Type: long
+     */
+    public static final String EXTRA_CHECKPOINT = "checkpoint";
+
+    /**
+     * Extra for {@link #METHOD_APPLY_CHANGES} with one set of values per changed item, holding
+     * its {@link ItemEntry#COLUMN_ITEM_SYNC_ID} and either {@link ChangeEntry#COLUMN_DELETED}
+     * set to true or the item's name, quantity and price, and optionally its description and
+     * SKU.
+     * Type: ContentValues[]
+     */
+    public static final String EXTRA_CHANGES = "changes";
+
+    /**
+     * Result extra for {@link #METHOD_APPLY_CHANGES} with the sync IDs of the items whose
+     * changes conflicted with local data and were resolved.
+     * Type: String[]
+     */
+    public static final String EXTRA_CONFLICTS = "conflicts";
+
+    /**
+     * Extra for {@link #METHOD_UPDATE_IF_VERSION} with the values to write, as for
+     * {@link ContentResolver#update}.
+     * Type: ContentValues
+     */
+    public static final String EXTRA_VALUES = "values";
+
+    /**
+     * Extra for {@link #METHOD_UPDATE_IF_VERSION} with the version the item is expected to be
+     * at, and result extra with its version after the call, or -1 if the item does not exist.
+     * Type: long
+     */
+    public static final String EXTRA_VERSION = "version";
+
+    /**
+     * Result extra for {@link #METHOD_UPDATE_IF_VERSION}; true if the item was at another
+     * version, so nothing was written. Reload the item and reapply the change to retry.
+     * Type: boolean
+     */
+    public static final String EXTRA_CONFLICT = "conflict";
+
     /**
      * Inner class that defines constant values for the items database table.
      * Each entry in the table represents a single item.
+     * <p>
+     * A change to a single item is notified on that item's URI, {@code CONTENT_URI/<id>}, which
+     * also reaches observers of {@link #CONTENT_URI} that watch descendants. A change that may
+     * touch many items is notified on {@link #CONTENT_URI} itself.
+     * Use {@link #getChangedItemId} to tell the two apart in {@code ContentObserver.onChange}.
      */
     public static final class ItemEntry implements BaseColumns {
 
@@ -45,6 +385,114 @@ public final class ItemContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_ITEMS);
 
+        /**
+         * The content URI to search items by name and description. Results are ranked by how
+         * many times the search terms occur, best match first.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Query parameter for {@link #SEARCH_URI} with the text to search for. Each word is
+         * matched as a prefix, and an item must match every word.
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} and {@link #SEARCH_URI} that limits the
+         * number of rows returned.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that returns only items with an ID greater
+         * than the given one, ordered by ID. Pass the ID of the last row of the previous page
+         * (or 0 for the first page) to walk the table one page at a time. With
+         * {@link #QUERY_PARAMETER_SORT}, see {@link #QUERY_PARAMETER_AFTER_VALUE} instead.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that sorts the items by {@link #SORT_NAME},
+         * {@link #SORT_PRICE} or {@link #SORT_QUANTITY}, with ties in ID order. Each sort is
+         * served by an index. Cannot be combined with a sort order argument.
+         */
+        public static final String QUERY_PARAMETER_SORT = "sort";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that reverses the order of
+         * {@link #QUERY_PARAMETER_SORT} when set to "true".
+         */
+        public static final String QUERY_PARAMETER_DESCENDING = "desc";
+
+        /**
+         * Query parameter for a page of items sorted with {@link #QUERY_PARAMETER_SORT}: the
+         * value of the sort column in the last row of the previous page. Pass it together with
+         * that row's ID in {@link #QUERY_PARAMETER_AFTER_ID}; leave both out for the first page.
+         */
+        public static final String QUERY_PARAMETER_AFTER_VALUE = "after_value";
+
+        /** Sorts by name, ignoring case */
+        public static final String SORT_NAME = "name";
+
+        /** Sorts by price */
+        public static final String SORT_PRICE = "price";
+
+        /** Sorts by quantity */
+        public static final String SORT_QUANTITY = "quantity";
+
+        /**
+         * Query parameters for {@link #CONTENT_URI} that return only items with a price, in
+         * cents, of at least and at most the given values.
+         */
+        public static final String QUERY_PARAMETER_MIN_PRICE = "min_price";
+        public static final String QUERY_PARAMETER_MAX_PRICE = "max_price";
+
+        /**
+         * Query parameters for {@link #CONTENT_URI} that return only items with a quantity of
+         * at least and at most the given values.
+         */
+        public static final String QUERY_PARAMETER_MIN_QUANTITY = "min_quantity";
+        public static final String QUERY_PARAMETER_MAX_QUANTITY = "max_quantity";
+
+        /**
+         * The content URI to look items up by SKU. Append a SKU to it (see {@link #buildSkuUri})
+         * for the item with that SKU, or query it with {@link #QUERY_PARAMETER_SKU} (see
+         * {@link #buildSkuLookupUri}) for the items with any of several SKUs. Either way each
+         * SKU is found with a search of its unique index, however many items there are.
+         */
+        public static final Uri SKU_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SKU);
+
+        /**
+         * Query parameter for {@link #SKU_URI}, repeated once for each SKU to look up.
+         */
+        public static final String QUERY_PARAMETER_SKU = "sku";
+
+        /**
+         * The content URI to export every item as a file. Open it for reading with
+         * {@link ContentResolver#openInputStream}; the file is written while it is read, so it
+         * can be as large as the inventory without being stored anywhere first.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * Query parameter for {@link #EXPORT_URI} with the file format, {@link #FORMAT_CSV}
+         * (the default) or {@link #FORMAT_JSON}.
+         */
+        public static final String QUERY_PARAMETER_FORMAT = "format";
+
+        /**
+         * Export formats. CSV has a header row and prices such as "12.50", and can be imported
+         * again. JSON is an array of objects with prices in cents.
+         */
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+
+        /**
+         * The MIME types of the {@link #EXPORT_URI} for each format.
+         */
+        public static final String CSV_TYPE = "text/csv";
+        public static final String JSON_TYPE = "application/json";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of items.
          */
@@ -62,6 +510,12 @@ public final class ItemContract {
          */
         public final static String TABLE_NAME = "items";
 
+        /**
+         * Name of the full-text index over the name and description of items. It is kept in
+         * sync with {@link #TABLE_NAME} by triggers and its docid is the item's {@link #_ID}.
+         */
+        public final static String FTS_TABLE_NAME = "items_fts";
+
         /**
          * Unique ID number for the item (only for use in the database table).
          * <p>
@@ -76,14 +530,17 @@ public final class ItemContract {
         public static final String COLUMN_ITEM_NAME = "name";
         
         /**
-         * Quantity of item
+         * Quantity of item at all locations together. Reads return the current quantity, which
+         * includes every movement in the ledger, without adding up the item's
+         * {@link StockEntry stock levels}. Writing it records an adjustment movement at
+         * {@link StockEntry#DEFAULT_LOCATION} rather than overwriting the row.
          * Type: INTEGER
          */
         public static final String COLUMN_ITEM_QUANTITY = "quantity";
 
         /**
-         * Price of item
-         * Type: REAL
+         * Price of item, in cents. Use {@link PriceUtils} to parse and format it.
+         * Type: INTEGER
          */
         public static final String COLUMN_ITEM_PRICE = "price";
 
@@ -93,6 +550,463 @@ public final class ItemContract {
          * Type: TEXT
          */
         public static final String COLUMN_ITEM_DESCRIPTION = "description";
-        
+
+        /**
+         * File name of the item's photo in the app's photo directory, or null if it has none.
+         * Photos are kept as files rather than in the table, so list queries stay small; see
+         * {@link ItemPhotos}.
+         * Type: TEXT
+         */
+        public static final String COLUMN_ITEM_PHOTO = "photo";
+
+        /**
+         * Stock keeping unit of the item, such as the number of its barcode, or null. No two
+         * items have the same SKU.
+         * Type: TEXT
+         */
+        public static final String COLUMN_ITEM_SKU = "sku";
+
+        /**
+         * ID the item is known by on every device and in the central store, assigned when the
+         * item is inserted.
+         * Type: TEXT
+         */
+        public static final String COLUMN_ITEM_SYNC_ID = "sync_id";
+
+        /**
+         * Version of the item, which grows with every write to it, stock movements included.
+         * Read-only; see {@link ItemContract#METHOD_UPDATE_IF_VERSION}.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_VERSION = "version";
+
+        /**
+         * Returns the ID of the item a change notification is about, or -1 if the notification
+         * is for the whole list (or the URI is not known) and every item may have changed.
+         */
+        public static long getChangedItemId(Uri uri) {
+            if (uri == null) {
+                return -1;
+            }
+            List<String> segments = uri.getPathSegments();
+            if (segments.size() != 2 || !PATH_ITEMS.equals(segments.get(0))
+                    || !CONTENT_AUTHORITY.equals(uri.getAuthority())) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(segments.get(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Returns the price, in cents, stored in the given column of the cursor's current row.
+         */
+        public static long getPrice(Cursor cursor, int columnIndex) {
+            return cursor.getLong(columnIndex);
+        }
+
+        /**
+         * Builds the URI that searches items for the given text.
+         */
+        public static Uri buildSearchUri(String query) {
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .build();
+        }
+
+        /**
+         * Builds the URI of the item with the given SKU. The cursor it returns has one row, or
+         * none if no item has the SKU.
+         */
+        public static Uri buildSkuUri(String sku) {
+            return SKU_URI.buildUpon().appendPath(sku).build();
+        }
+
+        /**
+         * Builds the URI that looks up the items with any of the given SKUs in one query. The
+         * cursor it returns has a row for each SKU an item has, in no particular order; read
+         * {@link #COLUMN_ITEM_SKU} to match rows to SKUs.
+         */
+        public static Uri buildSkuLookupUri(Collection<String> skus) {
+            Uri.Builder builder = SKU_URI.buildUpon();
+            for (String sku : skus) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SKU, sku);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Builds the URI that exports every item in the given format.
+         */
+        public static Uri buildExportUri(String format) {
+            return EXPORT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                    .build();
+        }
+
+        /**
+         * Builds the URI for one page of items.
+         *
+         * @param afterId ID of the last item on the previous page, or 0 for the first page
+         * @param limit   maximum number of items on the page
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Builds the URI for one page of items in the given order.
+         *
+         * @param sort       {@link #SORT_NAME}, {@link #SORT_PRICE} or {@link #SORT_QUANTITY}
+         * @param descending whether the order is reversed
+         * @param afterValue value of the sort column in the last item on the previous page,
+         *                   or null for the first page
+         * @param afterId    ID of the last item on the previous page; ignored for the first page
+         * @param limit      maximum number of items on the page
+         */
+        public static Uri buildSortedPageUri(String sort, boolean descending, String afterValue,
+                long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT, sort)
+                    .appendQueryParameter(QUERY_PARAMETER_DESCENDING, String.valueOf(descending));
+            if (afterValue != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_VALUE, afterValue)
+                        .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Adds a price range filter to an item list URI. Either bound may be null.
+         *
+         * @param minPrice lowest price in cents, or null
+         * @param maxPrice highest price in cents, or null
+         */
+        public static Uri withPriceRange(Uri uri, Long minPrice, Long maxPrice) {
+            return withRange(uri, QUERY_PARAMETER_MIN_PRICE, minPrice,
+                    QUERY_PARAMETER_MAX_PRICE, maxPrice);
+        }
+
+        /**
+         * Adds a quantity range filter to an item list URI. Either bound may be null.
+         */
+        public static Uri withQuantityRange(Uri uri, Integer minQuantity, Integer maxQuantity) {
+            return withRange(uri, QUERY_PARAMETER_MIN_QUANTITY, minQuantity,
+                    QUERY_PARAMETER_MAX_QUANTITY, maxQuantity);
+        }
+
+        private static Uri withRange(Uri uri, String minParameter, Number min,
+                String maxParameter, Number max) {
+            Uri.Builder builder = uri.buildUpon();
+            if (min != null) {
+                builder.appendQueryParameter(minParameter, min.toString());
+            }
+            if (max != null) {
+                builder.appendQueryParameter(maxParameter, max.toString());
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the inventory totals. The totals live in a
+     * single row that the database keeps current on every change to the items table, so reading
+     * them costs the same however many items there are. Observers of
+     * {@link ItemEntry#CONTENT_URI} changes also see the totals change, since this URI is below it.
+     */
+    public static final class StatsEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the inventory totals in the provider
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(ItemEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the single row of totals.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_ITEMS + "/" + PATH_STATS;
+
+        /**
+         * Name of database table for the inventory totals
+         */
+        public final static String TABLE_NAME = "item_stats";
+
+        /**
+         * Number of items
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_COUNT = "item_count";
+
+        /**
+         * Sum of the quantities of all items
+         * Type: INTEGER
+         */
+        public static final String COLUMN_TOTAL_QUANTITY = "total_quantity";
+
+        /**
+         * Sum of price times quantity over all items, in cents
+         * Type: INTEGER
+         */
+        public static final String COLUMN_TOTAL_VALUE = "total_value";
+
+        /**
+         * Number of items with a quantity of zero
+         * Type: INTEGER
+         */
+        public static final String COLUMN_OUT_OF_STOCK_COUNT = "out_of_stock_count";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock movement ledger. Every sale, receipt
+     * and adjustment of an item's quantity is appended as a row and never changed afterwards, so
+     * the ledger answers questions such as what moved in a given period. The movements are read
+     * only; they are recorded by {@link #METHOD_SELL}, {@link #METHOD_RECEIVE} and by updates of
+     * {@link ItemEntry#COLUMN_ITEM_QUANTITY}. Movement cursors are notified of every item change.
+     */
+    public static final class MovementEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the stock movements in the provider
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(ItemEntry.CONTENT_URI, PATH_MOVEMENTS);
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that returns only movements recorded at or
+         * after the given time, in milliseconds since the epoch.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that returns only movements recorded before
+         * the given time, in milliseconds since the epoch.
+         */
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of movements.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_ITEMS + "/" + PATH_MOVEMENTS;
+
+        /**
+         * Name of database table for stock movements
+         */
+        public final static String TABLE_NAME = "stock_movements";
+
+        /**
+         * ID of the item that moved. Movements of deleted items are kept.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_ID = "item_id";
+
+        /**
+         * ID of the location the stock moved at, {@link StockEntry#DEFAULT_LOCATION} for
+         * movements recorded before there were locations
+         * Type: INTEGER
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /**
+         * Change of the item's quantity, negative for stock going out
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DELTA = "delta";
+
+        /**
+         * What caused the movement: {@link #KIND_SALE}, {@link #KIND_RECEIPT} or
+         * {@link #KIND_ADJUSTMENT}
+         * Type: INTEGER
+         */
+        public static final String COLUMN_KIND = "kind";
+
+        /**
+         * Time the movement was recorded, in milliseconds since the epoch
+         * Type: INTEGER
+         */
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+
+        /**
+         * Possible values for the kind of a movement.
+         */
+        public static final int KIND_SALE = 0;
+        public static final int KIND_RECEIPT = 1;
+        public static final int KIND_ADJUSTMENT = 2;
+
+        /**
+         * Builds the URI for the movements recorded in the given period, oldest first.
+         *
+         * @param fromMillis start of the period (inclusive), in milliseconds since the epoch
+         * @param toMillis   end of the period (exclusive), in milliseconds since the epoch
+         */
+        public static Uri buildWindowUri(long fromMillis, long toMillis) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(fromMillis))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(toMillis))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the stock levels table. Each entry holds the
+     * quantity of one item at one location. Locations are identified by ID only; the app keeps
+     * all its stock at {@link #DEFAULT_LOCATION} until others are used.
+     * <p>
+     * Stock moves through the ledger, so a sale at one location only appends a movement of that
+     * location and never writes another location's level or the item's row. The levels are
+     * keyed by item and location, so the levels of one item, or of one item at one location,
+     * are read with a single index search. Level cursors are notified of every item change.
+     */
+    public static final class StockEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the stock levels in the provider
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(ItemEntry.CONTENT_URI, PATH_STOCK);
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that returns only the levels of the item with
+         * the given ID.
+         */
+        public static final String QUERY_PARAMETER_ITEM = "item";
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that returns only the levels at the location
+         * with the given ID.
+         */
+        public static final String QUERY_PARAMETER_LOCATION = "location";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of stock levels.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_ITEMS + "/" + PATH_STOCK;
+
+        /**
+         * Name of database table for stock levels
+         */
+        public final static String TABLE_NAME = "stock_levels";
+
+        /**
+         * ID of the item. Levels are deleted with their item.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_ID = "item_id";
+
+        /**
+         * ID of the location
+         * Type: INTEGER
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /**
+         * Quantity of the item at the location. Reads return the current quantity, which
+         * includes every movement of the location in the ledger.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * ID of the location stock moves at when no other is given
+         */
+        public static final long DEFAULT_LOCATION = 0;
+
+        /**
+         * Builds the URI for the levels of the given item at every location, in location order.
+         */
+        public static Uri buildItemUri(long itemId) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_ITEM, String.valueOf(itemId))
+                    .build();
+        }
+
+        /**
+         * Builds the URI for the levels of every item at the given location, in item order.
+         */
+        public static Uri buildLocationUri(long locationId) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LOCATION, String.valueOf(locationId))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the log of local item changes, which sync
+     * reads to send only what changed. The log holds one entry per changed item, for its latest
+     * change, so an item changed many times between syncs is sent once with its current values.
+     * A deleted item leaves a tombstone entry, kept until the central store acknowledges it.
+     * <p>
+     * The ID of an entry grows with every change, so the entries after the last acknowledged
+     * change are exactly the changes not yet sent. Changes to photos and to the stored quantity
+     * alone, such as a compaction of the ledger, are not logged.
+     */
+    public static final class ChangeEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the change log in the provider. Rows hold the entry's
+         * {@link #_ID}, {@link ItemEntry#COLUMN_ITEM_SYNC_ID} and {@link #COLUMN_DELETED}, and
+         * the current name, quantity, price, description and SKU of the item, which are null
+         * for tombstones.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(ItemEntry.CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * Query parameter for {@link #CONTENT_URI} that returns only entries with an ID greater
+         * than the given one, in ID order.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of changes.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_ITEMS + "/" + PATH_CHANGES;
+
+        /**
+         * Name of database table for the change log
+         */
+        public final static String TABLE_NAME = "item_changes";
+
+        /**
+         * ID of the item that changed. Each item has one entry at most.
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ITEM_ID = "item_id";
+
+        /**
+         * Sync ID of the item that changed, kept in the entry so a tombstone still has it
+         * Type: TEXT
+         */
+        public static final String COLUMN_SYNC_ID = ItemEntry.COLUMN_ITEM_SYNC_ID;
+
+        /**
+         * Whether the item was deleted
+         * Type: INTEGER (1 for true, 0 for false)
+         */
+        public static final String COLUMN_DELETED = "deleted";
+
+        /**
+         * Builds the URI for one page of changes.
+         *
+         * @param afterChangeId ID of the last change on the previous page, or 0 for the first
+         * @param limit         maximum number of changes on the page
+         */
+        public static Uri buildPageUri(long afterChangeId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterChangeId))
+                    .appendQueryParameter(ItemEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
     }
 }
@@ -1,12 +1,17 @@
 package com.ryanlentz.inventory.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
-
-import static android.R.attr.version;
+import android.util.Log;
 
+import com.ryanlentz.inventory.data.ItemContract.ChangeEntry;
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.MovementEntry;
+import com.ryanlentz.inventory.data.ItemContract.StatsEntry;
+import com.ryanlentz.inventory.data.ItemContract.StockEntry;
 
 public class ItemDbHelper extends SQLiteOpenHelper {
     /**
@@ -17,12 +22,239 @@ public class ItemDbHelper extends SQLiteOpenHelper {
     /**
      * Name of the database file
      */
-    private static final String DATABASE_NAME = "inventory.db";
+    static final String DATABASE_NAME = "inventory.db";
+
+    /**
+     * Database version. If you want to change the schema, add a {@link Migration} to
+     * {@link #MIGRATIONS} and increment the version number to match it.
+     */
+    static final int DATABASE_VERSION = 14;
+
+    /**
+     * Number of pages the write-ahead log may grow to before a commit checkpoints it
+     * automatically. Larger values make bursts of writes cheaper at the cost of a longer log.
+     */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+
+    /**
+     * Name of the single-row table that holds the ID of the last stock movement folded into the
+     * stored item quantities
+     */
+    static final String LEDGER_STATE_TABLE_NAME = "ledger_state";
+
+    /**
+     * Column of {@link #LEDGER_STATE_TABLE_NAME}. Movements with an ID up to this one are
+     * already part of {@link ItemEntry#COLUMN_ITEM_QUANTITY}.
+     */
+    static final String COLUMN_FOLDED_MOVEMENT_ID = "folded_movement_id";
+
+    /**
+     * Name of the single-row table that holds where sync left off
+     */
+    static final String SYNC_STATE_TABLE_NAME = "sync_state";
+
+    /**
+     * Column of {@link #SYNC_STATE_TABLE_NAME} with the ID this database is known by to the
+     * central store, chosen at random when change tracking was added.
+     */
+    static final String COLUMN_DEVICE_ID = "device_id";
+
+    /**
+     * Column of {@link #SYNC_STATE_TABLE_NAME} with the ID of the last change the central store
+     * acknowledged.
+     */
+    static final String COLUMN_ACKNOWLEDGED_CHANGE_ID = "acknowledged_change_id";
+
+    /**
+     * Column of {@link #SYNC_STATE_TABLE_NAME} with the central store's checkpoint the last
+     * changes were pulled up to.
+     */
+    static final String COLUMN_PULLED_CHECKPOINT = "pulled_checkpoint";
+
+    /**
+     * Column of the items table with the current quantity of the item: its stored quantity
+     * plus the movements not yet folded into it. The insert and a trigger on the ledger keep it
+     * up to date, so it can be indexed.
+     */
+    static final String COLUMN_CURRENT_QUANTITY = "current_quantity";
+
+    /**
+     * SQL expression for the current quantity of the item in the current row of the items
+     * table, read from {@link #COLUMN_CURRENT_QUANTITY}.
+     */
+    static final String CURRENT_QUANTITY = ItemEntry.TABLE_NAME + "." + COLUMN_CURRENT_QUANTITY;
+
+    /**
+     * SQL expression for the current version of the item in the current row of the items table:
+     * its stored version plus the number of movements not yet folded into it, counted with the
+     * same range read. A sale or receipt moves the version on without writing the item's row.
+     */
+    static final String CURRENT_VERSION =
+            ItemEntry.TABLE_NAME + "." + ItemEntry.COLUMN_ITEM_VERSION + " + "
+                    + pendingMovements("COUNT(*)", ItemEntry.TABLE_NAME + "." + ItemEntry._ID,
+                    null);
 
     /**
-     * Database version. If you want to change the schema, you must increment the version number.
+     * SQL expression for the current quantity of the stock level in the current row of the
+     * stock levels table: its stored quantity plus the movements at its location not yet folded
+     * into it, summed with a range read on the (item, location, movement) index.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final String CURRENT_LEVEL_QUANTITY =
+            StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_QUANTITY + " + "
+                    + pendingQuantity(StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_ITEM_ID,
+                    StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_LOCATION_ID);
+
+    /**
+     * Schema changes in the order they were made. Each one brings the database from the previous
+     * version to its own version. New databases are created at version 1 and then run through
+     * every migration, so new and upgraded databases always end up with the same schema.
+     */
+    static final Migration[] MIGRATIONS = {
+            // Version 2: full-text index over item names and descriptions
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createSearchIndex(db);
+                    db.execSQL("INSERT INTO " + ItemEntry.FTS_TABLE_NAME
+                            + "(" + ItemEntry.FTS_TABLE_NAME + ") VALUES('rebuild');");
+                }
+            },
+            // Version 3: indexes for sorting and filtering by name, quantity and price
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createIndex(db, "items_name_index", ItemEntry.COLUMN_ITEM_NAME);
+                    createIndex(db, "items_quantity_index", ItemEntry.COLUMN_ITEM_QUANTITY);
+                    createIndex(db, "items_price_index", ItemEntry.COLUMN_ITEM_PRICE);
+                }
+            },
+            // Version 4: prices are stored as whole cents in an INTEGER column instead of REAL
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // SQLite cannot change the type of a column, so the table is rebuilt
+                    db.execSQL("CREATE TABLE items_new ("
+                            + ItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + ItemEntry.COLUMN_ITEM_NAME + " TEXT NOT NULL, "
+                            + ItemEntry.COLUMN_ITEM_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                            + ItemEntry.COLUMN_ITEM_PRICE + " INTEGER NOT NULL, "
+                            + ItemEntry.COLUMN_ITEM_DESCRIPTION + " TEXT);");
+                    db.execSQL("INSERT INTO items_new SELECT "
+                            + ItemEntry._ID + ", "
+                            + ItemEntry.COLUMN_ITEM_NAME + ", "
+                            + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                            + "CAST(ROUND(" + ItemEntry.COLUMN_ITEM_PRICE + " * 100) AS INTEGER), "
+                            + ItemEntry.COLUMN_ITEM_DESCRIPTION
+                            + " FROM " + ItemEntry.TABLE_NAME + ";");
+
+                    // Carries the ID sequence over so IDs of deleted items are never reused
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'items_new';");
+                    db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT 'items_new', seq"
+                            + " FROM sqlite_sequence WHERE name = '" + ItemEntry.TABLE_NAME + "';");
+
+                    // Dropping the old table also drops its indexes and triggers, so they are
+                    // created again on the new one. The IDs are unchanged, so the full-text
+                    // index stays valid.
+                    db.execSQL("DROP TABLE " + ItemEntry.TABLE_NAME + ";");
+                    db.execSQL("ALTER TABLE items_new RENAME TO " + ItemEntry.TABLE_NAME + ";");
+                    createIndex(db, "items_name_index", ItemEntry.COLUMN_ITEM_NAME);
+                    createIndex(db, "items_quantity_index", ItemEntry.COLUMN_ITEM_QUANTITY);
+                    createIndex(db, "items_price_index", ItemEntry.COLUMN_ITEM_PRICE);
+                    createSearchTriggers(db);
+                }
+            },
+            // Version 5: inventory totals kept current by triggers
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createStatsTable(db);
+                }
+            },
+            // Version 6: append-only ledger of stock movements
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createLedger(db);
+                }
+            },
+            // Version 7: the name index ignores case, so it serves the catalog's sort by name
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX items_name_index;");
+                    createIndex(db, "items_name_index",
+                            ItemEntry.COLUMN_ITEM_NAME + " COLLATE NOCASE");
+                }
+            },
+            // Version 8: items may have a photo, stored as a file that the row names
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                            + ItemEntry.COLUMN_ITEM_PHOTO + " TEXT;");
+                }
+            },
+            // Version 9: items may have a SKU, unique and indexed so a scan finds its item
+            // with one index search. Items without one keep a null SKU, which is never a
+            // duplicate.
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                            + ItemEntry.COLUMN_ITEM_SKU + " TEXT;");
+                    db.execSQL("CREATE UNIQUE INDEX items_sku_index ON " + ItemEntry.TABLE_NAME
+                            + " (" + ItemEntry.COLUMN_ITEM_SKU + ");");
+                }
+            },
+            // Version 10: stock is kept per location. Movements record their location, and the
+            // stock levels table holds the folded quantity of each item at each location. All
+            // existing stock is at the default location.
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createStockLevels(db);
+                }
+            },
+            // Version 11: change tracking for sync. Items get an ID that is the same on every
+            // device, and triggers log the latest change of every item, deletions included.
+            // Every existing item is logged, so the first sync sends them all.
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createChangeLog(db);
+                }
+            },
+            // Version 12: a version per item for conditional updates. A trigger moves it on with
+            // every update of the item's row and compaction with every movement folded.
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createItemVersions(db);
+                }
+            },
+            // Version 13: the full-text index also indexes the first two and three letters of
+            // every word, so the prefix searches typed into the search box read those entries
+            // instead of merging every term that shares the prefix. The triggers name the
+            // index table, so they keep working once it is recreated.
+            new Migration(13) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("DROP TABLE " + ItemEntry.FTS_TABLE_NAME + ";");
+                    createSearchTable(db, ", prefix=\"2,3\"");
+                    db.execSQL("INSERT INTO " + ItemEntry.FTS_TABLE_NAME
+                            + "(" + ItemEntry.FTS_TABLE_NAME + ") VALUES('rebuild');");
+                }
+            },
+            // Version 14: the current quantity of every item is kept in its row, so quantity
+            // sorts and ranges are served by an index instead of summing the ledger of every
+            // item. The index on the stored quantity, which nothing compares, is dropped.
+            new Migration(14) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createCurrentQuantities(db);
+                }
+            }
+    };
 
     /**
      * Constructs a new instance of ItemDbHelper
@@ -30,6 +262,107 @@ public class ItemDbHelper extends SQLiteOpenHelper {
      */
     public ItemDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // With write-ahead logging, queries run on their own pooled connections and read the
+        // last committed state, so they are never blocked by a write in progress
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * This is called when the database connection is being configured, before the schema is
+     * created or upgraded.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // All writes go through the primary connection configured here. In WAL mode NORMAL
+        // sync only skips the fsync on commit; a crash of the app can never lose a commit, and
+        // the database stays consistent even on power loss.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        DatabaseUtils.longForQuery(db,
+                "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+    }
+
+    /**
+     * Copies the changes in the write-ahead log back into the database file. The checkpoint is
+     * passive, so it never waits for readers or writers and only copies what it can right now.
+     *
+     * @return true if the whole log was copied, false if readers or writers held some of it back
+     */
+    public boolean checkpoint() {
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            // The result row holds whether the checkpoint was blocked, the number of frames in
+            // the log and the number of frames that were copied
+            return cursor.moveToFirst() && cursor.getInt(0) == 0
+                    && cursor.getInt(1) == cursor.getInt(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Folds the stock movements recorded before the given time into the stored item quantities
+     * and stock levels. The current quantities do not change, but reading them only has to add
+     * up the movements recorded since. The movements themselves stay in the ledger.
+     *
+     * @param beforeMillis only movements recorded before this time are folded
+     * @return the number of movements folded
+     */
+    public int compactLedger(long beforeMillis) {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] folded = new String[2];
+        db.beginTransactionNonExclusive();
+        try {
+            // Movement IDs only grow, so everything up to the newest old movement is folded
+            folded[0] = DatabaseUtils.stringForQuery(db, "SELECT " + COLUMN_FOLDED_MOVEMENT_ID
+                    + " FROM " + LEDGER_STATE_TABLE_NAME, null);
+            folded[1] = DatabaseUtils.stringForQuery(db, "SELECT IFNULL(MAX(" + MovementEntry._ID
+                    + "), ?) FROM " + MovementEntry.TABLE_NAME
+                    + " WHERE " + MovementEntry._ID + " > ?"
+                    + " AND " + MovementEntry.COLUMN_TIMESTAMP + " < ?",
+                    new String[] { folded[0], folded[0], String.valueOf(beforeMillis) });
+            int count = (int) DatabaseUtils.queryNumEntries(db, MovementEntry.TABLE_NAME,
+                    MovementEntry._ID + " > ? AND " + MovementEntry._ID + " <= ?", folded);
+            if (count == 0) {
+                return 0;
+            }
+
+            // Only the rows of items that moved are rewritten, once each. The folded movements
+            // move from the current version into the stored one, so the version stays the same.
+            String range = " FROM " + MovementEntry.TABLE_NAME
+                    + " WHERE " + MovementEntry._ID + " > ? AND " + MovementEntry._ID + " <= ?";
+            String itemMoved = " AND " + MovementEntry.COLUMN_ITEM_ID + " = "
+                    + ItemEntry.TABLE_NAME + "." + ItemEntry._ID;
+            db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET " + ItemEntry.COLUMN_ITEM_QUANTITY
+                    + " = " + ItemEntry.COLUMN_ITEM_QUANTITY
+                    + " + (SELECT SUM(" + MovementEntry.COLUMN_DELTA + ")" + range + itemMoved
+                    + "), " + ItemEntry.COLUMN_ITEM_VERSION + " = " + ItemEntry.COLUMN_ITEM_VERSION
+                    + " + (SELECT COUNT(*)" + range + itemMoved + ")"
+                    + " WHERE " + ItemEntry._ID + " IN (SELECT " + MovementEntry.COLUMN_ITEM_ID
+                    + range + ")", new Object[] {
+                            folded[0], folded[1], folded[0], folded[1], folded[0], folded[1] });
+
+            // Each level is folded from the movements at its own location. Every movement has a
+            // level, created by the trigger that follows the ledger, unless its item is gone.
+            String levelMoved = " AND " + MovementEntry.COLUMN_ITEM_ID + " = "
+                    + StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_ITEM_ID
+                    + " AND " + MovementEntry.COLUMN_LOCATION_ID + " = "
+                    + StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_LOCATION_ID;
+            db.execSQL("UPDATE " + StockEntry.TABLE_NAME + " SET " + StockEntry.COLUMN_QUANTITY
+                    + " = " + StockEntry.COLUMN_QUANTITY
+                    + " + (SELECT SUM(" + MovementEntry.COLUMN_DELTA + ")" + range
+                    + levelMoved + ")"
+                    + " WHERE " + StockEntry.COLUMN_ITEM_ID + " IN (SELECT "
+                    + MovementEntry.COLUMN_ITEM_ID + range + ")"
+                    + " AND EXISTS (SELECT 1" + range + levelMoved + ")", new Object[] {
+                            folded[0], folded[1], folded[0], folded[1], folded[0], folded[1] });
+            db.execSQL("UPDATE " + LEDGER_STATE_TABLE_NAME + " SET " + COLUMN_FOLDED_MOVEMENT_ID
+                    + " = ?", new Object[] { folded[1] });
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -37,6 +370,37 @@ public class ItemDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        // Creates the original schema and then applies every migration on top of it
+        createVersion1Schema(db);
+        migrate(db, 1, DATABASE_VERSION);
+    }
+
+    /**
+     * This is called when the database needs to be upgraded.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Applies, in order, every migration after oldVersion up to and including newVersion.
+     * SQLiteOpenHelper already runs this inside a transaction, so a failed step leaves the
+     * database untouched at oldVersion.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                Log.i(LOG_TAG, "Migrating database to version " + migration.version);
+                migration.migrate(db);
+            }
+        }
+    }
+
+    /**
+     * Creates the items table as it was in version 1 of the database.
+     */
+    static void createVersion1Schema(SQLiteDatabase db) {
         // Creates a String that contains the SQL statement to create the items table
         String SQL_CREATE_ITEMS_TABLE = "CREATE TABLE " + ItemEntry.TABLE_NAME + " ("
                 + ItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -50,10 +414,385 @@ public class ItemDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * Creates an index on a single column of the items table.
      */
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+    private static void createIndex(SQLiteDatabase db, String indexName, String column) {
+        db.execSQL("CREATE INDEX " + indexName + " ON " + ItemEntry.TABLE_NAME
+                + " (" + column + ");");
+    }
+
+    /**
+     * Creates the full-text index over item names and descriptions and the triggers that keep
+     * it in sync with the items table. The index is an external content FTS4 table, so the text
+     * is stored only once, in the items table.
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        createSearchTable(db, "");
+        createSearchTriggers(db);
+    }
+
+    /**
+     * Creates the external content FTS4 table over item names and descriptions, with the given
+     * extra options, each preceded by a comma.
+     */
+    private static void createSearchTable(SQLiteDatabase db, String options) {
+        db.execSQL("CREATE VIRTUAL TABLE " + ItemEntry.FTS_TABLE_NAME + " USING fts4("
+                + "content=\"" + ItemEntry.TABLE_NAME + "\", "
+                + ItemEntry.COLUMN_ITEM_NAME + ", "
+                + ItemEntry.COLUMN_ITEM_DESCRIPTION + options + ");");
+    }
+
+    /**
+     * Creates the triggers that keep the full-text index in sync with the items table.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db) {
+        // The update triggers only fire when the indexed columns are written, so selling an item
+        // or changing its price does not touch the index
+        String indexedColumns = ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_DESCRIPTION;
+        String deleteOld = " BEGIN DELETE FROM " + ItemEntry.FTS_TABLE_NAME
+                + " WHERE docid = old." + ItemEntry._ID + "; END;";
+        String insertNew = " BEGIN INSERT INTO " + ItemEntry.FTS_TABLE_NAME
+                + "(docid, " + indexedColumns + ") VALUES (new." + ItemEntry._ID
+                + ", new." + ItemEntry.COLUMN_ITEM_NAME
+                + ", new." + ItemEntry.COLUMN_ITEM_DESCRIPTION + "); END;";
+
+        db.execSQL("CREATE TRIGGER items_fts_before_update BEFORE UPDATE OF " + indexedColumns
+                + " ON " + ItemEntry.TABLE_NAME + deleteOld);
+        db.execSQL("CREATE TRIGGER items_fts_before_delete BEFORE DELETE ON "
+                + ItemEntry.TABLE_NAME + deleteOld);
+        db.execSQL("CREATE TRIGGER items_fts_after_update AFTER UPDATE OF " + indexedColumns
+                + " ON " + ItemEntry.TABLE_NAME + insertNew);
+        db.execSQL("CREATE TRIGGER items_fts_after_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME + insertNew);
+    }
+
+    /**
+     * Creates the single-row table of inventory totals, fills it from the current items and
+     * adds the triggers that adjust it on every insert, delete and change of quantity or price.
+     * Reading the totals is then a single row lookup however many items there are.
+     */
+    private static void createStatsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " ("
+                + StatsEntry._ID + " INTEGER PRIMARY KEY CHECK (" + StatsEntry._ID + " = 1), "
+                + StatsEntry.COLUMN_ITEM_COUNT + " INTEGER NOT NULL, "
+                + StatsEntry.COLUMN_TOTAL_QUANTITY + " INTEGER NOT NULL, "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " INTEGER NOT NULL, "
+                + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT + " INTEGER NOT NULL);");
+
+        String quantity = ItemEntry.COLUMN_ITEM_QUANTITY;
+        String price = ItemEntry.COLUMN_ITEM_PRICE;
+        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " SELECT 1, COUNT(*), "
+                + "IFNULL(SUM(" + quantity + "), 0), "
+                + "IFNULL(SUM(" + price + " * " + quantity + "), 0), "
+                + "IFNULL(SUM(" + quantity + " = 0), 0) FROM " + ItemEntry.TABLE_NAME + ";");
+
+        // Comparisons are 1 when true and 0 when false, so (quantity = 0) counts out of stock items
+        db.execSQL("CREATE TRIGGER item_stats_after_insert AFTER INSERT ON " + ItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_ITEM_COUNT + " = " + StatsEntry.COLUMN_ITEM_COUNT + " + 1, "
+                + StatsEntry.COLUMN_TOTAL_QUANTITY + " = " + StatsEntry.COLUMN_TOTAL_QUANTITY
+                + " + new." + quantity + ", "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " + new." + price + " * new." + quantity + ", "
+                + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT + " = " + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT
+                + " + (new." + quantity + " = 0); END;");
+        db.execSQL("CREATE TRIGGER item_stats_after_delete AFTER DELETE ON " + ItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_ITEM_COUNT + " = " + StatsEntry.COLUMN_ITEM_COUNT + " - 1, "
+                + StatsEntry.COLUMN_TOTAL_QUANTITY + " = " + StatsEntry.COLUMN_TOTAL_QUANTITY
+                + " - old." + quantity + ", "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " - old." + price + " * old." + quantity + ", "
+                + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT + " = " + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT
+                + " - (old." + quantity + " = 0); END;");
+        db.execSQL("CREATE TRIGGER item_stats_after_update AFTER UPDATE OF " + quantity + ", " + price
+                + " ON " + ItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_TOTAL_QUANTITY + " = " + StatsEntry.COLUMN_TOTAL_QUANTITY
+                + " + new." + quantity + " - old." + quantity + ", "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " + new." + price + " * new." + quantity
+                + " - old." + price + " * old." + quantity + ", "
+                + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT + " = " + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT
+                + " + (new." + quantity + " = 0) - (old." + quantity + " = 0); END;");
+    }
+
+    /**
+     * Returns an SQL expression for the sum of the movements of the given item that are not yet
+     * folded into its stored quantity.
+     */
+    private static String pendingQuantity(String itemId) {
+        return pendingQuantity(itemId, null);
+    }
+
+    /**
+     * Returns an SQL expression for the sum of the movements of the given item at the given
+     * location, or at every location if that is null, that are not yet folded.
+     */
+    private static String pendingQuantity(String itemId, String locationId) {
+        return pendingMovements("IFNULL(SUM(" + MovementEntry.COLUMN_DELTA + "), 0)", itemId,
+                locationId);
+    }
+
+    /**
+     * Returns an SQL expression for the given aggregate over the movements of the given item at
+     * the given location, or at every location if that is null, that are not yet folded.
+     */
+    private static String pendingMovements(String aggregate, String itemId, String locationId) {
+        return "(SELECT " + aggregate
+                + " FROM " + MovementEntry.TABLE_NAME
+                + " WHERE " + MovementEntry.COLUMN_ITEM_ID + " = " + itemId
+                + (locationId == null ? ""
+                        : " AND " + MovementEntry.COLUMN_LOCATION_ID + " = " + locationId)
+                + " AND " + MovementEntry.TABLE_NAME + "." + MovementEntry._ID + " > (SELECT "
+                + COLUMN_FOLDED_MOVEMENT_ID + " FROM " + LEDGER_STATE_TABLE_NAME + "))";
+    }
+
+    /**
+     * Creates the ledger of stock movements and the single row recording how much of it is
+     * folded into the stored item quantities. Quantity changes are appended to the ledger instead
+     * of rewriting the item's row, and the totals triggers are replaced with ones that follow
+     * the ledger.
+     */
+    private static void createLedger(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MovementEntry.TABLE_NAME + " ("
+                + MovementEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + MovementEntry.COLUMN_ITEM_ID + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_KIND + " INTEGER NOT NULL, "
+                + MovementEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL);");
+
+        // The first index serves the current quantity of an item, the second windowed queries
+        db.execSQL("CREATE INDEX stock_movements_item_index ON " + MovementEntry.TABLE_NAME
+                + " (" + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry._ID + ");");
+        db.execSQL("CREATE INDEX stock_movements_timestamp_index ON " + MovementEntry.TABLE_NAME
+                + " (" + MovementEntry.COLUMN_TIMESTAMP + ");");
+
+        db.execSQL("CREATE TABLE " + LEDGER_STATE_TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + COLUMN_FOLDED_MOVEMENT_ID + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + LEDGER_STATE_TABLE_NAME + " VALUES (1, 0);");
+
+        // Compaction writes the stored quantity without changing the current one, so the totals
+        // no longer follow writes of the quantity column. Deleting an item removes its current
+        // quantity, and a movement adds its delta.
+        String quantity = ItemEntry.COLUMN_ITEM_QUANTITY;
+        String price = ItemEntry.COLUMN_ITEM_PRICE;
+        String oldQuantity =
+                "(old." + quantity + " + " + pendingQuantity("old." + ItemEntry._ID) + ")";
+        String newQuantity =
+                "(new." + quantity + " + " + pendingQuantity("new." + ItemEntry._ID) + ")";
+        String movedQuantity = "((SELECT " + quantity + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID + ") + "
+                + pendingQuantity("new." + MovementEntry.COLUMN_ITEM_ID) + ")";
+        db.execSQL("DROP TRIGGER item_stats_after_delete;");
+        db.execSQL("DROP TRIGGER item_stats_after_update;");
+        db.execSQL("CREATE TRIGGER item_stats_after_delete AFTER DELETE ON " + ItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_ITEM_COUNT + " = " + StatsEntry.COLUMN_ITEM_COUNT + " - 1, "
+                + StatsEntry.COLUMN_TOTAL_QUANTITY + " = " + StatsEntry.COLUMN_TOTAL_QUANTITY
+                + " - " + oldQuantity + ", "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " - old." + price + " * " + oldQuantity + ", "
+                + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT + " = " + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT
+                + " - (" + oldQuantity + " = 0); END;");
+        db.execSQL("CREATE TRIGGER item_stats_after_price_update AFTER UPDATE OF " + price
+                + " ON " + ItemEntry.TABLE_NAME
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " + (new." + price + " - old." + price + ") * " + newQuantity + "; END;");
+        db.execSQL("CREATE TRIGGER item_stats_after_movement AFTER INSERT ON "
+                + MovementEntry.TABLE_NAME
+                + " WHEN EXISTS (SELECT 1 FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID + ")"
+                + " BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_TOTAL_QUANTITY + " = " + StatsEntry.COLUMN_TOTAL_QUANTITY
+                + " + new." + MovementEntry.COLUMN_DELTA + ", "
+                + StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " + new." + MovementEntry.COLUMN_DELTA + " * (SELECT " + price
+                + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID + "), "
+                + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT + " = " + StatsEntry.COLUMN_OUT_OF_STOCK_COUNT
+                + " + (" + movedQuantity + " = 0)"
+                + " - (" + movedQuantity + " - new." + MovementEntry.COLUMN_DELTA + " = 0); END;");
+    }
+
+    /**
+     * Creates the stock levels table, with one level at the default location for every item
+     * holding its stored quantity, and records the location of every movement. Triggers create
+     * the default level of each new item, the level a movement is recorded at the first time
+     * stock moves there, and delete the levels of deleted items. The stored quantity of an item
+     * stays the sum of its stored levels, so the total is read without adding them up.
+     */
+    private static void createStockLevels(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + MovementEntry.TABLE_NAME + " ADD COLUMN "
+                + MovementEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL DEFAULT "
+                + StockEntry.DEFAULT_LOCATION + ";");
+
+        // Serves the current quantity of an item at one location
+        db.execSQL("CREATE INDEX stock_movements_location_index ON " + MovementEntry.TABLE_NAME
+                + " (" + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry.COLUMN_LOCATION_ID
+                + ", " + MovementEntry._ID + ");");
+
+        db.execSQL("CREATE TABLE " + StockEntry.TABLE_NAME + " ("
+                + StockEntry._ID + " INTEGER PRIMARY KEY, "
+                + StockEntry.COLUMN_ITEM_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "
+                + StockEntry.COLUMN_QUANTITY + " INTEGER NOT NULL);");
+
+        // The first index serves the levels of an item, the second those at a location
+        db.execSQL("CREATE UNIQUE INDEX stock_levels_item_index ON " + StockEntry.TABLE_NAME
+                + " (" + StockEntry.COLUMN_ITEM_ID + ", " + StockEntry.COLUMN_LOCATION_ID + ");");
+        db.execSQL("CREATE INDEX stock_levels_location_index ON " + StockEntry.TABLE_NAME
+                + " (" + StockEntry.COLUMN_LOCATION_ID + ", " + StockEntry.COLUMN_ITEM_ID + ");");
+
+        db.execSQL("INSERT INTO " + StockEntry.TABLE_NAME + " ("
+                + StockEntry.COLUMN_ITEM_ID + ", " + StockEntry.COLUMN_LOCATION_ID + ", "
+                + StockEntry.COLUMN_QUANTITY + ") SELECT " + ItemEntry._ID + ", "
+                + StockEntry.DEFAULT_LOCATION + ", " + ItemEntry.COLUMN_ITEM_QUANTITY
+                + " FROM " + ItemEntry.TABLE_NAME + ";");
+
+        String insertLevel = " BEGIN INSERT OR IGNORE INTO " + StockEntry.TABLE_NAME + " ("
+                + StockEntry.COLUMN_ITEM_ID + ", " + StockEntry.COLUMN_LOCATION_ID + ", "
+                + StockEntry.COLUMN_QUANTITY + ") VALUES (";
+        db.execSQL("CREATE TRIGGER stock_levels_after_item_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME + insertLevel + "new." + ItemEntry._ID + ", "
+                + StockEntry.DEFAULT_LOCATION + ", new." + ItemEntry.COLUMN_ITEM_QUANTITY
+                + "); END;");
+        db.execSQL("CREATE TRIGGER stock_levels_after_item_delete AFTER DELETE ON "
+                + ItemEntry.TABLE_NAME + " BEGIN DELETE FROM " + StockEntry.TABLE_NAME
+                + " WHERE " + StockEntry.COLUMN_ITEM_ID + " = old." + ItemEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER stock_levels_after_movement AFTER INSERT ON "
+                + MovementEntry.TABLE_NAME
+                + " WHEN EXISTS (SELECT 1 FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID + ")"
+                + insertLevel + "new." + MovementEntry.COLUMN_ITEM_ID
+                + ", new." + MovementEntry.COLUMN_LOCATION_ID + ", 0); END;");
+    }
+
+    /**
+     * Gives every item a sync ID and creates the change log, the triggers that keep it, and the
+     * single row of sync state. A change replaces the item's earlier entry, so the log never
+     * holds more entries than there are items and tombstones, and the new entry gets the next
+     * ID, which AUTOINCREMENT never reuses.
+     */
+    private static void createChangeLog(SQLiteDatabase db) {
+        // Random IDs need no coordination between devices; the provider assigns them to new
+        // items
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_SYNC_ID + " TEXT;");
+        db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET " + ItemEntry.COLUMN_ITEM_SYNC_ID
+                + " = lower(hex(randomblob(16)));");
+        db.execSQL("CREATE UNIQUE INDEX items_sync_id_index ON " + ItemEntry.TABLE_NAME
+                + " (" + ItemEntry.COLUMN_ITEM_SYNC_ID + ");");
+
+        db.execSQL("CREATE TABLE " + ChangeEntry.TABLE_NAME + " ("
+                + ChangeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ChangeEntry.COLUMN_ITEM_ID + " INTEGER NOT NULL, "
+                + ChangeEntry.COLUMN_SYNC_ID + " TEXT, "
+                + ChangeEntry.COLUMN_DELETED + " INTEGER NOT NULL);");
+        db.execSQL("CREATE UNIQUE INDEX item_changes_item_index ON " + ChangeEntry.TABLE_NAME
+                + " (" + ChangeEntry.COLUMN_ITEM_ID + ");");
+        db.execSQL("INSERT INTO " + ChangeEntry.TABLE_NAME + " ("
+                + ChangeEntry.COLUMN_ITEM_ID + ", " + ChangeEntry.COLUMN_SYNC_ID + ", "
+                + ChangeEntry.COLUMN_DELETED + ") SELECT " + ItemEntry._ID + ", "
+                + ItemEntry.COLUMN_ITEM_SYNC_ID + ", 0 FROM " + ItemEntry.TABLE_NAME
+                + " ORDER BY " + ItemEntry._ID + ";");
+
+        db.execSQL("CREATE TABLE " + SYNC_STATE_TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + COLUMN_DEVICE_ID + " TEXT NOT NULL, "
+                + COLUMN_ACKNOWLEDGED_CHANGE_ID + " INTEGER NOT NULL, "
+                + COLUMN_PULLED_CHECKPOINT + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + SYNC_STATE_TABLE_NAME
+                + " VALUES (1, lower(hex(randomblob(16))), 0, 0);");
+
+        // Only the synced columns are followed, so neither a new photo nor a compaction of the
+        // ledger is logged. Quantities change through the ledger, so a movement logs its item.
+        String logChange = " BEGIN INSERT OR REPLACE INTO " + ChangeEntry.TABLE_NAME + " ("
+                + ChangeEntry.COLUMN_ITEM_ID + ", " + ChangeEntry.COLUMN_SYNC_ID + ", "
+                + ChangeEntry.COLUMN_DELETED + ") VALUES (";
+        String itemChanged = logChange + "new." + ItemEntry._ID + ", new."
+                + ItemEntry.COLUMN_ITEM_SYNC_ID + ", 0); END;";
+        db.execSQL("CREATE TRIGGER item_changes_after_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME + itemChanged);
+        db.execSQL("CREATE TRIGGER item_changes_after_update AFTER UPDATE OF "
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_PRICE + ", "
+                + ItemEntry.COLUMN_ITEM_DESCRIPTION + ", " + ItemEntry.COLUMN_ITEM_SKU + ", "
+                + ItemEntry.COLUMN_ITEM_SYNC_ID + " ON " + ItemEntry.TABLE_NAME + itemChanged);
+        db.execSQL("CREATE TRIGGER item_changes_after_delete AFTER DELETE ON "
+                + ItemEntry.TABLE_NAME + logChange + "old." + ItemEntry._ID + ", old."
+                + ItemEntry.COLUMN_ITEM_SYNC_ID + ", 1); END;");
+        db.execSQL("CREATE TRIGGER item_changes_after_movement AFTER INSERT ON "
+                + MovementEntry.TABLE_NAME
+                + " WHEN EXISTS (SELECT 1 FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID + ")"
+                + logChange + "new." + MovementEntry.COLUMN_ITEM_ID + ", (SELECT "
+                + ItemEntry.COLUMN_ITEM_SYNC_ID + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID
+                + "), 0); END;");
+    }
+
+    /**
+     * Adds the version of every item and the trigger that moves it on when the item's row is
+     * updated. Quantities change through the ledger, whose unfolded movements are counted in
+     * {@link #CURRENT_VERSION}, so the quantity is left out; the version itself is left out so
+     * the trigger's own update does not run it again.
+     */
+    private static void createItemVersions(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN "
+                + ItemEntry.COLUMN_ITEM_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("CREATE TRIGGER items_version_after_update AFTER UPDATE OF "
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_PRICE + ", "
+                + ItemEntry.COLUMN_ITEM_DESCRIPTION + ", " + ItemEntry.COLUMN_ITEM_PHOTO + ", "
+                + ItemEntry.COLUMN_ITEM_SKU + ", " + ItemEntry.COLUMN_ITEM_SYNC_ID
+                + " ON " + ItemEntry.TABLE_NAME + " BEGIN UPDATE " + ItemEntry.TABLE_NAME
+                + " SET " + ItemEntry.COLUMN_ITEM_VERSION + " = "
+                + ItemEntry.COLUMN_ITEM_VERSION + " + 1"
+                + " WHERE " + ItemEntry._ID + " = new." + ItemEntry._ID + "; END;");
+    }
+
+    /**
+     * Adds the current quantity of every item, filled from the ledger, its index, and the
+     * triggers that keep it. A movement adds its delta to the item's current quantity, so
+     * compaction, which only moves movements into the stored quantity, leaves it as it is. The
+     * provider's compiled insert writes it with the item; the insert trigger covers any other.
+     */
+    private static void createCurrentQuantities(SQLiteDatabase db) {
+        String current = COLUMN_CURRENT_QUANTITY;
+        db.execSQL("ALTER TABLE " + ItemEntry.TABLE_NAME + " ADD COLUMN " + current
+                + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + ItemEntry.TABLE_NAME + " SET " + current + " = "
+                + ItemEntry.COLUMN_ITEM_QUANTITY + " + "
+                + pendingQuantity(ItemEntry.TABLE_NAME + "." + ItemEntry._ID) + ";");
+        db.execSQL("DROP INDEX items_quantity_index;");
+        createIndex(db, "items_current_quantity_index", current);
+
+        db.execSQL("CREATE TRIGGER items_current_quantity_after_insert AFTER INSERT ON "
+                + ItemEntry.TABLE_NAME
+                + " WHEN new." + current + " != new." + ItemEntry.COLUMN_ITEM_QUANTITY
+                + " BEGIN UPDATE " + ItemEntry.TABLE_NAME + " SET " + current + " = new."
+                + ItemEntry.COLUMN_ITEM_QUANTITY
+                + " WHERE " + ItemEntry._ID + " = new." + ItemEntry._ID + "; END;");
+        db.execSQL("CREATE TRIGGER items_current_quantity_after_movement AFTER INSERT ON "
+                + MovementEntry.TABLE_NAME + " BEGIN UPDATE " + ItemEntry.TABLE_NAME
+                + " SET " + current + " = " + current + " + new." + MovementEntry.COLUMN_DELTA
+                + " WHERE " + ItemEntry._ID + " = new." + MovementEntry.COLUMN_ITEM_ID + "; END;");
+    }
+
+    /**
+     * A single schema change that brings the database to {@link #version} from the version
+     * before it.
+     */
+    abstract static class Migration {
+        /** Version of the database once this migration has been applied */
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        /** Applies the schema change */
+        abstract void migrate(SQLiteDatabase db);
     }
 }
@@ -0,0 +1,235 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Exports every item as CSV or JSON. Items are read in ID order one page at a time, with the
+ * same keyset pagination the catalog uses, and written through a buffered stream as they are
+ * read, so memory use does not grow with the number of items.
+ * <p>
+ * The CSV has a header row and writes prices as in the editor ("12.50"), so it can be read back
+ * with {@link ItemImporter}. The JSON is an array with one object per item and writes prices in
+ * cents, as they are stored.
+ */
+public class ItemExporter {
+
+    /** Number of items read per query */
+    public static final int PAGE_SIZE = 1000;
+
+    /** Size of the buffer in front of the output stream, in characters */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Columns exported, in order */
+    private static final String[] COLUMNS = {
+            ItemEntry._ID,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_DESCRIPTION
+    };
+
+    /** Indices of the columns in {@link #COLUMNS} */
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int QUANTITY = 2;
+    private static final int PRICE = 3;
+    private static final int DESCRIPTION = 4;
+
+    /** Resolver the items are read through, or null if they are read from {@link #mProvider} */
+    private final ContentResolver mResolver;
+
+    /** Provider the items are read from directly, or null */
+    private final ContentProvider mProvider;
+
+    public ItemExporter(ContentResolver resolver) {
+        mResolver = resolver;
+        mProvider = null;
+    }
+
+    /**
+     * Constructs an exporter that reads straight from the given provider, for the provider's
+     * own exports.
+     */
+    ItemExporter(ContentProvider provider) {
+        mResolver = null;
+        mProvider = provider;
+    }
+
+    /**
+     * Writes every item to the stream in the given format, as UTF-8. The stream is flushed but
+     * not closed.
+     *
+     * @param out    the stream to write to
+     * @param format {@link ItemEntry#FORMAT_CSV} or {@link ItemEntry#FORMAT_JSON}
+     * @return the number of items written
+     * @throws IOException if the stream cannot be written
+     */
+    public int export(OutputStream out, String format) throws IOException {
+        boolean json;
+        if (ItemEntry.FORMAT_CSV.equals(format)) {
+            json = false;
+        } else if (ItemEntry.FORMAT_JSON.equals(format)) {
+            json = true;
+        } else {
+            throw new IllegalArgumentException("Unknown export format " + format);
+        }
+
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(out, Charset.forName("UTF-8")), BUFFER_SIZE);
+        if (json) {
+            writer.write('[');
+        } else {
+            writer.write(ItemEntry.COLUMN_ITEM_NAME + "," + ItemEntry.COLUMN_ITEM_QUANTITY + ","
+                    + ItemEntry.COLUMN_ITEM_PRICE + "," + ItemEntry.COLUMN_ITEM_DESCRIPTION + "\n");
+        }
+
+        // Each page starts after the last item of the previous one
+        int count = 0;
+        long afterId = 0;
+        while (true) {
+            Uri pageUri = ItemEntry.buildPageUri(afterId, PAGE_SIZE);
+            Cursor cursor = mProvider != null
+                    ? mProvider.query(pageUri, COLUMNS, null, null, null)
+                    : mResolver.query(pageUri, COLUMNS, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Cannot query items");
+            }
+            int rows;
+            try {
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    if (json) {
+                        writeJson(writer, cursor, count > 0);
+                    } else {
+                        writeCsv(writer, cursor);
+                    }
+                    afterId = cursor.getLong(ID);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows < PAGE_SIZE) {
+                break;
+            }
+        }
+
+        if (json) {
+            writer.write("]\n");
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Writes the item in the cursor's current row as a CSV record.
+     */
+    private static void writeCsv(Writer writer, Cursor cursor) throws IOException {
+        writeCsvField(writer, cursor.getString(NAME));
+        writer.write(',');
+        writer.write(Integer.toString(cursor.getInt(QUANTITY)));
+        writer.write(',');
+        writer.write(PriceUtils.formatPrice(ItemEntry.getPrice(cursor, PRICE)));
+        writer.write(',');
+        writeCsvField(writer, cursor.getString(DESCRIPTION));
+        writer.write('\n');
+    }
+
+    /**
+     * Writes a CSV field, quoting it if it holds a comma, quote or line break.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Writes the item in the cursor's current row as a JSON object, preceded by a comma unless
+     * it is the first.
+     */
+    private static void writeJson(Writer writer, Cursor cursor, boolean comma) throws IOException {
+        if (comma) {
+            writer.write(',');
+        }
+        writer.write("\n{\"" + ItemEntry._ID + "\":");
+        writer.write(Long.toString(cursor.getLong(ID)));
+        writer.write(",\"" + ItemEntry.COLUMN_ITEM_NAME + "\":");
+        writeJsonString(writer, cursor.getString(NAME));
+        writer.write(",\"" + ItemEntry.COLUMN_ITEM_QUANTITY + "\":");
+        writer.write(Integer.toString(cursor.getInt(QUANTITY)));
+        writer.write(",\"" + ItemEntry.COLUMN_ITEM_PRICE + "\":");
+        writer.write(Long.toString(ItemEntry.getPrice(cursor, PRICE)));
+        writer.write(",\"" + ItemEntry.COLUMN_ITEM_DESCRIPTION + "\":");
+        writeJsonString(writer, cursor.getString(DESCRIPTION));
+        writer.write('}');
+    }
+
+    /**
+     * Writes a JSON string literal, or null.
+     */
+    private static void writeJsonString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
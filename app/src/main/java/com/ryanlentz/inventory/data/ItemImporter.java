@@ -0,0 +1,335 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Imports items from a CSV file. The file is streamed a record at a time, so only one batch of
+ * items is held in memory however large the file is.
+ * <p>
+ * The first record names the columns: name, quantity and price are required, description and
+ * SKU are optional and other columns are ignored. Prices are written as in the editor, for
+ * example "12.50". Each row is checked with the same rules as an insert, and a row whose SKU an
+ * item or an earlier row already has is rejected too; rows that fail are skipped and reported,
+ * and the others are written with one bulk insert (one transaction) per batch.
+ * <p>
+ * {@link #importItems} blocks, so call it on a background thread. It can be stopped from any
+ * thread with {@link #cancel}; batches already written stay in the database.
+ */
+public class ItemImporter {
+
+    /** Number of items written per transaction */
+    public static final int BATCH_SIZE = 500;
+
+    /** Most row errors kept in a {@link Result}; further errors are only counted */
+    public static final int MAX_ERRORS = 100;
+
+    /**
+     * Listener for the progress of an import, called on the importing thread after each batch
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each batch is written
+         *
+         * @param imported number of items written so far
+         * @param rejected number of rows skipped so far
+         */
+        void onProgress(int imported, int rejected);
+    }
+
+    /**
+     * A row that could not be imported
+     */
+    public static class RowError {
+        /** Line of the file the row starts on, counting from 1 */
+        public final long line;
+
+        /** Why the row was rejected */
+        public final String message;
+
+        RowError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + line + ": " + message;
+        }
+    }
+
+    /**
+     * The outcome of an import
+     */
+    public static class Result {
+        /** Number of items written */
+        public final int imported;
+
+        /** Number of rows skipped */
+        public final int rejected;
+
+        /** The first {@link #MAX_ERRORS} rows skipped, in file order */
+        public final List<RowError> errors;
+
+        /** Whether the import was cancelled before the end of the file */
+        public final boolean cancelled;
+
+        Result(int imported, int rejected, List<RowError> errors, boolean cancelled) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.errors = Collections.unmodifiableList(errors);
+            this.cancelled = cancelled;
+        }
+    }
+
+    /** Resolver the items are inserted through */
+    private final ContentResolver mResolver;
+
+    /** Set from any thread to stop the import after the current row */
+    private volatile boolean mCancelled;
+
+    public ItemImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Stops a running import after the current row. Items of the batch being read are discarded.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Reads UTF-8 CSV from the stream and inserts its items. The stream is closed afterwards.
+     *
+     * @param in       the CSV file
+     * @param listener listener for progress, or null
+     * @return how many rows were imported and rejected, and why
+     * @throws IOException if the file cannot be read, is not valid CSV or lacks a column
+     */
+    public Result importItems(InputStream in, ProgressListener listener) throws IOException {
+        CsvReader reader = new CsvReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+        try {
+            return importItems(reader, listener);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Result importItems(CsvReader reader, ProgressListener listener) throws IOException {
+        int imported = 0;
+        int rejected = 0;
+        List<RowError> errors = new ArrayList<>();
+
+        // Finds the columns by name in the header
+        List<String> fields = new ArrayList<>();
+        if (!reader.readRecord(fields)) {
+            return new Result(0, 0, errors, false);
+        }
+        int nameColumn = findColumn(fields, ItemEntry.COLUMN_ITEM_NAME, true);
+        int quantityColumn = findColumn(fields, ItemEntry.COLUMN_ITEM_QUANTITY, true);
+        int priceColumn = findColumn(fields, ItemEntry.COLUMN_ITEM_PRICE, true);
+        int descriptionColumn = findColumn(fields, ItemEntry.COLUMN_ITEM_DESCRIPTION, false);
+        int skuColumn = findColumn(fields, ItemEntry.COLUMN_ITEM_SKU, false);
+        int requiredFields = Math.max(nameColumn, Math.max(quantityColumn, priceColumn)) + 1;
+
+        ContentValues[] batch = new ContentValues[BATCH_SIZE];
+        long[] batchLines = new long[BATCH_SIZE];
+        int batchSize = 0;
+        while (!mCancelled && reader.readRecord(fields)) {
+            // Skips blank lines
+            if (fields.size() == 1 && fields.get(0).trim().isEmpty()) {
+                continue;
+            }
+
+            try {
+                if (fields.size() < requiredFields) {
+                    throw new IllegalArgumentException("Expected at least " + requiredFields
+                            + " fields but found " + fields.size());
+                }
+                ContentValues values = new ContentValues();
+                values.put(ItemEntry.COLUMN_ITEM_NAME, parseName(fields.get(nameColumn)));
+                values.put(ItemEntry.COLUMN_ITEM_QUANTITY,
+                        parseQuantity(fields.get(quantityColumn)));
+                values.put(ItemEntry.COLUMN_ITEM_PRICE,
+                        PriceUtils.parsePrice(fields.get(priceColumn)));
+                if (descriptionColumn >= 0 && descriptionColumn < fields.size()) {
+                    values.put(ItemEntry.COLUMN_ITEM_DESCRIPTION, fields.get(descriptionColumn));
+                }
+                if (skuColumn >= 0 && skuColumn < fields.size()
+                        && !fields.get(skuColumn).trim().isEmpty()) {
+                    values.put(ItemEntry.COLUMN_ITEM_SKU, fields.get(skuColumn).trim());
+                }
+                ItemProvider.validateNewItem(values);
+                batchLines[batchSize] = reader.getLineNumber();
+                batch[batchSize++] = values;
+            } catch (IllegalArgumentException e) {
+                rejected++;
+                addError(errors, reader.getLineNumber(), e.getMessage());
+            }
+
+            if (batchSize == BATCH_SIZE) {
+                int written = writeBatch(batch, batchLines, batchSize, errors);
+                imported += written;
+                rejected += batchSize - written;
+                batchSize = 0;
+                if (listener != null) {
+                    listener.onProgress(imported, rejected);
+                }
+            }
+        }
+
+        // Writes the last, partly filled batch unless the import was stopped
+        if (mCancelled) {
+            return new Result(imported, rejected, errors, true);
+        }
+        if (batchSize > 0) {
+            int written = writeBatch(batch, batchLines, batchSize, errors);
+            imported += written;
+            rejected += batchSize - written;
+            if (listener != null) {
+                listener.onProgress(imported, rejected);
+            }
+        }
+        return new Result(imported, rejected, errors, false);
+    }
+
+    /**
+     * Inserts the first rows of the batch and returns how many were written, adding an error
+     * for each row rejected. A row whose SKU an item or an earlier row of the batch already has
+     * is rejected before the bulk insert. If the bulk insert still fails, for instance because
+     * an item took one of the SKUs meanwhile, the rows are inserted one at a time so only the
+     * rows that fail are rejected.
+     */
+    private int writeBatch(ContentValues[] batch, long[] lines, int size, List<RowError> errors) {
+        // Finds the SKUs of the batch that items already have, with a single lookup
+        Set<String> skus = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            String sku = batch[i].getAsString(ItemEntry.COLUMN_ITEM_SKU);
+            if (sku != null) {
+                skus.add(sku);
+            }
+        }
+        Set<String> taken = new HashSet<>();
+        if (!skus.isEmpty()) {
+            Cursor cursor = mResolver.query(ItemEntry.buildSkuLookupUri(skus),
+                    new String[] { ItemEntry.COLUMN_ITEM_SKU }, null, null, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        taken.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        // Moves the rows that are left to the front of the batch
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            String sku = batch[i].getAsString(ItemEntry.COLUMN_ITEM_SKU);
+            if (sku != null && !taken.add(sku)) {
+                addError(errors, lines[i], "SKU " + sku + " is already taken");
+                continue;
+            }
+            batch[count] = batch[i];
+            lines[count++] = lines[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        try {
+            return mResolver.bulkInsert(ItemEntry.CONTENT_URI, Arrays.copyOf(batch, count));
+        } catch (SQLException e) {
+            // The batch was rolled back, so each row is tried again on its own
+            int written = 0;
+            for (int i = 0; i < count; i++) {
+                try {
+                    if (mResolver.insert(ItemEntry.CONTENT_URI, batch[i]) != null) {
+                        written++;
+                    } else {
+                        addError(errors, lines[i], "Item could not be inserted");
+                    }
+                } catch (SQLException | IllegalArgumentException rowError) {
+                    addError(errors, lines[i], rowError.getMessage());
+                }
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Adds the error of a rejected row in file order, keeping only the first
+     * {@link #MAX_ERRORS}.
+     */
+    private static void addError(List<RowError> errors, long line, String message) {
+        // SKUs are checked when a batch is written, after the errors of the batch's later rows
+        // were added, so each error goes in its place by line
+        int index = errors.size();
+        while (index > 0 && errors.get(index - 1).line > line) {
+            index--;
+        }
+        if (index < MAX_ERRORS) {
+            errors.add(index, new RowError(line, message));
+            if (errors.size() > MAX_ERRORS) {
+                errors.remove(MAX_ERRORS);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the header field naming the given column, ignoring case and
+     * surrounding spaces, or -1 if an optional column is missing.
+     */
+    private static int findColumn(List<String> header, String column, boolean required)
+            throws IOException {
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).trim().toLowerCase(Locale.ROOT).equals(column)) {
+                return i;
+            }
+        }
+        if (required) {
+            throw new IOException("The file has no \"" + column + "\" column");
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the trimmed name, or null if it is blank so the row is rejected like an item
+     * saved without a name.
+     */
+    private static String parseName(String text) {
+        String name = text.trim();
+        return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Parses a quantity, throwing a NumberFormatException that names the field if it is not
+     * a whole number.
+     */
+    private static int parseQuantity(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Invalid quantity \"" + text + "\"");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.ryanlentz.inventory.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+/**
+ * The selection, sort order and limit of a query of the item list URI, with the sort, range
+ * and page parameters of the URI turned into SQL that the indexes on name, price and current
+ * quantity can serve:
+ * ranges become comparisons on the indexed column, and a sort orders by the indexed column and
+ * then by ID, the order the index already keeps its entries in.
+ * <p>
+ * Columns are written with the table name, so they refer to the stored columns rather than to
+ * the current quantity the provider returns under the same name. Quantity sorts and ranges
+ * compare the current quantity column, which the ledger keeps up to date.
+ */
+class ItemListQuery {
+
+    /** Expressions the items can be sorted by, each indexed */
+    private static final String NAME_KEY =
+            ItemEntry.TABLE_NAME + "." + ItemEntry.COLUMN_ITEM_NAME + " COLLATE NOCASE";
+    private static final String PRICE_KEY =
+            ItemEntry.TABLE_NAME + "." + ItemEntry.COLUMN_ITEM_PRICE;
+    private static final String QUANTITY_KEY = ItemDbHelper.CURRENT_QUANTITY;
+    private static final String ID_KEY = ItemEntry.TABLE_NAME + "." + ItemEntry._ID;
+
+    String selection;
+    String[] selectionArgs;
+    String sortOrder;
+    String limit;
+
+    /**
+     * Adds the parameters of the given item list URI to the selection and sort order passed
+     * to the query.
+     *
+     * @throws IllegalArgumentException if a parameter is invalid, or a sort is given both as a
+     *                                  parameter and as a sort order
+     */
+    ItemListQuery(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.sortOrder = sortOrder;
+        limit = ItemProvider.getLimit(uri);
+
+        addRange(uri, PRICE_KEY, ItemEntry.QUERY_PARAMETER_MIN_PRICE, ">=");
+        addRange(uri, PRICE_KEY, ItemEntry.QUERY_PARAMETER_MAX_PRICE, "<=");
+        addRange(uri, QUANTITY_KEY, ItemEntry.QUERY_PARAMETER_MIN_QUANTITY, ">=");
+        addRange(uri, QUANTITY_KEY, ItemEntry.QUERY_PARAMETER_MAX_QUANTITY, "<=");
+
+        String sort = uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_SORT);
+        String afterId = uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_AFTER_ID);
+        if (sort != null) {
+            addSort(uri, sort, afterId);
+        } else if (afterId != null) {
+            // If a page was requested, only return items after the given ID in ID order.
+            // This keyset pagination is a range read on the primary key, so every page costs
+            // the same no matter how deep into the table it is (unlike OFFSET).
+            if (sortOrder != null) {
+                throw new IllegalArgumentException("Paged queries are sorted by ID " + uri);
+            }
+            addWhere(ID_KEY + ">?", String.valueOf(ItemProvider.parseLongParameter(uri, afterId)));
+            this.sortOrder = ItemEntry._ID;
+        }
+    }
+
+    /**
+     * Sorts by the given key, then by ID. A page after a given row is the range of the index
+     * after that row's (key, ID) entry; its first comparison bounds the index range read.
+     */
+    private void addSort(Uri uri, String sort, String afterId) {
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Cannot combine a sort order with a sort " + uri);
+        }
+        String key;
+        boolean numeric = true;
+        switch (sort) {
+            case ItemEntry.SORT_NAME:
+                key = NAME_KEY;
+                numeric = false;
+                break;
+            case ItemEntry.SORT_PRICE:
+                key = PRICE_KEY;
+                break;
+            case ItemEntry.SORT_QUANTITY:
+                key = QUANTITY_KEY;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort " + sort + " in " + uri);
+        }
+        boolean descending = Boolean.parseBoolean(
+                uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_DESCENDING));
+        String direction = descending ? " DESC" : "";
+
+        String afterValue = uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_AFTER_VALUE);
+        if ((afterValue == null) != (afterId == null)) {
+            throw new IllegalArgumentException("A sorted page needs both a value and an ID " + uri);
+        }
+        if (afterValue != null) {
+            if (numeric) {
+                afterValue = String.valueOf(ItemProvider.parseLongParameter(uri, afterValue));
+            }
+            String after = descending ? "<" : ">";
+            addWhere(key + after + "=?", afterValue);
+            addWhere(key + after + "? OR " + ID_KEY + after + "?", afterValue,
+                    String.valueOf(ItemProvider.parseLongParameter(uri, afterId)));
+        }
+        sortOrder = key + direction + ", " + ID_KEY + direction;
+    }
+
+    /**
+     * Adds a comparison of the given column with the value of a range parameter, if the URI
+     * has it.
+     */
+    private void addRange(Uri uri, String column, String parameter, String operator) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return;
+        }
+        addWhere(column + operator + "?",
+                String.valueOf(ItemProvider.parseLongParameter(uri, value)));
+    }
+
+    private void addWhere(String where, String... args) {
+        selection = DatabaseUtils.concatenateWhere(selection, where);
+        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, args);
+    }
+
+    /**
+     * Returns the SQL of the query for the given columns, for example to explain it.
+     */
+    String toSql(String[] columns) {
+        return SQLiteQueryBuilder.buildQueryString(false, ItemEntry.TABLE_NAME, columns,
+                selection, null, null, sortOrder, limit);
+    }
+}
@@ -0,0 +1,199 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Stores item photos as files in the app's photo directory. The items table only holds each
+ * photo's file name (see {@link ItemContract.ItemEntry#COLUMN_ITEM_PHOTO}), so the images never
+ * pass through a CursorWindow.
+ * <p>
+ * Every method reads or writes files, so none may be called on the main thread.
+ */
+public final class ItemPhotos {
+    // Only holds static helpers, so it is never instantiated
+    private ItemPhotos() {}
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ItemPhotos.class.getSimpleName();
+
+    /** Directory of the photos, inside the app's files directory */
+    private static final String DIRECTORY = "photos";
+
+    /** Longest side of a stored photo, in pixels; larger pictures are scaled down when saved */
+    static final int MAX_PHOTO_SIZE = 1600;
+
+    /** JPEG quality photos are stored with */
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Names given to photos. Anything else is rejected, so a name can never point outside the
+     * photo directory.
+     */
+    private static final Pattern NAME_PATTERN = Pattern.compile("[0-9a-f-]+\\.jpg");
+
+    /**
+     * Returns whether the given name is one {@link #savePhoto} could have given a photo.
+     */
+    static boolean isValidName(String name) {
+        return name != null && NAME_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * Returns the file of the photo with the given name.
+     *
+     * @throws IllegalArgumentException if the name is not a photo name
+     */
+    public static File getPhotoFile(Context context, String name) {
+        if (!isValidName(name)) {
+            throw new IllegalArgumentException("Invalid photo name " + name);
+        }
+        return new File(new File(context.getFilesDir(), DIRECTORY), name);
+    }
+
+    /**
+     * Copies the picture at the given URI into a new photo, scaled down so neither side is
+     * longer than {@link #MAX_PHOTO_SIZE}, and returns the new photo's name.
+     *
+     * @throws IOException if the picture cannot be read or the photo cannot be written
+     */
+    public static String savePhoto(Context context, Uri source) throws IOException {
+        // Reads the picture's size first, so only a sampled-down copy is ever decoded
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = openPicture(context, source);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not a picture: " + source);
+        }
+        int longestSide = Math.max(options.outWidth, options.outHeight);
+        options.inSampleSize = calculateInSampleSize(longestSide, longestSide,
+                MAX_PHOTO_SIZE, MAX_PHOTO_SIZE);
+        options.inJustDecodeBounds = false;
+
+        Bitmap bitmap;
+        in = openPicture(context, source);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode " + source);
+        }
+
+        try {
+            // Sampling only halves, so the result is scaled the rest of the way
+            float scale = (float) MAX_PHOTO_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale < 1) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+
+            // Written under a temporary name, so a photo that exists is always complete
+            String name = UUID.randomUUID() + ".jpg";
+            File file = getPhotoFile(context, name);
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            File temp = new File(directory, name + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                    throw new IOException("Cannot compress " + source);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Cannot write " + file);
+            }
+            return name;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static InputStream openPicture(Context context, Uri source) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(source);
+        if (in == null) {
+            throw new IOException("Cannot open " + source);
+        }
+        return in;
+    }
+
+    /**
+     * Decodes the given picture file sampled down as far as it can be while both sides stay at
+     * least the requested size, or returns null if it cannot be decoded.
+     */
+    public static Bitmap decodeSampled(File file, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                width, height);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * Returns the largest power of two a picture of the given size can be sampled down by
+     * while both of its sides stay at least the requested size.
+     */
+    static int calculateInSampleSize(int width, int height, int requestedWidth,
+            int requestedHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= requestedWidth
+                && height / (sampleSize * 2) >= requestedHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Deletes the photos with the given names. Names that are not photo names are skipped.
+     */
+    static void deletePhotos(Context context, Collection<String> names) {
+        for (String name : names) {
+            if (isValidName(name)) {
+                deletePhoto(context, name);
+            }
+        }
+    }
+
+    /**
+     * Deletes the photo with the given name, if it exists.
+     *
+     * @throws IllegalArgumentException if the name is not a photo name
+     */
+    public static void deletePhoto(Context context, String name) {
+        File file = getPhotoFile(context, name);
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Cannot delete photo " + file);
+        }
+    }
+}
@@ -1,18 +1,45 @@
 package com.ryanlentz.inventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.ryanlentz.inventory.data.ItemContract.ChangeEntry;
 import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.MovementEntry;
+import com.ryanlentz.inventory.data.ItemContract.StatsEntry;
+import com.ryanlentz.inventory.data.ItemContract.StockEntry;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
 
 
 public class ItemProvider extends ContentProvider {
@@ -26,6 +53,70 @@ public class ItemProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single item in the items table */
     private static final int ITEM_ID = 101;
 
+    /** URI matcher code for the content URI for a full-text search of the items table */
+    private static final int ITEM_SEARCH = 102;
+
+    /** URI matcher code for the content URI for the inventory totals */
+    private static final int STATS = 103;
+
+    /** URI matcher code for the content URI for the stock movement ledger */
+    private static final int MOVEMENTS = 104;
+
+    /** URI matcher code for the content URI for a file export of every item */
+    private static final int EXPORT = 105;
+
+    /** URI matcher code for the content URI for the item with a given SKU */
+    private static final int ITEM_SKU = 106;
+
+    /** URI matcher code for the content URI for the items with any of several SKUs */
+    private static final int SKUS = 107;
+
+    /** URI matcher code for the content URI for the stock levels at each location */
+    private static final int STOCK = 108;
+
+    /** URI matcher code for the content URI for the log of local changes */
+    private static final int CHANGES = 109;
+
+    /** Names of the URI patterns in the metrics, indexed by matcher code minus {@link #ITEMS} */
+    private static final String[] URI_NAMES = {
+            "items", "item", "search", "stats", "movements", "export", "sku", "skus", "stock",
+            "changes"
+    };
+
+    /** Most SKUs bound to one query, well below SQLite's limit of 999 arguments */
+    private static final int MAX_SKUS_PER_QUERY = 500;
+
+    /** Message of an update that sets a quantity below the stock held at other locations */
+    private static final String OTHER_LOCATIONS_MESSAGE =
+            "Item quantity is less than the stock held at other locations";
+
+    /** Number of search results returned when no limit is given */
+    private static final String DEFAULT_SEARCH_LIMIT = "50";
+
+    /** Columns of an item returned when no projection is given */
+    private static final String[] ITEM_COLUMNS = {
+            ItemEntry._ID,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_DESCRIPTION,
+            ItemEntry.COLUMN_ITEM_PHOTO,
+            ItemEntry.COLUMN_ITEM_SKU,
+            ItemEntry.COLUMN_ITEM_VERSION
+    };
+
+    /** Columns of a change returned when no projection is given */
+    private static final String[] CHANGE_COLUMNS = {
+            ChangeEntry._ID,
+            ChangeEntry.COLUMN_SYNC_ID,
+            ChangeEntry.COLUMN_DELETED,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_DESCRIPTION,
+            ItemEntry.COLUMN_ITEM_SKU
+    };
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -52,11 +143,87 @@ public class ItemProvider extends ContentProvider {
         // For example, "content://com.example.android.items/items/3" matches, but
         // "content://com.example.android.items/items" (without a number at the end) doesn't match.
         sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY, ItemContract.PATH_ITEMS + "/#", ITEM_ID);
+
+        // The content URI of the form "content://com.example.android.items/items/search" will map
+        // to the integer code {@link #ITEM_SEARCH}. This URI is used to search the names and
+        // descriptions of items, with the search text in the "q" query parameter.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SEARCH, ITEM_SEARCH);
+
+        // The content URI of the form "content://com.example.android.items/items/stats" will map
+        // to the integer code {@link #STATS}. This URI is used to read the inventory totals.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_STATS, STATS);
+
+        // The content URI of the form "content://com.example.android.items/items/movements" will
+        // map to the integer code {@link #MOVEMENTS}. This URI is used to read the ledger of
+        // stock movements, optionally limited to a period with the "from" and "to" parameters.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_MOVEMENTS, MOVEMENTS);
+
+        // The content URI of the form "content://com.example.android.items/items/export" will map
+        // to the integer code {@link #EXPORT}. This URI is opened as a file to export every item,
+        // in the format given by the "format" query parameter.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_EXPORT, EXPORT);
+
+        // The content URI of the form "content://com.example.android.items/items/sku/*" will map
+        // to the integer code {@link #ITEM_SKU}. This URI is used to find the item with the SKU
+        // in the last path segment, such as a scanned barcode.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SKU + "/*", ITEM_SKU);
+
+        // The content URI of the form "content://com.example.android.items/items/sku" will map
+        // to the integer code {@link #SKUS}. This URI is used to find the items with any of the
+        // SKUs in its "sku" query parameters.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_SKU, SKUS);
+
+        // The content URI of the form "content://com.example.android.items/items/stock" will
+        // map to the integer code {@link #STOCK}. This URI is used to read the quantities of
+        // items at each location, optionally only of the item in the "item" parameter or at
+        // the location in the "location" parameter.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_STOCK, STOCK);
+
+        // The content URI of the form "content://com.example.android.items/items/changes" will
+        // map to the integer code {@link #CHANGES}. This URI is used to read the latest local
+        // change of each item after the change in the "after" parameter, for sync.
+        sUriMatcher.addURI(ItemContract.CONTENT_AUTHORITY,
+                ItemContract.PATH_ITEMS + "/" + ItemContract.PATH_CHANGES, CHANGES);
     }
 
     /** Database helper object */
     private ItemDbHelper mDbHelper;
 
+    /** Compiled statements of the hottest writes, created with the writable database */
+    private ItemStatements mStatements;
+
+    /** Most item URIs notified one by one after a batch; larger batches notify the list URI */
+    private static final int MAX_BATCH_ITEM_NOTIFICATIONS = 10;
+
+    /** Changes made by the bulkInsert or applyBatch transaction open on the calling thread */
+    private final ThreadLocal<BatchChanges> mBatchChanges = new ThreadLocal<>();
+
+    /** Estimated memory the cached item rows may hold, in bytes (roughly 1000 typical items) */
+    private static final int ROW_CACHE_BYTES = 256 * 1024;
+
+    /** Rows of single items recently read, so reopening an item does not query the database */
+    private final ItemRowCache mRowCache = new ItemRowCache(ROW_CACHE_BYTES);
+
+    /** Counts and latencies of the provider's operations, by URI pattern */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(URI_NAMES);
+
+    /**
+     * Returns the compiled statements, compiling them the first time.
+     */
+    private synchronized ItemStatements getStatements() {
+        if (mStatements == null) {
+            mStatements = new ItemStatements(mDbHelper.getWritableDatabase());
+        }
+        return mStatements;
+    }
+
     /**
      * Creates a new database helper object
      */
@@ -66,25 +233,48 @@ public class ItemProvider extends ContentProvider {
         return true;
     }
 
+    /**
+     * Closes the database. Only called from tests; providers normally live as long as the process.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (mStatements != null) {
+                mStatements.close();
+                mStatements = null;
+            }
+        }
+        mDbHelper.close();
+        super.shutdown();
+    }
+
     
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        long start = System.nanoTime();
+
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
+        // The URI whose changes the cursor follows
+        Uri notificationUri = uri;
+
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
+                // Adds the sort, range and page parameters of the URI to the query
+                ItemListQuery list = new ItemListQuery(uri, selection, selectionArgs, sortOrder);
+
                 // For the ITEMS code, query the items table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the items table.
-                cursor = database.query(ItemEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(ItemEntry.TABLE_NAME, itemColumns(projection),
+                        list.selection, list.selectionArgs, null, null, list.sortOrder, list.limit);
                 break;
             case ITEM_ID:
                 // For the ITEM_ID code, extract out the ID from the URI.
@@ -98,21 +288,381 @@ public class ItemProvider extends ContentProvider {
                 selection = ItemEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
 
+                // Serve the row from the cache if the projection only asks for item columns
+                cursor = queryCachedItem(database, ContentUris.parseId(uri), projection);
+                if (cursor != null) {
+                    break;
+                }
+
                 // This will perform a query on the items table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(ItemEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(ItemEntry.TABLE_NAME, itemColumns(projection), selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case ITEM_SEARCH:
+                // For the ITEM_SEARCH code, match the search text against the full-text index
+                // and return the matching items ranked best first.
+                cursor = searchItems(database, uri, projection);
+
+                // Any item change may change the results, so the cursor follows them all
+                notificationUri = ItemEntry.CONTENT_URI;
+                break;
+            case STATS:
+                // For the STATS code, read the single row of totals that triggers keep current
+                cursor = database.query(StatsEntry.TABLE_NAME, projection, null, null,
+                        null, null, null);
+
+                // Item changes are notified on the item URIs, which never reach the stats URI,
+                // so the cursor follows every item instead
+                notificationUri = ItemEntry.CONTENT_URI;
+                break;
+            case ITEM_SKU:
+                // For the ITEM_SKU code, find the item whose SKU is the last path segment. The
+                // unique index on SKUs makes this a single index search.
+                cursor = database.query(ItemEntry.TABLE_NAME, itemColumns(projection),
+                        ItemEntry.COLUMN_ITEM_SKU + "=?",
+                        new String[] { uri.getLastPathSegment() }, null, null, null);
+
+                // Any item may be given the SKU, so the cursor follows them all
+                notificationUri = ItemEntry.CONTENT_URI;
+                break;
+            case SKUS:
+                // For the SKUS code, find the items with any of the SKUs in the URI
+                cursor = querySkus(database, uri, projection);
+                notificationUri = ItemEntry.CONTENT_URI;
+                break;
+            case STOCK:
+                // For the STOCK code, read the levels of the requested item or location, each
+                // found with a range read on one of the composite indexes
+                cursor = queryStock(database, uri, projection, selection, selectionArgs,
+                        sortOrder);
+
+                // Every item change may have moved stock, so the cursor follows them all
+                notificationUri = ItemEntry.CONTENT_URI;
+                break;
+            case CHANGES:
+                // For the CHANGES code, read a page of the change log with the current values
+                // of the items that changed
+                cursor = queryChanges(database, uri, projection);
+                notificationUri = ItemEntry.CONTENT_URI;
+                break;
+            case MOVEMENTS:
+                // For the MOVEMENTS code, read the ledger, limited to the requested period.
+                // The period is a range read on the timestamp index.
+                cursor = queryMovements(database, uri, projection, selection, selectionArgs,
+                        sortOrder);
+
+                // Every item change may have added movements, so the cursor follows them all
+                notificationUri = ItemEntry.CONTENT_URI;
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
         // Set notification URI on the Cursor, so we know what content URI the Cursor was created
         // for. If the data for this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        // Counting the rows would run the whole query here rather than a window at a time as
+        // the caller reads it, so only the time to prepare the cursor is recorded
+        mMetrics.record(ProviderMetrics.QUERY, match - ITEMS, start, 0);
+        return cursor;
+    }
+
+    /**
+     * Returns the columns to read for the given item projection. The quantity and version are
+     * replaced with the current ones, which add the ledger movements not yet folded into the
+     * stored ones.
+     */
+    static String[] itemColumns(String[] projection) {
+        String[] columns = projection == null ? ITEM_COLUMNS.clone() : projection.clone();
+        for (int i = 0; i < columns.length; i++) {
+            if (ItemEntry.COLUMN_ITEM_QUANTITY.equals(columns[i])) {
+                columns[i] = ItemDbHelper.CURRENT_QUANTITY + " AS " + ItemEntry.COLUMN_ITEM_QUANTITY;
+            } else if (ItemEntry.COLUMN_ITEM_VERSION.equals(columns[i])) {
+                columns[i] = ItemDbHelper.CURRENT_VERSION + " AS " + ItemEntry.COLUMN_ITEM_VERSION;
+            }
+        }
+        return columns;
+    }
 
+    /**
+     * Returns a cursor over the given item's row, with the given projection, read from the row
+     * cache or read and then cached. Returns null if the projection names anything other than
+     * item columns, which leaves the query to the database.
+     * <p>
+     * Inside a batch the calling thread may see its own uncommitted writes, so the cache is
+     * neither read nor filled there.
+     */
+    private Cursor queryCachedItem(SQLiteDatabase database, long id, String[] projection) {
+        if (mBatchChanges.get() != null) {
+            return null;
+        }
+        String[] columns = projection == null ? ITEM_COLUMNS : projection;
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = Arrays.asList(ITEM_COLUMNS).indexOf(columns[i]);
+            if (indices[i] < 0) {
+                return null;
+            }
+        }
+
+        Object[] row = mRowCache.get(id);
+        if (row == null) {
+            long generation = mRowCache.getGeneration();
+            row = readItemRow(database, id);
+            if (row == null) {
+                return new MatrixCursor(columns, 0);
+            }
+            mRowCache.put(id, row, generation);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = row[indices[i]];
+        }
+        cursor.addRow(values);
         return cursor;
     }
 
+    /**
+     * Reads the values of all {@link #ITEM_COLUMNS} of the given item, or null if there is no
+     * such item.
+     */
+    private static Object[] readItemRow(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(ItemEntry.TABLE_NAME, itemColumns(null),
+                ItemEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new Object[] {
+                    cursor.getLong(0),
+                    cursor.getString(1),
+                    cursor.getInt(2),
+                    cursor.isNull(3) ? null : cursor.getLong(3),
+                    cursor.getString(4),
+                    cursor.getString(5),
+                    cursor.getString(6),
+                    cursor.getLong(7)
+            };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the items with any of the SKUs in the {@link ItemEntry#QUERY_PARAMETER_SKU}
+     * parameters. Each query looks up to {@link #MAX_SKUS_PER_QUERY} SKUs up in the unique index
+     * with an IN list; more SKUs than that are split over several queries whose rows are merged.
+     */
+    private static Cursor querySkus(SQLiteDatabase database, Uri uri, String[] projection) {
+        List<String> skus = new ArrayList<>(
+                new LinkedHashSet<>(uri.getQueryParameters(ItemEntry.QUERY_PARAMETER_SKU)));
+        String[] columns = itemColumns(projection);
+        int queries = Math.max(1, (skus.size() + MAX_SKUS_PER_QUERY - 1) / MAX_SKUS_PER_QUERY);
+        Cursor[] cursors = new Cursor[queries];
+        for (int i = 0; i < queries; i++) {
+            List<String> batch = skus.subList(i * MAX_SKUS_PER_QUERY,
+                    Math.min(skus.size(), (i + 1) * MAX_SKUS_PER_QUERY));
+            StringBuilder selection = new StringBuilder(ItemEntry.COLUMN_ITEM_SKU).append(" IN (");
+            for (int j = 0; j < batch.size(); j++) {
+                selection.append(j == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+            cursors[i] = database.query(ItemEntry.TABLE_NAME, columns, selection.toString(),
+                    batch.toArray(new String[batch.size()]), null, null, null);
+        }
+        return queries == 1 ? cursors[0] : new MergeCursor(cursors);
+    }
+
+    /**
+     * Queries the change log after the change given by the
+     * {@link ChangeEntry#QUERY_PARAMETER_AFTER} parameter, in change order. Each entry is joined
+     * with its item's current values, which are null once the item is deleted.
+     */
+    private static Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection) {
+        String after = uri.getQueryParameter(ChangeEntry.QUERY_PARAMETER_AFTER);
+        long afterId = after == null ? 0 : parseLongParameter(uri, after);
+
+        String[] columns = projection == null ? CHANGE_COLUMNS.clone() : projection.clone();
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (ChangeEntry._ID.equals(column) || ChangeEntry.COLUMN_SYNC_ID.equals(column)
+                    || ChangeEntry.COLUMN_DELETED.equals(column)) {
+                columns[i] = ChangeEntry.TABLE_NAME + "." + column + " AS " + column;
+            } else if (ItemEntry.COLUMN_ITEM_QUANTITY.equals(column)) {
+                columns[i] = ItemDbHelper.CURRENT_QUANTITY + " AS " + column;
+            } else if (Arrays.asList(CHANGE_COLUMNS).contains(column)) {
+                columns[i] = ItemEntry.TABLE_NAME + "." + column + " AS " + column;
+            } else {
+                throw new IllegalArgumentException("Unknown change column " + column);
+            }
+        }
+
+        String limit = getLimit(uri);
+        String sql = "SELECT " + TextUtils.join(", ", columns)
+                + " FROM " + ChangeEntry.TABLE_NAME + " LEFT JOIN " + ItemEntry.TABLE_NAME
+                + " ON " + ItemEntry.TABLE_NAME + "." + ItemEntry._ID + " = "
+                + ChangeEntry.TABLE_NAME + "." + ChangeEntry.COLUMN_ITEM_ID
+                + " WHERE " + ChangeEntry.TABLE_NAME + "." + ChangeEntry._ID + " > ?"
+                + " ORDER BY " + ChangeEntry.TABLE_NAME + "." + ChangeEntry._ID
+                + (limit == null ? "" : " LIMIT " + limit);
+        return database.rawQuery(sql, new String[] { String.valueOf(afterId) });
+    }
+
+    /**
+     * Queries the stock levels, limited to the item and location given by the
+     * {@link StockEntry#QUERY_PARAMETER_ITEM} and {@link StockEntry#QUERY_PARAMETER_LOCATION}
+     * parameters if they are present. The quantity is replaced with the current quantity at the
+     * level's location. Levels are returned in item and then location order unless a sort
+     * order is given.
+     */
+    private static Cursor queryStock(SQLiteDatabase database, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        String item = uri.getQueryParameter(StockEntry.QUERY_PARAMETER_ITEM);
+        if (item != null) {
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    StockEntry.COLUMN_ITEM_ID + "=?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { String.valueOf(parseLongParameter(uri, item)) });
+        }
+        String location = uri.getQueryParameter(StockEntry.QUERY_PARAMETER_LOCATION);
+        if (location != null) {
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    StockEntry.COLUMN_LOCATION_ID + "=?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { String.valueOf(parseLongParameter(uri, location)) });
+        }
+        if (sortOrder == null) {
+            sortOrder = StockEntry.COLUMN_ITEM_ID + ", " + StockEntry.COLUMN_LOCATION_ID;
+        }
+
+        String[] columns = projection == null ? new String[] { StockEntry._ID,
+                StockEntry.COLUMN_ITEM_ID, StockEntry.COLUMN_LOCATION_ID,
+                StockEntry.COLUMN_QUANTITY } : projection.clone();
+        for (int i = 0; i < columns.length; i++) {
+            if (StockEntry.COLUMN_QUANTITY.equals(columns[i])) {
+                columns[i] = ItemDbHelper.CURRENT_LEVEL_QUANTITY + " AS "
+                        + StockEntry.COLUMN_QUANTITY;
+            }
+        }
+        return database.query(StockEntry.TABLE_NAME, columns, selection, selectionArgs,
+                null, null, sortOrder, getLimit(uri));
+    }
+
+    /**
+     * Queries the stock movements, limited to the period given by the
+     * {@link MovementEntry#QUERY_PARAMETER_FROM} and {@link MovementEntry#QUERY_PARAMETER_TO}
+     * parameters if they are present. Movements are returned oldest first unless a sort order
+     * is given.
+     */
+    private static Cursor queryMovements(SQLiteDatabase database, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        String from = uri.getQueryParameter(MovementEntry.QUERY_PARAMETER_FROM);
+        if (from != null) {
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    MovementEntry.COLUMN_TIMESTAMP + ">=?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { String.valueOf(parseLongParameter(uri, from)) });
+        }
+        String to = uri.getQueryParameter(MovementEntry.QUERY_PARAMETER_TO);
+        if (to != null) {
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    MovementEntry.COLUMN_TIMESTAMP + "<?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { String.valueOf(parseLongParameter(uri, to)) });
+        }
+        if (sortOrder == null) {
+            sortOrder = MovementEntry.COLUMN_TIMESTAMP + ", " + MovementEntry._ID;
+        }
+        return database.query(MovementEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, sortOrder, getLimit(uri));
+    }
+
+    /**
+     * Searches the full-text index for the text in the {@link ItemEntry#QUERY_PARAMETER_QUERY}
+     * parameter and returns the matching items. Items are ranked by the number of term hits in
+     * their name and description, so the ranking only reads the index rows that matched.
+     */
+    private static Cursor searchItems(SQLiteDatabase database, Uri uri, String[] projection) {
+        String match = buildMatchExpression(uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_QUERY));
+        String limit = getLimit(uri);
+        if (limit == null) {
+            limit = DEFAULT_SEARCH_LIMIT;
+        }
+
+        // Nothing searchable was entered, so nothing matches
+        if (match == null) {
+            return database.query(ItemEntry.TABLE_NAME, itemColumns(projection), "0", null,
+                    null, null, null);
+        }
+
+        // offsets() lists four numbers per term hit, separated by spaces, so the hits are the
+        // spaces plus one, divided by four
+        String offsets = "offsets(" + ItemEntry.FTS_TABLE_NAME + ")";
+        String sql = "SELECT " + TextUtils.join(", ", itemColumns(projection))
+                + " FROM " + ItemEntry.TABLE_NAME + " JOIN ("
+                + "SELECT docid, (length(" + offsets + ") - length(replace(" + offsets
+                + ", ' ', '')) + 1) / 4 AS rank"
+                + " FROM " + ItemEntry.FTS_TABLE_NAME
+                + " WHERE " + ItemEntry.FTS_TABLE_NAME + " MATCH ?) AS hits"
+                + " ON " + ItemEntry.TABLE_NAME + "." + ItemEntry._ID + " = hits.docid"
+                + " ORDER BY hits.rank DESC, " + ItemEntry.TABLE_NAME + "." + ItemEntry._ID
+                + " LIMIT " + limit;
+        return database.rawQuery(sql, new String[] { match });
+    }
+
+    /**
+     * Turns free text typed by the user into an FTS MATCH expression where every word must match
+     * as a prefix. Punctuation is dropped and words are lower-cased (so AND, OR, NOT and NEAR are
+     * plain words rather than operators), so user input can never produce a malformed expression.
+     * Returns null if there are no words to search for.
+     */
+    private static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word.toLowerCase(Locale.ROOT)).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Returns the row limit requested with {@link ItemEntry#QUERY_PARAMETER_LIMIT},
+     * or null if there is none.
+     */
+    static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        long rows = parseLongParameter(uri, limit);
+        if (rows < 1) {
+            throw new IllegalArgumentException("Limit must be positive " + uri);
+        }
+        return String.valueOf(rows);
+    }
+
+    /**
+     * Parses a numeric query parameter of the given URI.
+     */
+    static long parseLongParameter(Uri uri, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid query parameter " + value + " in " + uri, e);
+        }
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
@@ -122,30 +672,179 @@ public class ItemProvider extends ContentProvider {
                 return ItemEntry.CONTENT_LIST_TYPE;
             case ITEM_ID:
                 return ItemEntry.CONTENT_ITEM_TYPE;
+            case ITEM_SEARCH:
+                return ItemEntry.CONTENT_LIST_TYPE;
+            case ITEM_SKU:
+                return ItemEntry.CONTENT_ITEM_TYPE;
+            case SKUS:
+                return ItemEntry.CONTENT_LIST_TYPE;
+            case STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case MOVEMENTS:
+                return MovementEntry.CONTENT_LIST_TYPE;
+            case STOCK:
+                return StockEntry.CONTENT_LIST_TYPE;
+            case CHANGES:
+                return ChangeEntry.CONTENT_LIST_TYPE;
+            case EXPORT:
+                return ItemEntry.FORMAT_JSON.equals(getExportFormat(uri))
+                        ? ItemEntry.JSON_TYPE : ItemEntry.CSV_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Opens the export URI for reading. The export is written into one end of a pipe on a
+     * background thread while the caller reads the other end, so the file is never stored and
+     * the caller can start reading before the export has finished.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT) {
+            throw new FileNotFoundException("No file at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Exports can only be read " + uri);
+        }
+        final String format = getExportFormat(uri);
+        if (!ItemEntry.FORMAT_CSV.equals(format) && !ItemEntry.FORMAT_JSON.equals(format)) {
+            throw new IllegalArgumentException("Unknown export format " + format + " in " + uri);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot create pipe: " + e.getMessage());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    new ItemExporter(ItemProvider.this).export(out, format);
+                } catch (IOException e) {
+                    // Usually the reader closed its end early
+                    Log.w(LOG_TAG, "Export of " + format + " stopped", e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close export pipe", e);
+                    }
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Returns the format requested with {@link ItemEntry#QUERY_PARAMETER_FORMAT}, or CSV.
+     */
+    private static String getExportFormat(Uri uri) {
+        String format = uri.getQueryParameter(ItemEntry.QUERY_PARAMETER_FORMAT);
+        return format == null ? ItemEntry.FORMAT_CSV : format;
+    }
+
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        long start = System.nanoTime();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
-                return insertItem(uri, values);
+                Uri itemUri = insertItem(uri, values);
+                mMetrics.record(ProviderMetrics.INSERT, match - ITEMS, start, itemUri == null ? 0 : 1);
+                return itemUri;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
     
     private Uri insertItem(Uri uri, ContentValues values) {
+        validateNewItem(values);
+
+        // Every item gets an ID that is the same on every device once it is synced
+        if (values.getAsString(ItemEntry.COLUMN_ITEM_SYNC_ID) == null) {
+            values = new ContentValues(values);
+            values.put(ItemEntry.COLUMN_ITEM_SYNC_ID, UUID.randomUUID().toString());
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Insert the new item with the given values. The usual columns are bound to the
+        // compiled insert; anything else needs an insert built for the values given.
+        long id;
+        if (hasOnlyItemColumns(values)) {
+            database.beginTransactionNonExclusive();
+            try {
+                try {
+                    id = getStatements().insertItem(values.getAsString(ItemEntry.COLUMN_ITEM_NAME),
+                            values.getAsLong(ItemEntry.COLUMN_ITEM_QUANTITY),
+                            values.getAsLong(ItemEntry.COLUMN_ITEM_PRICE),
+                            values.getAsString(ItemEntry.COLUMN_ITEM_DESCRIPTION),
+                            values.getAsString(ItemEntry.COLUMN_ITEM_SKU),
+                            values.getAsString(ItemEntry.COLUMN_ITEM_SYNC_ID));
+                } catch (SQLiteConstraintException e) {
+                    // The SKU or sync ID is taken. The failed insert changed nothing, so the
+                    // transaction still commits, and a batch around it decides whether to roll
+                    // back; bulkInsert and applyBatch both do.
+                    id = -1;
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } else {
+            id = database.insert(ItemEntry.TABLE_NAME, null, values);
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Notify all listeners that the new item was added
+        Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+        notifyChange(itemUri);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return itemUri;
+    }
+
+    /**
+     * Returns whether the values only hold columns the compiled insert writes.
+     */
+    private static boolean hasOnlyItemColumns(ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!ItemEntry.COLUMN_ITEM_NAME.equals(column)
+                    && !ItemEntry.COLUMN_ITEM_QUANTITY.equals(column)
+                    && !ItemEntry.COLUMN_ITEM_PRICE.equals(column)
+                    && !ItemEntry.COLUMN_ITEM_DESCRIPTION.equals(column)
+                    && !ItemEntry.COLUMN_ITEM_SKU.equals(column)
+                    && !ItemEntry.COLUMN_ITEM_SYNC_ID.equals(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the values describe a valid new item, throwing an IllegalArgumentException
+     * if they do not. Inserts are checked with this, and imports use it to reject bad rows
+     * before they are written.
+     */
+    static void validateNewItem(ContentValues values) {
         // Check that the name is not null
         String name = values.getAsString(ItemEntry.COLUMN_ITEM_NAME);
         if(name == null) {
             throw new IllegalArgumentException("Item requires a name");
         }
-        
+
         // Check that the quantity is not null and not negative
         Integer quantity = values.getAsInteger(ItemEntry.COLUMN_ITEM_QUANTITY);
         if(quantity == null || quantity < 0) {
@@ -153,91 +852,134 @@ public class ItemProvider extends ContentProvider {
         }
 
         // Check that the price is not null and not negative
-        Double price = values.getAsDouble(ItemEntry.COLUMN_ITEM_PRICE);
+        Long price = values.getAsLong(ItemEntry.COLUMN_ITEM_PRICE);
         if(price == null || price < 0) {
             throw new IllegalArgumentException("Item requires a valid price");
         }
 
         // No need to check the description since it is not required.
-        
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert the new item with the given values
-        long id = database.insert(ItemEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        checkPhoto(values);
+        checkSku(values);
+        checkVersion(values);
+    }
+
+    /**
+     * Checks that a SKU in the values is null or not empty.
+     */
+    private static void checkSku(ContentValues values) {
+        String sku = values.getAsString(ItemEntry.COLUMN_ITEM_SKU);
+        if (sku != null && sku.isEmpty()) {
+            throw new IllegalArgumentException("Item requires a non-empty SKU");
         }
+    }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Checks that the values do not set the version, which only the provider moves on.
+     */
+    private static void checkVersion(ContentValues values) {
+        if (values.containsKey(ItemEntry.COLUMN_ITEM_VERSION)) {
+            throw new IllegalArgumentException("Item version is read-only");
+        }
+    }
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Checks that a photo in the values is null or the name of a photo, so deleting it later
+     * can never reach a file outside the photo directory.
+     */
+    private static void checkPhoto(ContentValues values) {
+        String photo = values.getAsString(ItemEntry.COLUMN_ITEM_PHOTO);
+        if (photo != null && !ItemPhotos.isValidName(photo)) {
+            throw new IllegalArgumentException("Item has an invalid photo " + photo);
+        }
     }
 
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        long start = System.nanoTime();
+
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Track the number of rows deleted
+        // Track the number of rows deleted and the photos they had
         int rowsDeleted;
+        List<String> photos;
 
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
-                // Notify all listeners that the data has changed for the item content URI
-                getContext().getContentResolver().notifyChange(uri, null);
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(ItemEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete all rows that match the selection and selection args, together with
+                // their photos
+                database.beginTransactionNonExclusive();
+                try {
+                    photos = readPhotos(database, selection, selectionArgs, null);
+                    rowsDeleted = database.delete(ItemEntry.TABLE_NAME, selection, selectionArgs);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
                 break;
             case ITEM_ID:
-                // Delete a single row given by the ID in the URI
-                selection = ItemEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri))};
-                // Notify all listeners that the data has changed for the item content URI
-                getContext().getContentResolver().notifyChange(uri, null);
-                rowsDeleted = database.delete(ItemEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete a single row given by the ID in the URI, together with its photo
+                long id = ContentUris.parseId(uri);
+                database.beginTransactionNonExclusive();
+                try {
+                    photos = readPhotos(database, ItemEntry._ID + "=?",
+                            new String[] { String.valueOf(id) }, null);
+                    rowsDeleted = getStatements().deleteItem(id);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
         // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
+        // given URI has changed. This is the item URI for a single item, so observers of the
+        // list can tell which item went away.
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            releasePhotos(photos);
+            notifyChange(uri);
         }
+        mMetrics.record(ProviderMetrics.DELETE, match - ITEMS, start, rowsDeleted);
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
     @Override
     public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsUpdated;
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case ITEMS:
-                return updateItem(uri, values, selection, selectionArgs);
+                rowsUpdated = updateItem(uri, -1, values, selection, selectionArgs);
+                break;
             case ITEM_ID:
                 // For the ITEM_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
                 selection = ItemEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateItem(uri, values, selection, selectionArgs);
+                rowsUpdated = updateItem(uri, ContentUris.parseId(uri), values, selection,
+                        selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+        mMetrics.record(ProviderMetrics.UPDATE, match - ITEMS, start, rowsUpdated);
+        return rowsUpdated;
     }
 
     /**
      * Update items in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more items).
-     * Return the number of rows that were successfully updated.
+     * Return the number of rows that were successfully updated. The ID is that of the single
+     * item the selection matches, or -1 if it may match any number.
      */
-    private int updateItem(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updateItem(Uri uri, long id, ContentValues values, String selection,
+            String[] selectionArgs) {
         // If the {@link ItemEntry#COLUMN_ITEM_NAME} key is present,
         // check that the name value is not null.
         if (values.containsKey(ItemEntry.COLUMN_ITEM_NAME)) {
@@ -259,7 +1001,7 @@ public class ItemProvider extends ContentProvider {
         // If the {@link ItemEntry#COLUMN_ITEM_PRICE} key is present
         // check that the price value is valid.
         if(values.containsKey(ItemEntry.COLUMN_ITEM_PRICE)) {
-            Double price = values.getAsDouble(ItemEntry.COLUMN_ITEM_PRICE);
+            Long price = values.getAsLong(ItemEntry.COLUMN_ITEM_PRICE);
             if(price == null || price < 0) {
                 throw new IllegalArgumentException("Item requires a valid price");
             }
@@ -267,6 +1009,10 @@ public class ItemProvider extends ContentProvider {
 
         // No need to check the description since it is not required.
 
+        checkPhoto(values);
+        checkSku(values);
+        checkVersion(values);
+
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
@@ -275,14 +1021,764 @@ public class ItemProvider extends ContentProvider {
         // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(ItemEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Track the number of rows affected and the photos they no longer have
+        int rowsUpdated;
+        List<String> photos = Collections.emptyList();
+
+        database.beginTransactionNonExclusive();
+        try {
+            // A new photo replaces the old one, whose file goes once the update commits
+            if (values.containsKey(ItemEntry.COLUMN_ITEM_PHOTO)) {
+                photos = readPhotos(database, selection, selectionArgs,
+                        values.getAsString(ItemEntry.COLUMN_ITEM_PHOTO));
+            }
+
+            // A new quantity is recorded in the ledger as an adjustment of each matching item at
+            // the default location, so the other columns are all that is written to the items
+            // table. The quantity is the total over every location, so it cannot go below the
+            // stock held elsewhere.
+            ContentValues itemValues = values;
+            int quantityBefore = -1;
+            if (values.containsKey(ItemEntry.COLUMN_ITEM_QUANTITY)) {
+                int quantity = values.getAsInteger(ItemEntry.COLUMN_ITEM_QUANTITY);
+                if (id >= 0) {
+                    // A single item is adjusted with the compiled statements
+                    quantityBefore = getStatements().readQuantity(id);
+                    if (quantityBefore >= 0 && quantityBefore != quantity) {
+                        if (getStatements().readLevelQuantity(id, StockEntry.DEFAULT_LOCATION)
+                                + quantity - quantityBefore < 0) {
+                            throw new IllegalArgumentException(OTHER_LOCATIONS_MESSAGE);
+                        }
+                        getStatements().insertMovement(id, StockEntry.DEFAULT_LOCATION,
+                                quantity - quantityBefore, MovementEntry.KIND_ADJUSTMENT);
+                    }
+                } else {
+                    recordAdjustments(database, quantity, selection, selectionArgs);
+                }
+                itemValues = new ContentValues(values);
+                itemValues.remove(ItemEntry.COLUMN_ITEM_QUANTITY);
+            }
+
+            // Perform the update on the database and get the number of rows affected
+            if (itemValues.size() > 0) {
+                rowsUpdated = database.update(ItemEntry.TABLE_NAME, itemValues, selection,
+                        selectionArgs);
+            } else if (id >= 0) {
+                rowsUpdated = quantityBefore >= 0 ? 1 : 0;
+            } else {
+                rowsUpdated = (int) DatabaseUtils.queryNumEntries(database, ItemEntry.TABLE_NAME,
+                        selection, selectionArgs);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            releasePhotos(photos);
+            notifyChange(uri);
         }
         // Return the number of rows updated
         return rowsUpdated;
     }
+
+    /**
+     * Appends an adjustment movement at the default location for every item matching the
+     * selection whose current quantity differs from the given one, bringing it to that quantity.
+     *
+     * @throws IllegalArgumentException if that would take the default location of any of them
+     * below zero
+     */
+    private static void recordAdjustments(SQLiteDatabase database, int quantity,
+            String selection, String[] selectionArgs) {
+        // The quantity is a parsed integer, so it is safe to write into the SQL, and compares
+        // as a number with the expressions
+        String levelQuantity = "IFNULL((SELECT " + ItemDbHelper.CURRENT_LEVEL_QUANTITY
+                + " FROM " + StockEntry.TABLE_NAME
+                + " WHERE " + StockEntry.COLUMN_ITEM_ID + " = "
+                + ItemEntry.TABLE_NAME + "." + ItemEntry._ID
+                + " AND " + StockEntry.COLUMN_LOCATION_ID + " = " + StockEntry.DEFAULT_LOCATION
+                + "), 0)";
+        if (DatabaseUtils.queryNumEntries(database, ItemEntry.TABLE_NAME,
+                DatabaseUtils.concatenateWhere(selection, levelQuantity + " + " + quantity
+                        + " - (" + ItemDbHelper.CURRENT_QUANTITY + ") < 0"), selectionArgs) > 0) {
+            throw new IllegalArgumentException(OTHER_LOCATIONS_MESSAGE);
+        }
+
+        String where = DatabaseUtils.concatenateWhere(selection,
+                ItemDbHelper.CURRENT_QUANTITY + " != ?");
+        Object[] bindArgs = new Object[(selectionArgs == null ? 0 : selectionArgs.length) + 3];
+        bindArgs[0] = quantity;
+        bindArgs[1] = System.currentTimeMillis();
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, bindArgs, 2, selectionArgs.length);
+        }
+        bindArgs[bindArgs.length - 1] = quantity;
+
+        database.execSQL("INSERT INTO " + MovementEntry.TABLE_NAME + " ("
+                + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry.COLUMN_LOCATION_ID + ", "
+                + MovementEntry.COLUMN_DELTA + ", " + MovementEntry.COLUMN_KIND + ", "
+                + MovementEntry.COLUMN_TIMESTAMP + ")"
+                + " SELECT " + ItemEntry._ID + ", " + StockEntry.DEFAULT_LOCATION + ", ? - ("
+                + ItemDbHelper.CURRENT_QUANTITY + "), "
+                + MovementEntry.KIND_ADJUSTMENT + ", ?"
+                + " FROM " + ItemEntry.TABLE_NAME + " WHERE " + where, bindArgs);
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        // The writes are recorded in the metrics like the other operations, each under the URI
+        // pattern of what it writes; the methods that only read are not
+        long start = System.nanoTime();
+        switch (method) {
+            case ItemContract.METHOD_SELL:
+                Bundle sold = sellItem(parseItemId(arg), getLocation(extras), getCount(extras));
+                mMetrics.record(ProviderMetrics.SELL, ITEM_ID - ITEMS, start, 1);
+                return sold;
+            case ItemContract.METHOD_SELL_BATCH:
+                if (extras == null) {
+                    throw new IllegalArgumentException("Method requires item IDs and counts");
+                }
+                long[] ids = extras.getLongArray(ItemContract.EXTRA_ITEM_IDS);
+                Bundle soldItems = sellItems(ids, extras.getIntArray(ItemContract.EXTRA_COUNTS),
+                        getLocation(extras));
+                mMetrics.record(ProviderMetrics.SELL_BATCH, ITEMS - ITEMS, start, ids.length);
+                return soldItems;
+            case ItemContract.METHOD_RECEIVE:
+                Bundle received = receiveItem(parseItemId(arg), getLocation(extras),
+                        getCount(extras));
+                mMetrics.record(ProviderMetrics.RECEIVE, ITEM_ID - ITEMS, start, 1);
+                return received;
+            case ItemContract.METHOD_ADJUST:
+                if (extras == null || !extras.containsKey(ItemContract.EXTRA_QUANTITY)) {
+                    throw new IllegalArgumentException("Method requires a quantity");
+                }
+                Bundle adjusted = adjustItem(parseItemId(arg), getLocation(extras),
+                        extras.getInt(ItemContract.EXTRA_QUANTITY));
+                mMetrics.record(ProviderMetrics.ADJUST, ITEM_ID - ITEMS, start, 1);
+                return adjusted;
+            case ItemContract.METHOD_COMPACT:
+                long before = extras == null ? System.currentTimeMillis()
+                        : extras.getLong(ItemContract.EXTRA_BEFORE, System.currentTimeMillis());
+                int folded = mDbHelper.compactLedger(before);
+                Bundle compacted = new Bundle();
+                compacted.putInt(ItemContract.EXTRA_FOLDED, folded);
+                mMetrics.record(ProviderMetrics.COMPACT, MOVEMENTS - ITEMS, start, folded);
+                return compacted;
+            case ItemContract.METHOD_CACHE_STATS:
+                Bundle stats = new Bundle();
+                stats.putInt(ItemContract.EXTRA_CACHE_HITS, mRowCache.hitCount());
+                stats.putInt(ItemContract.EXTRA_CACHE_MISSES, mRowCache.missCount());
+                stats.putInt(ItemContract.EXTRA_CACHE_SIZE, mRowCache.size());
+                return stats;
+            case ItemContract.METHOD_METRICS:
+                return mMetrics.snapshot(extras != null
+                        && extras.getBoolean(ItemContract.EXTRA_RESET, false));
+            case ItemContract.METHOD_SYNC_STATE:
+                return readSyncState();
+            case ItemContract.METHOD_ACKNOWLEDGE_CHANGES:
+                if (extras == null || !extras.containsKey(ItemContract.EXTRA_CHANGE_ID)) {
+                    throw new IllegalArgumentException("Method requires a change ID");
+                }
+                acknowledgeChanges(extras.getLong(ItemContract.EXTRA_CHANGE_ID));
+                return null;
+            case ItemContract.METHOD_APPLY_CHANGES:
+                if (extras == null || extras.getParcelableArray(ItemContract.EXTRA_CHANGES) == null
+                        || !extras.containsKey(ItemContract.EXTRA_CHECKPOINT)) {
+                    throw new IllegalArgumentException("Method requires changes and a checkpoint");
+                }
+                Parcelable[] changes = extras.getParcelableArray(ItemContract.EXTRA_CHANGES);
+                Bundle applied = applyChanges(changes,
+                        extras.getLong(ItemContract.EXTRA_CHECKPOINT));
+                mMetrics.record(ProviderMetrics.APPLY_CHANGES, ITEMS - ITEMS, start,
+                        changes.length);
+                return applied;
+            case ItemContract.METHOD_UPDATE_IF_VERSION:
+                if (extras == null || extras.getParcelable(ItemContract.EXTRA_VALUES) == null
+                        || !extras.containsKey(ItemContract.EXTRA_VERSION)) {
+                    throw new IllegalArgumentException("Method requires values and a version");
+                }
+                Bundle updated = updateItemIfVersion(parseItemId(arg),
+                        (ContentValues) extras.getParcelable(ItemContract.EXTRA_VALUES),
+                        extras.getLong(ItemContract.EXTRA_VERSION));
+                mMetrics.record(ProviderMetrics.UPDATE_IF_VERSION, ITEM_ID - ITEMS, start, 1);
+                return updated;
+            case ItemContract.METHOD_CHECKPOINT:
+                Bundle result = new Bundle();
+                result.putBoolean(ItemContract.EXTRA_CHECKPOINTED, mDbHelper.checkpoint());
+                return result;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Sells the given number of units of an item at a location. The sale is appended to the
+     * ledger only if there is enough stock there, so the location's quantity can never go
+     * negative. Returns whether the sale was made and the new quantity at the location.
+     */
+    private Bundle sellItem(long id, long location, int count) {
+        int quantity = recordMovement(id, location, -count, MovementEntry.KIND_SALE);
+        boolean sold = quantity >= count;
+
+        Bundle result = new Bundle();
+        result.putBoolean(ItemContract.EXTRA_SOLD, sold);
+        result.putInt(ItemContract.EXTRA_QUANTITY, sold ? quantity - count : quantity);
+        return result;
+    }
+
+    /**
+     * Receives the given number of units of an item into stock at a location. Returns the new
+     * quantity at the location.
+     */
+    private Bundle receiveItem(long id, long location, int count) {
+        int quantity = recordMovement(id, location, count, MovementEntry.KIND_RECEIPT);
+
+        Bundle result = new Bundle();
+        result.putInt(ItemContract.EXTRA_QUANTITY, quantity < 0 ? quantity : quantity + count);
+        return result;
+    }
+
+    /**
+     * Sets the quantity of an item at a location by appending the difference to the ledger as
+     * an adjustment. Returns the new quantity at the location.
+     */
+    private Bundle adjustItem(long id, long location, int quantity) {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Method requires a valid quantity");
+        }
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Track the quantity before the adjustment
+        int quantityBefore;
+
+        database.beginTransactionNonExclusive();
+        try {
+            quantityBefore = getStatements().readLevelQuantity(id, location);
+            if (quantityBefore >= 0 && quantityBefore != quantity) {
+                getStatements().insertMovement(id, location, quantity - quantityBefore,
+                        MovementEntry.KIND_ADJUSTMENT);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Only a recorded movement changes the data
+        if (quantityBefore >= 0 && quantityBefore != quantity) {
+            notifyChange(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id));
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(ItemContract.EXTRA_QUANTITY, quantityBefore < 0 ? -1 : quantity);
+        return result;
+    }
+
+    /**
+     * Updates an item if its current version is the given one. The check and the update run in
+     * one write transaction, so no other write can come between them, and the update's
+     * notification is sent once it commits. Returns whether there was a conflict and the item's
+     * version after the call.
+     */
+    private Bundle updateItemIfVersion(long id, ContentValues values, long version) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long current;
+        beginBatch(database);
+        boolean successful = false;
+        try {
+            current = getStatements().readVersion(id);
+            if (current >= 0 && current == version) {
+                update(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id), values, null, null);
+                current = getStatements().readVersion(id);
+                database.setTransactionSuccessful();
+                successful = true;
+            }
+        } finally {
+            endBatch(database, successful);
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(ItemContract.EXTRA_CONFLICT, current >= 0 && !successful);
+        result.putLong(ItemContract.EXTRA_VERSION, current);
+        return result;
+    }
+
+    /**
+     * Appends a movement at a location to the ledger, unless the item does not exist or the
+     * movement would take its quantity at the location below zero. The check and the append run
+     * in one write transaction, so they are atomic with respect to other writers. Only the
+     * ledger is written; the item's row and its stock levels are left alone.
+     *
+     * @return the item's quantity at the location before the movement, or -1 if there is no
+     * such item
+     */
+    private int recordMovement(long id, long location, int delta, int kind) {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Track whether the movement was recorded and the quantity before it
+        boolean recorded = false;
+        int quantity;
+
+        database.beginTransactionNonExclusive();
+        try {
+            quantity = getStatements().readLevelQuantity(id, location);
+            if (quantity >= 0 && quantity + delta >= 0) {
+                getStatements().insertMovement(id, location, delta, kind);
+                recorded = true;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // Only a recorded movement changes the data
+        if (recorded) {
+            notifyChange(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id));
+        }
+        return quantity;
+    }
+
+    /**
+     * Sells units of several items at a location in one transaction, each item selling at most
+     * the stock it has there. Observers are notified once, after the transaction commits.
+     * Returns the units of each item sold.
+     */
+    private Bundle sellItems(long[] ids, int[] counts, long location) {
+        if (ids == null || counts == null || ids.length != counts.length) {
+            throw new IllegalArgumentException("Method requires an equal number of IDs and counts");
+        }
+        for (int count : counts) {
+            if (count < 1) {
+                throw new IllegalArgumentException("Method requires a positive count");
+            }
+        }
+
+        // Get writeable database and open one transaction for the whole batch
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        beginBatch(database);
+
+        ItemStatements statements = getStatements();
+        int[] sold = new int[ids.length];
+        boolean successful = false;
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                sold[i] = Math.min(counts[i],
+                        Math.max(statements.readLevelQuantity(ids[i], location), 0));
+                if (sold[i] > 0) {
+                    statements.insertMovement(ids[i], location, -sold[i],
+                            MovementEntry.KIND_SALE);
+                    notifyChange(ContentUris.withAppendedId(ItemEntry.CONTENT_URI, ids[i]));
+                }
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endBatch(database, successful);
+        }
+
+        Bundle result = new Bundle();
+        result.putIntArray(ItemContract.EXTRA_SOLD_COUNTS, sold);
+        return result;
+    }
+
+    /**
+     * Reads the single row of sync state.
+     */
+    private Bundle readSyncState() {
+        Cursor cursor = mDbHelper.getReadableDatabase().query(ItemDbHelper.SYNC_STATE_TABLE_NAME,
+                new String[] { ItemDbHelper.COLUMN_DEVICE_ID,
+                        ItemDbHelper.COLUMN_ACKNOWLEDGED_CHANGE_ID,
+                        ItemDbHelper.COLUMN_PULLED_CHECKPOINT }, null, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            Bundle state = new Bundle();
+            state.putString(ItemContract.EXTRA_DEVICE_ID, cursor.getString(0));
+            state.putLong(ItemContract.EXTRA_CHANGE_ID, cursor.getLong(1));
+            state.putLong(ItemContract.EXTRA_CHECKPOINT, cursor.getLong(2));
+            return state;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records that the central store has the local changes up to the given one, and drops them
+     * from the change log, tombstones included, so the log only holds what is left to send.
+     */
+    private void acknowledgeChanges(long changeId) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        try {
+            database.delete(ChangeEntry.TABLE_NAME, ChangeEntry._ID + "<=?",
+                    new String[] { String.valueOf(changeId) });
+            ContentValues state = new ContentValues();
+            state.put(ItemDbHelper.COLUMN_ACKNOWLEDGED_CHANGE_ID, changeId);
+            database.update(ItemDbHelper.SYNC_STATE_TABLE_NAME, state, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Applies changes pulled from the central store and saves the checkpoint they go up to, in
+     * one transaction. Each change goes through {@link #insert}, {@link #update} or
+     * {@link #delete} as usual, and what they logged is dropped from the change log afterwards.
+     * Changes that conflict with this device's data are resolved by {@link #applyChange} and
+     * logged again, so the resolution is sent back on the next sync. Observers are notified
+     * once, after the transaction commits. Returns the sync IDs of the resolved changes.
+     */
+    private Bundle applyChanges(Parcelable[] changes, long checkpoint) {
+        // Get writeable database and open one transaction for the whole batch
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        beginBatch(database);
+
+        List<String> conflicts = new ArrayList<>();
+        boolean successful = false;
+        try {
+            // Only this transaction writes until it ends, so every entry after the last one
+            // now is logged by these changes
+            long lastChangeId = DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX("
+                    + ChangeEntry._ID + "), 0) FROM " + ChangeEntry.TABLE_NAME, null);
+            // Changes that leave an item without a SKU go first, deletions included, so a SKU
+            // that moves from one item to another in the batch is free when it is taken
+            for (int pass = 0; pass < 2; pass++) {
+                for (Parcelable parcelable : changes) {
+                    ContentValues change = (ContentValues) parcelable;
+                    if ((change.getAsString(ItemEntry.COLUMN_ITEM_SKU) == null) != (pass == 0)) {
+                        continue;
+                    }
+                    if (applyChange(database, change)) {
+                        conflicts.add(change.getAsString(ItemEntry.COLUMN_ITEM_SYNC_ID));
+                    }
+                }
+            }
+            database.delete(ChangeEntry.TABLE_NAME, ChangeEntry._ID + ">?",
+                    new String[] { String.valueOf(lastChangeId) });
+            for (String syncId : conflicts) {
+                database.execSQL("INSERT OR REPLACE INTO " + ChangeEntry.TABLE_NAME + " ("
+                        + ChangeEntry.COLUMN_ITEM_ID + ", " + ChangeEntry.COLUMN_SYNC_ID + ", "
+                        + ChangeEntry.COLUMN_DELETED + ") SELECT " + ItemEntry._ID + ", "
+                        + ItemEntry.COLUMN_ITEM_SYNC_ID + ", 0 FROM " + ItemEntry.TABLE_NAME
+                        + " WHERE " + ItemEntry.COLUMN_ITEM_SYNC_ID + " = ?",
+                        new Object[] { syncId });
+            }
+
+            ContentValues state = new ContentValues();
+            state.put(ItemDbHelper.COLUMN_PULLED_CHECKPOINT, checkpoint);
+            database.update(ItemDbHelper.SYNC_STATE_TABLE_NAME, state, null, null);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endBatch(database, successful);
+        }
+
+        Bundle result = new Bundle();
+        result.putStringArray(ItemContract.EXTRA_CONFLICTS,
+                conflicts.toArray(new String[conflicts.size()]));
+        return result;
+    }
+
+    /**
+     * Applies a single pulled change to the item with its sync ID: deletes it, updates it, or
+     * inserts it if there is no such item yet. A change that conflicts with this device's data
+     * is resolved before it is applied, and true is returned:
+     * <ul>
+     * <li>a SKU another item here already has stays with that item, and the changed item is
+     * left without one</li>
+     * <li>a quantity below the stock held at the other locations is raised to it, since only
+     * the default location is adjusted and it cannot go below zero</li>
+     * </ul>
+     *
+     * @throws SQLiteConstraintException if the change still cannot be applied
+     */
+    private boolean applyChange(SQLiteDatabase database, ContentValues change) {
+        String syncId = change.getAsString(ItemEntry.COLUMN_ITEM_SYNC_ID);
+        if (syncId == null) {
+            throw new IllegalArgumentException("Change requires a sync ID");
+        }
+        long id = DatabaseUtils.longForQuery(database, "SELECT IFNULL((SELECT "
+                + ItemEntry._ID + " FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry.COLUMN_ITEM_SYNC_ID + " = ?), -1)",
+                new String[] { syncId });
+        Uri itemUri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, id);
+
+        if (Boolean.TRUE.equals(change.getAsBoolean(ChangeEntry.COLUMN_DELETED))) {
+            if (id >= 0) {
+                delete(itemUri, null, null);
+            }
+            return false;
+        }
+        ContentValues values = new ContentValues(change);
+        values.remove(ChangeEntry.COLUMN_DELETED);
+
+        boolean conflict = false;
+        String sku = values.getAsString(ItemEntry.COLUMN_ITEM_SKU);
+        if (sku != null && DatabaseUtils.queryNumEntries(database, ItemEntry.TABLE_NAME,
+                ItemEntry.COLUMN_ITEM_SKU + "=? AND " + ItemEntry._ID + "!=?",
+                new String[] { sku, String.valueOf(id) }) > 0) {
+            values.putNull(ItemEntry.COLUMN_ITEM_SKU);
+            conflict = true;
+        }
+        if (id >= 0) {
+            Integer quantity = values.getAsInteger(ItemEntry.COLUMN_ITEM_QUANTITY);
+            if (quantity != null) {
+                int elsewhere = getStatements().readQuantity(id)
+                        - getStatements().readLevelQuantity(id, StockEntry.DEFAULT_LOCATION);
+                if (quantity < elsewhere) {
+                    values.put(ItemEntry.COLUMN_ITEM_QUANTITY, elsewhere);
+                    conflict = true;
+                }
+            }
+            values.remove(ItemEntry.COLUMN_ITEM_SYNC_ID);
+            update(itemUri, values, null, null);
+        } else if (insert(ItemEntry.CONTENT_URI, values) == null) {
+            // Fails the batch, so the checkpoint stays and the change is pulled again
+            throw new SQLiteConstraintException("Cannot apply the change to item " + syncId);
+        }
+        if (conflict) {
+            Log.w(LOG_TAG, "Resolved a conflict with the change to item " + syncId);
+        }
+        return conflict;
+    }
+
+    /**
+     * Returns the number of units passed to a provider method, which must be positive.
+     */
+    private static int getCount(Bundle extras) {
+        int count = extras == null ? 1 : extras.getInt(ItemContract.EXTRA_COUNT, 1);
+        if (count < 1) {
+            throw new IllegalArgumentException("Method requires a positive count");
+        }
+        return count;
+    }
+
+    /**
+     * Returns the location passed to a provider method, or the default location.
+     */
+    private static long getLocation(Bundle extras) {
+        return extras == null ? StockEntry.DEFAULT_LOCATION
+                : extras.getLong(ItemContract.EXTRA_LOCATION, StockEntry.DEFAULT_LOCATION);
+    }
+
+    /**
+     * Parses the item ID passed as the argument of a provider method.
+     */
+    private static long parseItemId(String arg) {
+        if (arg == null) {
+            throw new IllegalArgumentException("Method requires an item ID");
+        }
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid item ID " + arg, e);
+        }
+    }
+
+    /**
+     * Inserts all of the given items in a single transaction. Every row goes through the same
+     * validation as {@link #insertItem}; if any row is rejected the whole batch is rolled back.
+     * Observers are notified once, after the transaction commits.
+     *
+     * @throws IllegalArgumentException if a row is invalid
+     * @throws SQLiteConstraintException if a row cannot be inserted, for instance because its
+     * SKU is taken
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        long start = System.nanoTime();
+        final int match = sUriMatcher.match(uri);
+        if (match != ITEMS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        // Get writeable database and open one transaction for the whole batch
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        beginBatch(database);
+
+        // Track whether the batch committed
+        boolean successful = false;
+        try {
+            for (int i = 0; i < values.length; i++) {
+                // A single insert reports a rejected row by returning null, which here has to
+                // abort the batch so that it rolls back
+                if (insertItem(uri, values[i]) == null) {
+                    throw new SQLiteConstraintException("Cannot insert row " + i + " of "
+                            + values.length);
+                }
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endBatch(database, successful);
+        }
+        mMetrics.record(ProviderMetrics.BULK_INSERT, match - ITEMS, start, values.length);
+        return values.length;
+    }
+
+    /**
+     * Applies all of the given operations in a single transaction. Each operation is dispatched
+     * to {@link #insert}, {@link #update} or {@link #delete} as usual, so the same validation
+     * applies. If any operation fails the whole batch is rolled back. Observers are notified
+     * once, after the transaction commits.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        // Get writeable database and open one transaction for the whole batch
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        beginBatch(database);
+
+        boolean successful = false;
+        ContentProviderResult[] results;
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endBatch(database, successful);
+        }
+        // Each operation is recorded as well; this is the whole batch, commit included
+        mMetrics.record(ProviderMetrics.APPLY_BATCH, ITEMS - ITEMS, start, operations.size());
+        return results;
+    }
+
+    /**
+     * Opens the transaction for a batch and defers change notifications on this thread until
+     * {@link #endBatch} is called.
+     */
+    private void beginBatch(SQLiteDatabase database) {
+        database.beginTransactionNonExclusive();
+        mBatchChanges.set(new BatchChanges());
+    }
+
+    /**
+     * Closes the transaction for a batch. If it committed, sends the notifications recorded
+     * during the batch: one per changed item for small batches, otherwise a single one for the
+     * item list URI, which also reaches observers of single items.
+     */
+    private void endBatch(SQLiteDatabase database, boolean successful) {
+        BatchChanges changes = mBatchChanges.get();
+        mBatchChanges.remove();
+        database.endTransaction();
+
+        if (!successful) {
+            return;
+        }
+        if (!changes.mReleasedPhotos.isEmpty()) {
+            ItemPhotos.deletePhotos(getContext(), changes.mReleasedPhotos);
+        }
+        if (changes.mWholeList) {
+            sendChange(ItemEntry.CONTENT_URI);
+        } else {
+            for (Uri itemUri : changes.mItemUris) {
+                sendChange(itemUri);
+            }
+        }
+    }
+
+    /**
+     * Returns the photos of the items matching the selection, other than the given one. It is
+     * read in the transaction that deletes or replaces them, so none is missed.
+     */
+    private static List<String> readPhotos(SQLiteDatabase database, String selection,
+            String[] selectionArgs, String except) {
+        selection = DatabaseUtils.concatenateWhere(selection,
+                ItemEntry.COLUMN_ITEM_PHOTO + " IS NOT NULL");
+        if (except != null) {
+            selection = DatabaseUtils.concatenateWhere(selection,
+                    ItemEntry.COLUMN_ITEM_PHOTO + "!=?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[] { except });
+        }
+        Cursor cursor = database.query(ItemEntry.TABLE_NAME,
+                new String[] { ItemEntry.COLUMN_ITEM_PHOTO }, selection, selectionArgs,
+                null, null, null);
+        try {
+            List<String> photos = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                photos.add(cursor.getString(0));
+            }
+            return photos;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes the files of photos no item refers to any more. Inside a batch they are only
+     * recorded and deleted once the batch commits, since a rollback would bring them back.
+     */
+    private void releasePhotos(List<String> photos) {
+        if (photos.isEmpty()) {
+            return;
+        }
+        BatchChanges changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.mReleasedPhotos.addAll(photos);
+            return;
+        }
+        ItemPhotos.deletePhotos(getContext(), photos);
+    }
+
+    /**
+     * Notifies all listeners that the data at the given URI has changed. Inside a batch the
+     * notification is only recorded and sent once the batch commits.
+     */
+    private void notifyChange(Uri uri) {
+        BatchChanges changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+            return;
+        }
+        sendChange(uri);
+    }
+
+    /**
+     * Drops the cached rows changed at the given URI and notifies the listeners. Called once the
+     * change has committed, so a read that fills the cache afterwards sees it.
+     */
+    private void sendChange(Uri uri) {
+        if (sUriMatcher.match(uri) == ITEM_ID) {
+            mRowCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mRowCache.invalidateAll();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * The URIs changed by the writes of a batch. Once the batch changes more than a few items,
+     * or writes through the list URI, individual item URIs are no longer kept.
+     */
+    private static class BatchChanges {
+        /** Item URIs changed so far, in the order they were first changed */
+        final Set<Uri> mItemUris = new LinkedHashSet<>();
+
+        /** Set once the batch should be reported as a change of the whole list */
+        boolean mWholeList;
+
+        /** Photos of the items the batch deleted or gave new photos */
+        final List<String> mReleasedPhotos = new ArrayList<>();
+
+        void add(Uri uri) {
+            if (mWholeList) {
+                return;
+            }
+            if (sUriMatcher.match(uri) != ITEM_ID
+                    || mItemUris.size() >= MAX_BATCH_ITEM_NOTIFICATIONS) {
+                mWholeList = true;
+                mItemUris.clear();
+                return;
+            }
+            mItemUris.add(uri);
+        }
+    }
 }
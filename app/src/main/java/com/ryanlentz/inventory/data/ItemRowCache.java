@@ -0,0 +1,102 @@
+package com.ryanlentz.inventory.data;
+
+import android.util.LruCache;
+
+/**
+ * Least recently used cache of item rows, keyed by item ID and bounded by the estimated memory
+ * the rows hold. A row is an array of the values of {@link ItemProvider}'s item columns, and is
+ * never modified once cached.
+ * <p>
+ * A read that missed must not cache a row it read before a write if the write's invalidation
+ * came first, or the old row would be served until it is evicted. Every invalidation therefore
+ * starts a new generation, and a row is only cached if no invalidation happened since the read
+ * began (see {@link #getGeneration} and {@link #put}).
+ */
+class ItemRowCache {
+
+    /** Estimated memory held by a cached row apart from its strings, in bytes */
+    private static final int ROW_OVERHEAD_BYTES = 120;
+
+    /** Estimated memory held by a string apart from its characters, in bytes */
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final LruCache<Long, Object[]> mRows;
+
+    /** Number of invalidations so far; guarded by this */
+    private long mGeneration;
+
+    /**
+     * @param maxBytes estimated memory the cached rows may hold, in bytes
+     */
+    ItemRowCache(int maxBytes) {
+        mRows = new LruCache<Long, Object[]>(maxBytes) {
+            @Override
+            protected int sizeOf(Long id, Object[] row) {
+                int bytes = ROW_OVERHEAD_BYTES;
+                for (Object value : row) {
+                    if (value instanceof String) {
+                        bytes += STRING_OVERHEAD_BYTES + ((String) value).length() * 2;
+                    }
+                }
+                return bytes;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached row of the given item, or null, counting a hit or a miss.
+     */
+    Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Returns the current generation. Take it before reading a row from the database and pass
+     * it to {@link #put}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a row read from the database, unless the cache was invalidated since the given
+     * generation was taken.
+     */
+    synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Drops the row of the given item. Call it after a write to the item has committed.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drops every row. Call it after a write to items that are not known one by one has
+     * committed.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    /**
+     * Returns the estimated memory held by the cached rows, in bytes.
+     */
+    int size() {
+        return mRows.size();
+    }
+}
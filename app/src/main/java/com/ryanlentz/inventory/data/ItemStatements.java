@@ -0,0 +1,169 @@
+package com.ryanlentz.inventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+import com.ryanlentz.inventory.data.ItemContract.MovementEntry;
+import com.ryanlentz.inventory.data.ItemContract.StockEntry;
+
+/**
+ * The provider's hottest writes and lookups, compiled once per database and reused. Values are
+ * bound as typed longs rather than strings, and no SQL or argument arrays are built per call.
+ * <p>
+ * A statement holds its bindings, so each is used by one thread at a time. Call these methods
+ * only inside a write transaction on the calling thread: the database has a single write
+ * connection, so a thread never waits for a statement while another thread that holds it waits
+ * for the connection.
+ */
+class ItemStatements {
+
+    private final SQLiteStatement mInsertItem;
+    private final SQLiteStatement mDeleteItem;
+    private final SQLiteStatement mInsertMovement;
+    private final SQLiteStatement mReadQuantity;
+    private final SQLiteStatement mReadLevelQuantity;
+    private final SQLiteStatement mReadVersion;
+
+    ItemStatements(SQLiteDatabase database) {
+        mInsertItem = database.compileStatement("INSERT INTO " + ItemEntry.TABLE_NAME + " ("
+                + ItemEntry.COLUMN_ITEM_NAME + ", " + ItemEntry.COLUMN_ITEM_QUANTITY + ", "
+                + ItemEntry.COLUMN_ITEM_PRICE + ", " + ItemEntry.COLUMN_ITEM_DESCRIPTION + ", "
+                + ItemEntry.COLUMN_ITEM_SKU + ", " + ItemEntry.COLUMN_ITEM_SYNC_ID + ", "
+                + ItemDbHelper.COLUMN_CURRENT_QUANTITY + ")"
+                + " VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?2)");
+        mDeleteItem = database.compileStatement("DELETE FROM " + ItemEntry.TABLE_NAME
+                + " WHERE " + ItemEntry._ID + " = ?");
+        mInsertMovement = database.compileStatement("INSERT INTO " + MovementEntry.TABLE_NAME
+                + " (" + MovementEntry.COLUMN_ITEM_ID + ", " + MovementEntry.COLUMN_LOCATION_ID
+                + ", " + MovementEntry.COLUMN_DELTA + ", " + MovementEntry.COLUMN_KIND + ", "
+                + MovementEntry.COLUMN_TIMESTAMP + ")"
+                + " VALUES (?, ?, ?, ?, ?)");
+        mReadQuantity = database.compileStatement("SELECT " + ItemDbHelper.CURRENT_QUANTITY
+                + " FROM " + ItemEntry.TABLE_NAME + " WHERE " + ItemEntry._ID + " = ?");
+
+        // An existing item with no level at the location has none of its stock there
+        mReadLevelQuantity = database.compileStatement("SELECT IFNULL((SELECT "
+                + ItemDbHelper.CURRENT_LEVEL_QUANTITY + " FROM " + StockEntry.TABLE_NAME
+                + " WHERE " + StockEntry.COLUMN_ITEM_ID + " = ?1"
+                + " AND " + StockEntry.COLUMN_LOCATION_ID + " = ?2), 0)"
+                + " FROM " + ItemEntry.TABLE_NAME + " WHERE " + ItemEntry._ID + " = ?1");
+        mReadVersion = database.compileStatement("SELECT " + ItemDbHelper.CURRENT_VERSION
+                + " FROM " + ItemEntry.TABLE_NAME + " WHERE " + ItemEntry._ID + " = ?");
+    }
+
+    /**
+     * Inserts an item and returns its ID.
+     *
+     * @throws android.database.sqlite.SQLiteConstraintException if the SKU or sync ID is
+     * already taken
+     */
+    long insertItem(String name, long quantity, long price, String description, String sku,
+            String syncId) {
+        synchronized (mInsertItem) {
+            mInsertItem.bindString(1, name);
+            mInsertItem.bindLong(2, quantity);
+            mInsertItem.bindLong(3, price);
+            if (description == null) {
+                mInsertItem.bindNull(4);
+            } else {
+                mInsertItem.bindString(4, description);
+            }
+            if (sku == null) {
+                mInsertItem.bindNull(5);
+            } else {
+                mInsertItem.bindString(5, sku);
+            }
+            mInsertItem.bindString(6, syncId);
+            try {
+                return mInsertItem.executeInsert();
+            } finally {
+                mInsertItem.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Deletes the item with the given ID and returns the number of rows deleted.
+     */
+    int deleteItem(long id) {
+        synchronized (mDeleteItem) {
+            mDeleteItem.bindLong(1, id);
+            return mDeleteItem.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Appends a movement of the given item at the given location to the ledger, timestamped now.
+     */
+    void insertMovement(long id, long location, long delta, int kind) {
+        synchronized (mInsertMovement) {
+            mInsertMovement.bindLong(1, id);
+            mInsertMovement.bindLong(2, location);
+            mInsertMovement.bindLong(3, delta);
+            mInsertMovement.bindLong(4, kind);
+            mInsertMovement.bindLong(5, System.currentTimeMillis());
+            mInsertMovement.executeInsert();
+        }
+    }
+
+    /**
+     * Returns the current quantity of the item with the given ID, or -1 if there is no such item.
+     */
+    int readQuantity(long id) {
+        synchronized (mReadQuantity) {
+            mReadQuantity.bindLong(1, id);
+            try {
+                return (int) mReadQuantity.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // No row
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the current quantity of the item with the given ID at the given location, or -1
+     * if there is no such item.
+     */
+    int readLevelQuantity(long id, long location) {
+        synchronized (mReadLevelQuantity) {
+            mReadLevelQuantity.bindLong(1, id);
+            mReadLevelQuantity.bindLong(2, location);
+            try {
+                return (int) mReadLevelQuantity.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // No row
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the current version of the item with the given ID, or -1 if there is no such item.
+     */
+    long readVersion(long id) {
+        synchronized (mReadVersion) {
+            mReadVersion.bindLong(1, id);
+            try {
+                return mReadVersion.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                // No row
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    void close() {
+        mInsertItem.close();
+        mDeleteItem.close();
+        mInsertMovement.close();
+        mReadQuantity.close();
+        mReadLevelQuantity.close();
+        mReadVersion.close();
+    }
+}
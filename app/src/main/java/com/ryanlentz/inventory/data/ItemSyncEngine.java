@@ -0,0 +1,411 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.ryanlentz.inventory.data.ItemContract.ChangeEntry;
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synchronizes the items with a central store by exchanging only what changed since the last
+ * sync. The local changes after the last one the store acknowledged are read from the change
+ * log and pushed a batch at a time; then the store's changes after the checkpoint last pulled
+ * are pulled a batch at a time and applied, each batch in one transaction together with its
+ * checkpoint. Every request and response is JSON compressed with GZIP.
+ * <p>
+ * A change is sent with the item's current values, so the store keeps the latest version of
+ * each item. Pushing comes first, so a local change is only replaced by a pulled one if it was
+ * made while the sync ran. Photos and the stock at each location are not synced.
+ * <p>
+ * {@link #sync} blocks, so call it on a background thread.
+ */
+public class ItemSyncEngine {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ItemSyncEngine.class.getSimpleName();
+
+    /** Most changes sent or received per request */
+    public static final int BATCH_SIZE = 200;
+
+    /** Names of the fields of the requests and responses, besides the item columns */
+    static final String FIELD_DEVICE = "device";
+    static final String FIELD_CHANGES = "changes";
+    static final String FIELD_ACCEPTED = "accepted";
+    static final String FIELD_AFTER = "after";
+    static final String FIELD_LIMIT = "limit";
+    static final String FIELD_CHECKPOINT = "checkpoint";
+    static final String FIELD_MORE = "more";
+
+    /** Columns of a change read from the log */
+    private static final String[] CHANGE_COLUMNS = {
+            ChangeEntry._ID,
+            ChangeEntry.COLUMN_SYNC_ID,
+            ChangeEntry.COLUMN_DELETED,
+            ItemEntry.COLUMN_ITEM_NAME,
+            ItemEntry.COLUMN_ITEM_QUANTITY,
+            ItemEntry.COLUMN_ITEM_PRICE,
+            ItemEntry.COLUMN_ITEM_DESCRIPTION,
+            ItemEntry.COLUMN_ITEM_SKU
+    };
+
+    /** Indices of the columns in {@link #CHANGE_COLUMNS} */
+    private static final int ID = 0;
+    private static final int SYNC_ID = 1;
+    private static final int DELETED = 2;
+    private static final int NAME = 3;
+    private static final int QUANTITY = 4;
+    private static final int PRICE = 5;
+    private static final int DESCRIPTION = 6;
+    private static final int SKU = 7;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The central store. Requests and responses are GZIP-compressed JSON objects, and a change
+     * is an object with the item's {@link ItemEntry#COLUMN_ITEM_SYNC_ID} and either
+     * {@link ChangeEntry#COLUMN_DELETED} set to true or the item's name, quantity, price, and
+     * description and SKU unless they are null.
+     */
+    public interface Server {
+        /**
+         * Stores a batch of changes made on one device, replacing the stored version of each
+         * item. A batch may be sent again if its response was lost, so storing it twice must
+         * do no harm.
+         *
+         * @param request {"device": device ID, "changes": [changes, oldest first]}
+         * @return {"accepted": number of changes stored}
+         * @throws IOException if the store cannot be reached
+         */
+        byte[] push(byte[] request) throws IOException;
+
+        /**
+         * Returns a batch of the changes stored after a checkpoint, other than those pushed by
+         * the device asking.
+         *
+         * @param request {"device": device ID, "after": checkpoint, "limit": most changes}
+         * @return {"checkpoint": checkpoint of the last change examined, "more": whether
+         * changes are left after it, "changes": [changes, oldest first]}
+         * @throws IOException if the store cannot be reached
+         */
+        byte[] pull(byte[] request) throws IOException;
+    }
+
+    /**
+     * The outcome of a sync
+     */
+    public static class Result {
+        /** Number of local changes the store accepted */
+        public final int pushed;
+
+        /** Number of changes pulled from the store and applied */
+        public final int pulled;
+
+        /** Number of pulled changes that conflicted with local data and were resolved */
+        public final int conflicts;
+
+        /** Number of requests made to the store */
+        public final int requests;
+
+        /** Compressed bytes of all requests */
+        public final long bytesSent;
+
+        /** Compressed bytes of all responses */
+        public final long bytesReceived;
+
+        Result(int pushed, int pulled, int conflicts, int requests, long bytesSent,
+                long bytesReceived) {
+            this.pushed = pushed;
+            this.pulled = pulled;
+            this.conflicts = conflicts;
+            this.requests = requests;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+
+        @Override
+        public String toString() {
+            return "Pushed " + pushed + " and pulled " + pulled + " changes, " + conflicts
+                    + " of them in conflict, in " + requests
+                    + " requests, " + bytesSent + " bytes sent and " + bytesReceived
+                    + " received";
+        }
+    }
+
+    /** Resolver the items are read and written through */
+    private final ContentResolver mResolver;
+
+    /** The central store */
+    private final Server mServer;
+
+    /** Counts of the sync running */
+    private int mRequests;
+    private int mConflicts;
+    private long mBytesSent;
+    private long mBytesReceived;
+
+    public ItemSyncEngine(ContentResolver resolver, Server server) {
+        mResolver = resolver;
+        mServer = server;
+    }
+
+    /**
+     * Pushes the local changes and then pulls the store's. A sync that fails part way keeps
+     * the batches already acknowledged or applied, and the next sync carries on from there.
+     *
+     * @return the number of changes exchanged and the bytes transferred
+     * @throws IOException if the store cannot be reached or sends a malformed response
+     */
+    public synchronized Result sync() throws IOException {
+        mRequests = 0;
+        mConflicts = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+
+        Bundle state = mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_SYNC_STATE,
+                null, null);
+        if (state == null) {
+            throw new IOException("Cannot read the sync state");
+        }
+        String deviceId = state.getString(ItemContract.EXTRA_DEVICE_ID);
+        int pushed = push(deviceId, state.getLong(ItemContract.EXTRA_CHANGE_ID));
+        int pulled = pull(deviceId, state.getLong(ItemContract.EXTRA_CHECKPOINT));
+
+        Result result = new Result(pushed, pulled, mConflicts, mRequests, mBytesSent,
+                mBytesReceived);
+        Log.i(LOG_TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Pushes the changes after the given one a batch at a time, acknowledging each batch once
+     * the store has accepted it. Returns the number of changes pushed.
+     */
+    private int push(String deviceId, long afterId) throws IOException {
+        int pushed = 0;
+        while (true) {
+            Cursor cursor = mResolver.query(ChangeEntry.buildPageUri(afterId, BATCH_SIZE),
+                    CHANGE_COLUMNS, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Cannot query changes");
+            }
+            int rows;
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            try {
+                rows = cursor.getCount();
+                if (rows == 0) {
+                    break;
+                }
+                JsonWriter writer = newWriter(request);
+                writer.beginObject();
+                writer.name(FIELD_DEVICE).value(deviceId);
+                writer.name(FIELD_CHANGES).beginArray();
+                while (cursor.moveToNext()) {
+                    writeChange(writer, cursor);
+                    afterId = cursor.getLong(ID);
+                }
+                writer.endArray();
+                writer.endObject();
+                writer.close();
+            } finally {
+                cursor.close();
+            }
+
+            JsonReader reader = send(request.toByteArray(), true);
+            int accepted = -1;
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (FIELD_ACCEPTED.equals(reader.nextName())) {
+                        accepted = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+            if (accepted != rows) {
+                throw new IOException("The store accepted " + accepted + " of " + rows
+                        + " changes");
+            }
+
+            Bundle extras = new Bundle();
+            extras.putLong(ItemContract.EXTRA_CHANGE_ID, afterId);
+            mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_ACKNOWLEDGE_CHANGES,
+                    null, extras);
+            pushed += rows;
+            if (rows < BATCH_SIZE) {
+                break;
+            }
+        }
+        return pushed;
+    }
+
+    /**
+     * Pulls the store's changes after the given checkpoint a batch at a time and applies each
+     * batch. Changes that conflict with local data are resolved by the provider and sent back
+     * on the next sync. Returns the number of changes pulled.
+     */
+    private int pull(String deviceId, long checkpoint) throws IOException {
+        int pulled = 0;
+        boolean more = true;
+        while (more) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            JsonWriter writer = newWriter(request);
+            writer.beginObject();
+            writer.name(FIELD_DEVICE).value(deviceId);
+            writer.name(FIELD_AFTER).value(checkpoint);
+            writer.name(FIELD_LIMIT).value(BATCH_SIZE);
+            writer.endObject();
+            writer.close();
+
+            JsonReader reader = send(request.toByteArray(), false);
+            List<ContentValues> changes = new ArrayList<>();
+            more = false;
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (FIELD_CHECKPOINT.equals(name)) {
+                        checkpoint = reader.nextLong();
+                    } else if (FIELD_MORE.equals(name)) {
+                        more = reader.nextBoolean();
+                    } else if (FIELD_CHANGES.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            changes.add(readChange(reader));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } catch (IllegalStateException | NumberFormatException e) {
+                throw new IOException("Malformed response from the store", e);
+            } finally {
+                reader.close();
+            }
+
+            Bundle extras = new Bundle();
+            extras.putParcelableArray(ItemContract.EXTRA_CHANGES,
+                    changes.toArray(new ContentValues[changes.size()]));
+            extras.putLong(ItemContract.EXTRA_CHECKPOINT, checkpoint);
+            Bundle applied = mResolver.call(ItemEntry.CONTENT_URI,
+                    ItemContract.METHOD_APPLY_CHANGES, null, extras);
+            if (applied == null) {
+                throw new IOException("Cannot apply the pulled changes");
+            }
+            String[] conflicts = applied.getStringArray(ItemContract.EXTRA_CONFLICTS);
+            if (conflicts != null) {
+                for (String syncId : conflicts) {
+                    Log.w(LOG_TAG, "Pulled change to item " + syncId + " conflicted and was"
+                            + " resolved");
+                }
+                mConflicts += conflicts.length;
+            }
+            pulled += changes.size();
+        }
+        return pulled;
+    }
+
+    /**
+     * Sends a request to the store, counting it and its bytes, and returns a reader of the
+     * response.
+     */
+    private JsonReader send(byte[] request, boolean push) throws IOException {
+        byte[] response = push ? mServer.push(request) : mServer.pull(request);
+        mRequests++;
+        mBytesSent += request.length;
+        mBytesReceived += response.length;
+        return new JsonReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(response)), UTF_8));
+    }
+
+    /**
+     * Returns a writer of compressed JSON into the given stream. Closing the writer finishes
+     * the compressed data.
+     */
+    private static JsonWriter newWriter(ByteArrayOutputStream out) throws IOException {
+        return new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(out), UTF_8));
+    }
+
+    /**
+     * Writes the change in the cursor's current row. Null values are left out.
+     */
+    private static void writeChange(JsonWriter writer, Cursor cursor) throws IOException {
+        writer.beginObject();
+        writer.name(ItemEntry.COLUMN_ITEM_SYNC_ID).value(cursor.getString(SYNC_ID));
+        if (cursor.getInt(DELETED) != 0) {
+            writer.name(ChangeEntry.COLUMN_DELETED).value(true);
+        } else {
+            writer.name(ItemEntry.COLUMN_ITEM_NAME).value(cursor.getString(NAME));
+            writer.name(ItemEntry.COLUMN_ITEM_QUANTITY).value(cursor.getInt(QUANTITY));
+            writer.name(ItemEntry.COLUMN_ITEM_PRICE).value(ItemEntry.getPrice(cursor, PRICE));
+            if (!cursor.isNull(DESCRIPTION)) {
+                writer.name(ItemEntry.COLUMN_ITEM_DESCRIPTION).value(cursor.getString(DESCRIPTION));
+            }
+            if (!cursor.isNull(SKU)) {
+                writer.name(ItemEntry.COLUMN_ITEM_SKU).value(cursor.getString(SKU));
+            }
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Reads a change into the values {@link ItemContract#METHOD_APPLY_CHANGES} takes. Fields
+     * left out of a live item's change are null.
+     */
+    private static ContentValues readChange(JsonReader reader) throws IOException {
+        ContentValues change = new ContentValues();
+        change.putNull(ItemEntry.COLUMN_ITEM_DESCRIPTION);
+        change.putNull(ItemEntry.COLUMN_ITEM_SKU);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case ItemEntry.COLUMN_ITEM_SYNC_ID:
+                case ItemEntry.COLUMN_ITEM_NAME:
+                case ItemEntry.COLUMN_ITEM_DESCRIPTION:
+                case ItemEntry.COLUMN_ITEM_SKU:
+                    change.put(name, reader.nextString());
+                    break;
+                case ItemEntry.COLUMN_ITEM_QUANTITY:
+                    change.put(name, reader.nextInt());
+                    break;
+                case ItemEntry.COLUMN_ITEM_PRICE:
+                    change.put(name, reader.nextLong());
+                    break;
+                case ChangeEntry.COLUMN_DELETED:
+                    change.put(name, reader.nextBoolean());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return change;
+    }
+}
@@ -0,0 +1,94 @@
+package com.ryanlentz.inventory.data;
+
+/**
+ * Parses and formats prices stored as whole cents, without going through floating point.
+ */
+public final class PriceUtils {
+    // Only holds static helpers, so it is never instantiated
+    private PriceUtils() {}
+
+    /** Number of cents in one unit of currency */
+    private static final int CENTS_PER_UNIT = 100;
+
+    /** Most digits of whole units accepted, so the price in cents always fits in a long */
+    private static final int MAX_UNIT_DIGITS = 15;
+
+    /**
+     * Parses a price such as "12", "12.5", "12.50" or ".99" into cents.
+     *
+     * @param text the price, with at most two decimal places
+     * @return the price in cents
+     * @throws NumberFormatException if the text is not a valid non-negative price
+     */
+    public static long parsePrice(String text) {
+        String trimmed = text.trim();
+        int point = trimmed.indexOf('.');
+        String units = point < 0 ? trimmed : trimmed.substring(0, point);
+        String cents = point < 0 ? "" : trimmed.substring(point + 1);
+
+        // There must be at least one digit, and no more than two decimal places
+        if ((units.isEmpty() && cents.isEmpty()) || cents.length() > 2
+                || units.length() > MAX_UNIT_DIGITS
+                || !isDigits(units) || !isDigits(cents)) {
+            throw new NumberFormatException("Invalid price \"" + text + "\"");
+        }
+
+        long price = units.isEmpty() ? 0 : Long.parseLong(units) * CENTS_PER_UNIT;
+        if (cents.length() == 1) {
+            price += (cents.charAt(0) - '0') * 10;
+        } else if (cents.length() == 2) {
+            price += Integer.parseInt(cents);
+        }
+        return price;
+    }
+
+    /**
+     * Formats a price in cents as "d.cc", for example 1250 as "12.50".
+     */
+    public static String formatPrice(long cents) {
+        char[] buffer = new char[24];
+        return new String(buffer, 0, formatPrice(buffer, 0, cents));
+    }
+
+    /**
+     * Writes a price in cents as "d.cc" into the buffer at the given offset, without allocating.
+     *
+     * @return the offset after the last character written
+     */
+    public static int formatPrice(char[] buffer, int offset, long cents) {
+        if (cents < 0) {
+            buffer[offset++] = '-';
+            cents = -cents;
+        }
+
+        // Counts the digits of the whole units, then fills them in from the right
+        long units = cents / CENTS_PER_UNIT;
+        int digits = 1;
+        for (long rest = units / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + units % 10);
+            units /= 10;
+        }
+
+        buffer[end++] = '.';
+        buffer[end++] = (char) ('0' + cents % CENTS_PER_UNIT / 10);
+        buffer[end++] = (char) ('0' + cents % 10);
+        return end;
+    }
+
+    /**
+     * Returns true if every character of the text is an ASCII digit.
+     */
+    private static boolean isDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,126 @@
+package com.ryanlentz.inventory.data;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, latencies and rows affected of the provider's operations, kept per operation and URI
+ * pattern. The operations are the ContentProvider calls and the provider methods that write,
+ * each method recorded under the URI pattern of what it writes. Queries record 0 rows, since
+ * counting a cursor's rows would run it to the end.
+ * Recording only updates atomic counters, so it does not allocate or lock and can be left on in
+ * production. {@link #snapshot} copies them into a Bundle for
+ * {@link ItemContract#METHOD_METRICS}.
+ * <p>
+ * Latencies go into a histogram of powers of two of microseconds: bucket 0 counts calls that
+ * took under a microsecond, and bucket i calls that took at least 2^(i-1) and under 2^i
+ * microseconds. The last bucket also counts every slower call.
+ */
+class ProviderMetrics {
+
+    /** Operations recorded */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int APPLY_BATCH = 5;
+    static final int SELL = 6;
+    static final int SELL_BATCH = 7;
+    static final int RECEIVE = 8;
+    static final int ADJUST = 9;
+    static final int COMPACT = 10;
+    static final int APPLY_CHANGES = 11;
+    static final int UPDATE_IF_VERSION = 12;
+
+    /** Names of the operations in the snapshot, by operation */
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete", "apply_batch",
+            ItemContract.METHOD_SELL, ItemContract.METHOD_SELL_BATCH, ItemContract.METHOD_RECEIVE,
+            ItemContract.METHOD_ADJUST, ItemContract.METHOD_COMPACT,
+            ItemContract.METHOD_APPLY_CHANGES, ItemContract.METHOD_UPDATE_IF_VERSION
+    };
+
+    /** Number of latency buckets; the last starts at 2^22 microseconds, about 4 seconds */
+    static final int HISTOGRAM_BUCKETS = 24;
+
+    /** Offsets of the values of one operation and URI pattern in {@link #mValues} */
+    private static final int COUNT = 0;
+    private static final int TOTAL_NANOS = 1;
+    private static final int ROWS = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int STRIDE = FIRST_BUCKET + HISTOGRAM_BUCKETS;
+
+    /** Names of the URI patterns in the snapshot, by index */
+    private final String[] mUriNames;
+
+    /** The values of every operation and URI pattern, {@link #STRIDE} apart */
+    private final AtomicLongArray mValues;
+
+    /**
+     * @param uriNames names of the URI patterns, by the index passed to {@link #record}
+     */
+    ProviderMetrics(String[] uriNames) {
+        mUriNames = uriNames.clone();
+        mValues = new AtomicLongArray(OPERATION_NAMES.length * mUriNames.length * STRIDE);
+    }
+
+    /**
+     * Records a call that has just finished.
+     *
+     * @param operation  the operation, such as {@link #QUERY}
+     * @param uri        index of the URI pattern the call was made on
+     * @param startNanos {@link System#nanoTime} when the call started
+     * @param rows       rows affected, or 0 for a query
+     */
+    void record(int operation, int uri, long startNanos, int rows) {
+        long nanos = System.nanoTime() - startNanos;
+        int slot = (operation * mUriNames.length + uri) * STRIDE;
+        mValues.incrementAndGet(slot + COUNT);
+        mValues.addAndGet(slot + TOTAL_NANOS, nanos);
+        mValues.addAndGet(slot + ROWS, rows);
+        mValues.incrementAndGet(slot + FIRST_BUCKET + bucket(nanos));
+    }
+
+    /**
+     * Returns the latency bucket of a call that took the given time.
+     */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Returns the values recorded so far, optionally starting over from zero. The result holds
+     * a Bundle for every operation and URI pattern called at least once, under the key
+     * "operation/uri", for example "query/item". Calls recorded while the snapshot is taken may
+     * be split between it and the next one.
+     */
+    Bundle snapshot(boolean reset) {
+        Bundle snapshot = new Bundle();
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int uri = 0; uri < mUriNames.length; uri++) {
+                int slot = (operation * mUriNames.length + uri) * STRIDE;
+                if (mValues.get(slot + COUNT) == 0) {
+                    continue;
+                }
+                long[] histogram = new long[HISTOGRAM_BUCKETS];
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    histogram[i] = read(slot + FIRST_BUCKET + i, reset);
+                }
+                Bundle metrics = new Bundle();
+                metrics.putLong(ItemContract.METRIC_COUNT, read(slot + COUNT, reset));
+                metrics.putLong(ItemContract.METRIC_TOTAL_NANOS, read(slot + TOTAL_NANOS, reset));
+                metrics.putLong(ItemContract.METRIC_ROWS, read(slot + ROWS, reset));
+                metrics.putLongArray(ItemContract.METRIC_LATENCY_HISTOGRAM, histogram);
+                snapshot.putBundle(OPERATION_NAMES[operation] + "/" + mUriNames[uri], metrics);
+            }
+        }
+        return snapshot;
+    }
+
+    private long read(int index, boolean reset) {
+        return reset ? mValues.getAndSet(index, 0) : mValues.get(index);
+    }
+}
@@ -0,0 +1,195 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+/**
+ * Write-behind queue for sales. Sales of the same item made in quick succession are merged, and
+ * are written together with the queued sales of every other item in a single transaction on a
+ * background thread. Until they are written, {@link #getPendingSales} lets the list show each
+ * quantity as if they already were.
+ * <p>
+ * The queue is written {@link #FLUSH_DELAY_MILLIS} after the first sale queued, whenever
+ * {@link #flush} or {@link #flushNow} is called, and before the process dies of an uncaught
+ * exception. The catalog calls {@link #flushNow} when it pauses, so every sale is in the
+ * database before the activity can be stopped and its process killed. Sales the database
+ * rejects are queued again and retried after {@link #RETRY_DELAY_MILLIS}.
+ * <p>
+ * The editor's +/- buttons do not use the queue: they only change the quantity field, which is
+ * saved once as a conditional update that must not be merged with other writes.
+ */
+public class SaleQueue {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = SaleQueue.class.getSimpleName();
+
+    /** How long sales are collected before they are written, in milliseconds */
+    public static final long FLUSH_DELAY_MILLIS = 500;
+
+    /** How long sales the database rejected wait before they are written again, in milliseconds */
+    public static final long RETRY_DELAY_MILLIS = 5000;
+
+    /** The queue shared by the whole app */
+    private static SaleQueue sInstance;
+
+    /**
+     * Returns the queue shared by the whole app, starting its background thread the first time.
+     */
+    public static synchronized SaleQueue getInstance(Context context) {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sInstance = new SaleQueue(context.getApplicationContext().getContentResolver(),
+                    thread.getLooper());
+            sInstance.flushOnCrash();
+        }
+        return sInstance;
+    }
+
+    /** Resolver the sales are written through */
+    private final ContentResolver mResolver;
+
+    /** Handler of the background thread that writes the sales */
+    private final Handler mHandler;
+
+    /** Held while sales are being written, so only one flush writes at a time */
+    private final Object mWriteLock = new Object();
+
+    /** Units queued per item that are not being written yet; guarded by this */
+    private LongSparseArray<Integer> mQueued = new LongSparseArray<>();
+
+    /** Units per item in the flush being written; guarded by this */
+    private LongSparseArray<Integer> mWriting = new LongSparseArray<>();
+
+    /** Whether a delayed flush has been posted; guarded by this */
+    private boolean mFlushScheduled;
+
+    /** Writes the queued sales; posted to the background thread */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    SaleQueue(ContentResolver resolver, Looper looper) {
+        mResolver = resolver;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Queues the sale of one unit of an item. The caller should check that the item has
+     * stock left after its pending sales; if not, the provider sells only what there is.
+     */
+    public synchronized void sell(long id) {
+        Integer queued = mQueued.get(id);
+        mQueued.put(id, queued == null ? 1 : queued + 1);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Returns the units of an item sold but not yet written to the database. Does not allocate,
+     * so it can be called while binding list items.
+     */
+    public synchronized int getPendingSales(long id) {
+        Integer queued = mQueued.get(id);
+        Integer writing = mWriting.get(id);
+        return (queued == null ? 0 : queued) + (writing == null ? 0 : writing);
+    }
+
+    /**
+     * Starts writing the queued sales now, on the background thread.
+     */
+    public void flush() {
+        mHandler.post(mFlush);
+    }
+
+    /**
+     * Writes the queued sales on the calling thread and returns once they are written, waiting
+     * for a flush already writing on the background thread. The sales are written in one small
+     * transaction, so this can be called on the main thread when an activity pauses.
+     */
+    public void flushNow() {
+        synchronized (mWriteLock) {
+            long[] ids;
+            int[] counts;
+            synchronized (this) {
+                mFlushScheduled = false;
+                mHandler.removeCallbacks(mFlush);
+                if (mQueued.size() == 0) {
+                    return;
+                }
+
+                // The queued sales stay visible as pending until they are written
+                mWriting = mQueued;
+                mQueued = new LongSparseArray<>();
+                ids = new long[mWriting.size()];
+                counts = new int[mWriting.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = mWriting.keyAt(i);
+                    counts[i] = mWriting.valueAt(i);
+                }
+            }
+
+            Bundle extras = new Bundle();
+            extras.putLongArray(ItemContract.EXTRA_ITEM_IDS, ids);
+            extras.putIntArray(ItemContract.EXTRA_COUNTS, counts);
+            boolean written = false;
+            try {
+                mResolver.call(ItemEntry.CONTENT_URI, ItemContract.METHOD_SELL_BATCH, null, extras);
+                written = true;
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to write " + ids.length + " queued sales", e);
+            } finally {
+                synchronized (this) {
+                    // A rejected batch goes back in the queue, merged with the sales made
+                    // meanwhile, so no sale is lost and none is shown as undone
+                    if (!written) {
+                        for (int i = 0; i < ids.length; i++) {
+                            Integer queued = mQueued.get(ids[i]);
+                            mQueued.put(ids[i], queued == null ? counts[i] : queued + counts[i]);
+                        }
+                        if (!mFlushScheduled) {
+                            mFlushScheduled = true;
+                            mHandler.postDelayed(mFlush, RETRY_DELAY_MILLIS);
+                        }
+                    }
+                    mWriting = new LongSparseArray<>();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes an uncaught exception on any thread write the queued sales before the process dies.
+     */
+    private void flushOnCrash() {
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                try {
+                    flushNow();
+                } catch (Throwable t) {
+                    Log.e(LOG_TAG, "Failed to write queued sales", t);
+                } finally {
+                    if (previous != null) {
+                        previous.uncaughtException(thread, e);
+                    }
+                }
+            }
+        });
+    }
+}
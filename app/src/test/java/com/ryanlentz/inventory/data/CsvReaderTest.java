@@ -0,0 +1,76 @@
+package com.ryanlentz.inventory.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link CsvReader}.
+ */
+public class CsvReaderTest {
+    @Test
+    public void readRecord_splitsPlainFields() throws Exception {
+        CsvReader reader = new CsvReader(new StringReader("a,b,,c\r\nd\n"));
+        List<String> fields = new ArrayList<>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("a", "b", "", "c"), fields);
+        assertEquals(1, reader.getLineNumber());
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("d"), fields);
+        assertEquals(2, reader.getLineNumber());
+
+        assertFalse(reader.readRecord(fields));
+    }
+
+    @Test
+    public void readRecord_readsQuotedFields() throws Exception {
+        CsvReader reader = new CsvReader(new StringReader(
+                "\"a, b\",\"say \"\"hi\"\"\",\"two\nlines\"\nnext"));
+        List<String> fields = new ArrayList<>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("a, b", "say \"hi\"", "two\nlines"), fields);
+
+        // The line break inside the quotes is counted
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("next"), fields);
+        assertEquals(3, reader.getLineNumber());
+    }
+
+    @Test
+    public void readRecord_skipsByteOrderMark() throws Exception {
+        CsvReader reader = new CsvReader(new StringReader("\uFEFFname,price"));
+        List<String> fields = new ArrayList<>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList("name", "price"), fields);
+    }
+
+    @Test
+    public void readRecord_readsRecordsLongerThanTheBuffer() throws Exception {
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            field.append((char) ('a' + i % 26));
+        }
+        CsvReader reader = new CsvReader(new StringReader(field + "," + field));
+        List<String> fields = new ArrayList<>();
+
+        assertTrue(reader.readRecord(fields));
+        assertEquals(Arrays.asList(field.toString(), field.toString()), fields);
+    }
+
+    @Test(expected = IOException.class)
+    public void readRecord_rejectsUnterminatedQuote() throws Exception {
+        new CsvReader(new StringReader("\"abc\n")).readRecord(new ArrayList<String>());
+    }
+}
@@ -0,0 +1,267 @@
+package com.ryanlentz.inventory.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.ryanlentz.inventory.BuildConfig;
+import com.ryanlentz.inventory.data.ItemContract.ItemEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks of {@link ItemProvider} on the JVM, with Robolectric backing the database with a
+ * real SQLite. Each operation is timed one call at a time against databases of every size
+ * passed in the "benchmark.sizes" system property, and the latencies are written as JSON to
+ * "item-provider.json" in the "benchmark.output" directory, one result per line and with
+ * nothing but the timings varying between runs, so the files of two builds can be diffed.
+ * <p>
+ * The benchmark is skipped unless sizes are given. From the command line:
+ * <pre>
+ * ./gradlew testDebugUnitTest --tests '*ItemProviderBenchmark' -Pbenchmark=1000,10000,100000,1000000
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class ItemProviderBenchmark {
+
+    /** Most calls timed per operation and size */
+    private static final int MAX_OPERATIONS = 1000;
+
+    /** Items written per bulk insert while loading a database */
+    private static final int BULK_INSERT_ROWS = 1000;
+
+    /** Items read per list query */
+    private static final int PAGE_SIZE = 50;
+
+    /** Quantity of every loaded item, more than the benchmark ever sells of one */
+    private static final int QUANTITY = 1000000;
+
+    /** Fixed seed, so every run reads and writes the same items */
+    private static final long SEED = 42;
+
+    /**
+     * An operation to time. Call i of a run is passed i, counting from 0.
+     */
+    private interface Operation {
+        void run(int i);
+    }
+
+    private ItemProvider mProvider;
+    private final List<String> mResults = new ArrayList<>();
+
+    @Test
+    public void benchmarkItemProvider() throws Exception {
+        String sizes = System.getProperty("benchmark.sizes");
+        assumeTrue(sizes != null && !sizes.isEmpty());
+
+        for (String size : sizes.split(",")) {
+            benchmarkSize(Integer.parseInt(size.trim()));
+        }
+        writeResults();
+    }
+
+    /**
+     * Times every operation against a new database holding the given number of items.
+     */
+    private void benchmarkSize(final int rows) {
+        Context context = RuntimeEnvironment.application;
+        context.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+        mProvider = new ItemProvider();
+        mProvider.attachInfo(context, null);
+
+        // Later operations run on a fraction of the rows, so deletes never run out
+        final int operations = Math.max(1, Math.min(MAX_OPERATIONS, rows / 4));
+        final int warmup = Math.max(1, operations / 10);
+        final Random random = new Random(SEED);
+        try {
+            // Loads the database, timing each bulk insert per row it wrote
+            long[] bulkTimes = new long[(rows + BULK_INSERT_ROWS - 1) / BULK_INSERT_ROWS];
+            for (int batch = 0; batch < bulkTimes.length; batch++) {
+                int first = batch * BULK_INSERT_ROWS;
+                ContentValues[] values = new ContentValues[Math.min(BULK_INSERT_ROWS, rows - first)];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = newItem(first + i);
+                }
+                long start = System.nanoTime();
+                assertEquals(values.length, mProvider.bulkInsert(ItemEntry.CONTENT_URI, values));
+                bulkTimes[batch] = (System.nanoTime() - start) / values.length;
+            }
+            addResult("bulk_insert", rows, bulkTimes);
+
+            measure("insert", rows, warmup, operations, new Operation() {
+                @Override
+                public void run(int i) {
+                    assertNotNull(mProvider.insert(ItemEntry.CONTENT_URI, newItem(rows + i)));
+                }
+            });
+
+            measure("query_single", rows, warmup, operations, new Operation() {
+                @Override
+                public void run(int i) {
+                    readAll(mProvider.query(itemUri(random, rows), null, null, null, null));
+                }
+            });
+
+            measure("query_list", rows, warmup, operations, new Operation() {
+                @Override
+                public void run(int i) {
+                    long afterId = random.nextInt(Math.max(1, rows - PAGE_SIZE));
+                    readAll(mProvider.query(ItemEntry.buildPageUri(afterId, PAGE_SIZE),
+                            null, null, null, null));
+                }
+            });
+
+            measure("update", rows, warmup, operations, new Operation() {
+                @Override
+                public void run(int i) {
+                    ContentValues values = new ContentValues();
+                    values.put(ItemEntry.COLUMN_ITEM_NAME, "Renamed " + i);
+                    assertEquals(1, mProvider.update(itemUri(random, rows), values, null, null));
+                }
+            });
+
+            measure("sell", rows, warmup, operations, new Operation() {
+                @Override
+                public void run(int i) {
+                    mProvider.call(ItemContract.METHOD_SELL,
+                            String.valueOf(ContentUris.parseId(itemUri(random, rows))), null);
+                }
+            });
+
+            // Deletes items spread over the table, each once
+            final int stride = Math.max(1, rows / (warmup + operations));
+            measure("delete", rows, warmup, operations, new Operation() {
+                @Override
+                public void run(int i) {
+                    Uri uri = ContentUris.withAppendedId(ItemEntry.CONTENT_URI, 1 + i * stride);
+                    assertEquals(1, mProvider.delete(uri, null, null));
+                }
+            });
+        } finally {
+            mProvider.shutdown();
+            context.deleteDatabase(ItemDbHelper.DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Runs the operation untimed to warm up, then times each of the given number of calls.
+     */
+    private void measure(String name, int rows, int warmup, int operations, Operation operation) {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        long[] times = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            long start = System.nanoTime();
+            operation.run(warmup + i);
+            times[i] = System.nanoTime() - start;
+        }
+        addResult(name, rows, times);
+    }
+
+    /**
+     * Adds a JSON result line for the given per-call latencies, in nanoseconds.
+     */
+    private void addResult(String name, int rows, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+        String result = String.format(Locale.ROOT, "{\"operation\": \"%s\", \"rows\": %d,"
+                        + " \"calls\": %d, \"mean_ns\": %d, \"p50_ns\": %d, \"p90_ns\": %d,"
+                        + " \"p99_ns\": %d, \"max_ns\": %d}",
+                name, rows, sorted.length, total / sorted.length, percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99), sorted[sorted.length - 1]);
+        mResults.add(result);
+        System.out.println(result);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * Writes the results as a JSON array with one result per line, if an output directory
+     * was given.
+     */
+    private void writeResults() throws IOException {
+        String directory = System.getProperty("benchmark.output");
+        if (directory == null) {
+            return;
+        }
+        File file = new File(directory, "item-provider.json");
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Cannot create " + file.getParent());
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                Charset.forName("UTF-8"));
+        try {
+            writer.write("[\n");
+            for (int i = 0; i < mResults.size(); i++) {
+                writer.write(mResults.get(i));
+                writer.write(i < mResults.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        } finally {
+            writer.close();
+        }
+        System.out.println("Wrote " + file);
+    }
+
+    private static ContentValues newItem(int i) {
+        ContentValues values = new ContentValues();
+        values.put(ItemEntry.COLUMN_ITEM_NAME, "Item " + i);
+        values.put(ItemEntry.COLUMN_ITEM_QUANTITY, QUANTITY);
+        values.put(ItemEntry.COLUMN_ITEM_PRICE, 100L + i % 10000);
+        values.put(ItemEntry.COLUMN_ITEM_DESCRIPTION, "Benchmark item number " + i);
+        return values;
+    }
+
+    /**
+     * Returns the URI of a random item among those loaded.
+     */
+    private static Uri itemUri(Random random, int rows) {
+        return ContentUris.withAppendedId(ItemEntry.CONTENT_URI, 1 + random.nextInt(rows));
+    }
+
+    /**
+     * Reads every column of every row of the cursor, as a list would, and closes it.
+     */
+    private static void readAll(Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.ryanlentz.inventory.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link PriceUtils}.
+ */
+public class PriceUtilsTest {
+    @Test
+    public void parsePrice_readsWholeAndPartialCents() throws Exception {
+        assertEquals(1200, PriceUtils.parsePrice("12"));
+        assertEquals(1250, PriceUtils.parsePrice("12.5"));
+        assertEquals(1205, PriceUtils.parsePrice("12.05"));
+        assertEquals(99, PriceUtils.parsePrice(".99"));
+        assertEquals(1200, PriceUtils.parsePrice(" 12. "));
+        assertEquals(0, PriceUtils.parsePrice("0"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parsePrice_rejectsThirdDecimalPlace() throws Exception {
+        PriceUtils.parsePrice("1.999");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parsePrice_rejectsNegativePrice() throws Exception {
+        PriceUtils.parsePrice("-1");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parsePrice_rejectsLonePoint() throws Exception {
+        PriceUtils.parsePrice(".");
+    }
+
+    @Test
+    public void formatPrice_alwaysShowsTwoDecimalPlaces() throws Exception {
+        assertEquals("0.00", PriceUtils.formatPrice(0));
+        assertEquals("0.05", PriceUtils.formatPrice(5));
+        assertEquals("12.50", PriceUtils.formatPrice(1250));
+        assertEquals("92233720368547758.07", PriceUtils.formatPrice(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void formatPrice_roundTripsThroughParsePrice() throws Exception {
+        for (long cents = 0; cents < 10000; cents += 7) {
+            assertEquals(cents, PriceUtils.parsePrice(PriceUtils.formatPrice(cents)));
+        }
+    }
+}